@@ -0,0 +1,115 @@
+package com.opower.persistence.jpile.infile;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * An {@link InputStream} that reads the remaining bytes of a chain of {@link ByteBuffer}s one after another. Unlike
+ * wrapping a backing array this also works for direct buffers, whose contents are copied straight into the caller's array
+ * without an intermediate copy.
+ * <p/>
+ * The stream reads from duplicates of the buffers, so the positions and limits of the original buffers are left
+ * untouched.
+ *
+ * @author agent
+ */
+final class ByteBufferInputStream extends InputStream {
+    private final List<ByteBuffer> buffers;
+    private int index;
+    private int markIndex;
+
+    ByteBufferInputStream(List<ByteBuffer> buffers) {
+        ImmutableList.Builder<ByteBuffer> duplicates = ImmutableList.builder();
+        for (ByteBuffer buffer : buffers) {
+            ByteBuffer duplicate = buffer.duplicate();
+            duplicate.mark();
+            duplicates.add(duplicate);
+        }
+        this.buffers = duplicates.build();
+    }
+
+    /**
+     * @return the buffer to read from next, or {@code null} if all buffers have been read
+     */
+    private ByteBuffer current() {
+        while (this.index < this.buffers.size()) {
+            ByteBuffer buffer = this.buffers.get(this.index);
+            if (buffer.hasRemaining()) {
+                return buffer;
+            }
+            this.index++;
+        }
+        return null;
+    }
+
+    @Override
+    public int read() {
+        ByteBuffer buffer = current();
+        if (buffer == null) {
+            return -1;
+        }
+        return buffer.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+        int count = 0;
+        ByteBuffer buffer = current();
+        while (buffer != null && count < length) {
+            int chunk = Math.min(length - count, buffer.remaining());
+            buffer.get(bytes, offset + count, chunk);
+            count += chunk;
+            buffer = current();
+        }
+        return count == 0 ? -1 : count;
+    }
+
+    @Override
+    public long skip(long n) {
+        long skipped = 0;
+        ByteBuffer buffer = current();
+        while (buffer != null && skipped < n) {
+            int chunk = (int) Math.min(n - skipped, buffer.remaining());
+            buffer.position(buffer.position() + chunk);
+            skipped += chunk;
+            buffer = current();
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        long available = 0;
+        for (int i = this.index; i < this.buffers.size(); i++) {
+            available += this.buffers.get(i).remaining();
+        }
+        return (int) Math.min(available, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readLimit) {
+        this.markIndex = this.index;
+        for (int i = this.index; i < this.buffers.size(); i++) {
+            this.buffers.get(i).mark();
+        }
+    }
+
+    @Override
+    public synchronized void reset() {
+        for (int i = this.markIndex; i < this.buffers.size(); i++) {
+            this.buffers.get(i).reset();
+        }
+        this.index = this.markIndex;
+    }
+}
@@ -0,0 +1,119 @@
+package com.opower.persistence.jpile.infile;
+
+import com.google.common.base.Preconditions;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of fixed-size chunks that {@link InfileDataBuffer}s are built from. A buffer takes chunks from the pool as rows
+ * are added and returns all of them when it is cleared, so tables that only receive a few rows hold on to a single small
+ * chunk instead of a whole infile buffer. Sharing one pool between buffers lets the chunks released by one table be
+ * reused by the next one.
+ * <p/>
+ * The pool keeps at most {@code maxPooledChunks} released chunks around; chunks released beyond that are left to be
+ * garbage collected. Chunks are allocated off-heap when the pool is created as direct, see
+ * {@link InfileDataBuffer#maxDirectMemory()} for the limit on direct memory.
+ * <p/>
+ * Instances of this class are safe for use by multiple threads.
+ *
+ * @author agent
+ */
+public class InfileChunkPool {
+    /**
+     * Default size in bytes of a chunk.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024; // 64kB
+
+    private final int chunkSize;
+    private final int maxPooledChunks;
+    private final boolean direct;
+
+    private final Queue<ByteBuffer> pooledChunks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledChunkCount = new AtomicInteger();
+
+    public InfileChunkPool(int chunkSize, int maxPooledChunks, boolean direct) {
+        Preconditions.checkArgument(chunkSize > 0, "chunkSize should be positive");
+        Preconditions.checkArgument(maxPooledChunks >= 0, "maxPooledChunks cannot be negative");
+        if (direct) {
+            long maxDirectMemory = InfileDataBuffer.maxDirectMemory();
+            Preconditions.checkArgument(chunkSize <= maxDirectMemory,
+                                        "chunkSize of %s bytes exceeds the direct memory limit of %s bytes",
+                                        chunkSize, maxDirectMemory);
+        }
+        this.chunkSize = chunkSize;
+        this.maxPooledChunks = maxPooledChunks;
+        this.direct = direct;
+    }
+
+    public InfileChunkPool(int chunkSize, int maxPooledChunks) {
+        this(chunkSize, maxPooledChunks, false);
+    }
+
+    /**
+     * Takes a chunk from the pool, allocating a new one if the pool is empty.
+     *
+     * @return an empty chunk of {@link #getChunkSize()} bytes
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer chunk = this.pooledChunks.poll();
+        if (chunk != null) {
+            this.pooledChunkCount.decrementAndGet();
+            return chunk;
+        }
+        return allocate();
+    }
+
+    /**
+     * Returns a chunk to the pool. The chunk must not be used by the caller afterwards.
+     *
+     * @param chunk a chunk previously taken from this pool
+     */
+    public void release(ByteBuffer chunk) {
+        Preconditions.checkArgument(chunk.capacity() == this.chunkSize, "chunk was not taken from this pool");
+        if (this.pooledChunkCount.incrementAndGet() <= this.maxPooledChunks) {
+            chunk.clear();
+            this.pooledChunks.offer(chunk);
+        }
+        else {
+            this.pooledChunkCount.decrementAndGet();
+        }
+    }
+
+    private ByteBuffer allocate() {
+        if (!this.direct) {
+            return ByteBuffer.allocate(this.chunkSize);
+        }
+        try {
+            return ByteBuffer.allocateDirect(this.chunkSize);
+        }
+        catch (OutOfMemoryError e) {
+            throw new IllegalStateException(String.format(
+                    "Could not allocate a direct chunk of %s bytes. Use smaller buffers or raise "
+                    + "-XX:MaxDirectMemorySize (currently %s bytes)", this.chunkSize, InfileDataBuffer.maxDirectMemory()), e);
+        }
+    }
+
+    /**
+     * @return the size in bytes of every chunk in this pool
+     */
+    public int getChunkSize() {
+        return this.chunkSize;
+    }
+
+    /**
+     * @return whether chunks are allocated off-heap
+     */
+    public boolean isDirect() {
+        return this.direct;
+    }
+
+    /**
+     * @return the number of released chunks currently held by this pool
+     */
+    public int getPooledChunkCount() {
+        return this.pooledChunkCount.get();
+    }
+}
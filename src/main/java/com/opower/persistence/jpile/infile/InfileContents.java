@@ -0,0 +1,66 @@
+package com.opower.persistence.jpile.infile;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The contents of an infile buffer detached from it with {@link InfileDataBuffer#detachInfile()}. This lets one thread
+ * send the contents to the database while another keeps writing rows to the buffer.
+ * <p/>
+ * Once the contents have been read, they <i>must</i> be released so that their chunks go back to the pool they were
+ * taken from. Instances of this class may be handed to another thread, but are not safe for use by multiple threads at
+ * the same time.
+ *
+ * @author agent
+ */
+public final class InfileContents {
+    private final InfileChunkPool chunkPool;
+    private List<ByteBuffer> chunks;
+    private final int size;
+
+    InfileContents(InfileChunkPool chunkPool, List<ByteBuffer> chunks, int size) {
+        this.chunkPool = chunkPool;
+        this.chunks = ImmutableList.copyOf(chunks);
+        this.size = size;
+    }
+
+    /**
+     * @return the number of bytes in these contents
+     */
+    public int getSize() {
+        return this.size;
+    }
+
+    /**
+     * Gets a view of the contents as input stream.
+     *
+     * @return the contents
+     */
+    public InputStream asInputStream() {
+        Preconditions.checkState(this.chunks != null, "Contents have already been released");
+        List<ByteBuffer> readableChunks = new ArrayList<>(this.chunks.size());
+        for (ByteBuffer chunk : this.chunks) {
+            ByteBuffer readableChunk = chunk.duplicate();
+            readableChunk.flip();
+            readableChunks.add(readableChunk);
+        }
+        return new ByteBufferInputStream(readableChunks);
+    }
+
+    /**
+     * Returns the chunks of these contents to their pool. Does nothing if they have already been released.
+     */
+    public void release() {
+        if (this.chunks != null) {
+            for (ByteBuffer chunk : this.chunks) {
+                this.chunkPool.release(chunk);
+            }
+            this.chunks = null;
+        }
+    }
+}
@@ -2,28 +2,40 @@ package com.opower.persistence.jpile.infile;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
-import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
 import com.opower.persistence.jpile.reflection.CachedProxy;
 import com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector;
-import org.joda.time.format.DateTimeFormat;
-import org.joda.time.format.DateTimeFormatter;
+import com.opower.persistence.jpile.util.Hex;
+import com.sun.management.HotSpotDiagnosticMXBean;
+import org.joda.time.Chronology;
+import org.joda.time.DateTimeZone;
+import org.joda.time.chrono.ISOChronology;
 
 import javax.persistence.Temporal;
-import java.io.ByteArrayInputStream;
+import javax.persistence.TemporalType;
 import java.io.InputStream;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.charset.CharacterCodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetEncoder;
 import java.nio.charset.CoderResult;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
+import java.nio.charset.MalformedInputException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
 import java.util.Set;
-import java.util.regex.Pattern;
 
 import static com.google.common.base.Preconditions.checkArgument;
 
@@ -75,15 +87,45 @@ public class InfileDataBuffer implements InfileRow {
             (byte) '\t',
             (byte) MYSQL_ESCAPE_CHAR,
             (byte) 26);
+    // Characters written by the numeric, temporal and hex append methods without going through the charset encoder
+    private static final String DIRECT_ASCII_CHARS = "0123456789-.: EINabcdefinty";
+    private static final String LONG_MIN_VALUE = Long.toString(Long.MIN_VALUE);
+    // Integral floating point values below this magnitude are printed as plain digits by Double/Float.toString
+    private static final double MAX_PLAIN_INTEGRAL = 1e7;
+    // Every integral double below this magnitude is exact, and so is its distance to the neighbouring integers
+    private static final double MAX_EXACT_INTEGRAL = 1L << 52;
+    // Powers of ten that are exactly representable as doubles
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    // 2^27 + 1, splits a double into two halves of 26 significant bits each
+    private static final double SPLIT_FACTOR = 134217729.0;
     private static final String TEMPORAL_TYPE_EXCEPTION =
-            "The Temporal.value should be TemporalType.DATE, TemporalType.TIME, or TemporalType.TIMESTAMP on method [%s]";
-    // This Pattern matches on all of the BYTES_NEEDING_ESCAPING
-    private static final Pattern ESCAPE_PATTERN = Pattern.compile("[\b\n\r\t\f\0\u001A\\\\]");
+            "The temporal type should be TemporalType.DATE, TemporalType.TIME, or TemporalType.TIMESTAMP, but was [%s]";
+    // Lookup table of the BYTES_NEEDING_ESCAPING, indexed by unsigned byte value
+    private static final boolean[] BYTE_ESCAPE_TABLE = new boolean[256];
+    // Lookup table of the ASCII characters escaped by append(String). These are all of the BYTES_NEEDING_ESCAPING
+    // plus form feed.
+    private static final boolean[] CHARS_NEEDING_ESCAPING = new boolean[128];
 
-    // Using Joda time which is thread safe
-    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormat.forPattern("yyyy-MM-dd");
-    private static final DateTimeFormatter TIME_FORMATTER = DateTimeFormat.forPattern("HH:mm:ss");
-    private static final DateTimeFormatter TIMESTAMP_FORMATTER = DateTimeFormat.forPattern("yyyy-MM-dd HH:mm:ss");
+    static {
+        for (byte b : BYTES_NEEDING_ESCAPING) {
+            BYTE_ESCAPE_TABLE[b & 0xFF] = true;
+        }
+        for (char c : "\b\n\r\t\f\0\u001A\\".toCharArray()) {
+            CHARS_NEEDING_ESCAPING[c] = true;
+        }
+    }
+
+    // Using Joda time which is thread safe. Local date and time fields are read from the UTC chronology after the
+    // default time zone offset has been applied.
+    private static final Chronology UTC_CHRONOLOGY = ISOChronology.getInstanceUTC();
+    private static final int MILLIS_PER_SECOND = 1000;
+    private static final int MILLIS_PER_MINUTE = 60 * MILLIS_PER_SECOND;
+    private static final int MILLIS_PER_HOUR = 60 * MILLIS_PER_MINUTE;
+    // Enough for "-yyyyyyyyy-MM-dd HH:mm:ss"
+    private static final int TEMPORAL_SCRATCH_SIZE = 32;
 
     /**
      * Returns new {@link Builder} instance to help customize
@@ -97,14 +139,25 @@ public class InfileDataBuffer implements InfileRow {
 
     // Utilities
     private final CharsetEncoder encoder;
+    private final boolean utf8;
+    private final boolean asciiCompatible;
+
+    // Scratch space used to escape strings for charsets other than UTF-8. Lazily initialized and grown as needed.
+    private char[] escapedChars;
+    private CharBuffer escapedCharBuffer;
+    // Scratch space used to format dates and times
+    private final byte[] temporalScratch = new byte[TEMPORAL_SCRATCH_SIZE];
 
     // Common byte sequences
     private final byte[] nullBytes;
     private final byte[] tabBytes;
     private final byte[] newlineBytes;
 
-    // Buffers
-    private final ByteBuffer infileBuffer;
+    // Buffers. The infile buffer is a chain of chunks taken from the chunk pool, the last one being written to.
+    private final InfileChunkPool chunkPool;
+    private final List<ByteBuffer> infileChunks = new ArrayList<>();
+    private final int infileBufferSize;
+    private int infileSize;
     private final ByteBuffer rowBuffer;
 
     private PersistenceAnnotationInspector persistenceAnnotationInspector =
@@ -115,11 +168,23 @@ public class InfileDataBuffer implements InfileRow {
      */
     @Deprecated
     public InfileDataBuffer(Charset charset, int infileBufferSize, int rowBufferSize) {
+        this(charset, infileBufferSize, rowBufferSize, null);
+    }
+
+    /**
+     * Creates a new buffer. Without a chunk pool the infile buffer is a single chunk from a pool private to this buffer,
+     * so it is kept across flushes. The private pool keeps every chunk it hands out, which is more than one only while
+     * detached contents are being sent.
+     */
+    private InfileDataBuffer(Charset charset, int infileBufferSize, int rowBufferSize, InfileChunkPool chunkPool) {
         Preconditions.checkNotNull(charset, "No charset set for encoding.");
         Preconditions.checkArgument(infileBufferSize > 0, "infileBufferSize should be positive");
         Preconditions.checkArgument(rowBufferSize > 0, "rowBufferSize should be positive");
 
         this.encoder = charset.newEncoder();
+        this.utf8 = Charsets.UTF_8.equals(charset);
+        this.asciiCompatible = Arrays.equals(DIRECT_ASCII_CHARS.getBytes(charset),
+                                             DIRECT_ASCII_CHARS.getBytes(Charsets.US_ASCII));
 
         // This not using the encoder because that API is tedious just to encode a few strings.
         this.tabBytes = "\t".getBytes(charset);
@@ -132,7 +197,41 @@ public class InfileDataBuffer implements InfileRow {
                                  "Cannot create a row buffer larger than the infile buffer.");
 
         this.rowBuffer = ByteBuffer.allocate(rowBufferSize);
-        this.infileBuffer = ByteBuffer.allocate(infileBufferSize);
+        this.infileBufferSize = infileBufferSize;
+        this.chunkPool = chunkPool != null
+                ? chunkPool : new InfileChunkPool(privateChunkSize(charset, infileBufferSize), Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the size of the chunks of a pool private to a buffer: the infile buffer plus the newline ending detached
+     * contents, so that a full buffer is detached without taking another chunk just for the newline.
+     */
+    private static int privateChunkSize(Charset charset, int infileBufferSize) {
+        return (int) Math.min((long) infileBufferSize + "\n".getBytes(charset).length, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the maximum amount of direct memory this JVM may allocate. This is {@code -XX:MaxDirectMemorySize} when it
+     * is set and the maximum heap size otherwise, which is the default the JVM itself uses.
+     * <p/>
+     * The option is read through {@code com.sun.management.HotSpotDiagnosticMXBean}, which only HotSpot based JVMs
+     * provide. On other JVMs, or when the bean cannot be loaded or read, the maximum heap size is returned, which may
+     * overstate the limit if {@code -XX:MaxDirectMemorySize} was set lower.
+     *
+     * @return the direct memory limit in bytes
+     */
+    public static long maxDirectMemory() {
+        try {
+            HotSpotDiagnosticMXBean diagnostics = ManagementFactory.getPlatformMXBean(HotSpotDiagnosticMXBean.class);
+            long maxDirectMemory = Long.parseLong(diagnostics.getVMOption("MaxDirectMemorySize").getValue());
+            if (maxDirectMemory > 0) {
+                return maxDirectMemory;
+            }
+        }
+        catch (RuntimeException | LinkageError e) {
+            // Not a HotSpot JVM, fall back to the default limit
+        }
+        return Runtime.getRuntime().maxMemory();
     }
 
     /**
@@ -159,8 +258,9 @@ public class InfileDataBuffer implements InfileRow {
      * @return {@code true} if the current row fits into the infile (and has been added)
      */
     public boolean addRowToInfile() {
-        boolean addNewline = this.infileBuffer.position() > 0;
-        if (this.infileBuffer.remaining() < (this.rowBuffer.position() + (addNewline ? this.newlineBytes.length : 0))) {
+        boolean addNewline = this.infileSize > 0;
+        int remaining = this.infileBufferSize - this.infileSize;
+        if (remaining < (this.rowBuffer.position() + (addNewline ? this.newlineBytes.length : 0))) {
             return false;
         }
 
@@ -170,12 +270,42 @@ public class InfileDataBuffer implements InfileRow {
         }
 
         if (addNewline) {
-            this.infileBuffer.put(this.newlineBytes);
+            putInfile(this.newlineBytes, 0, this.newlineBytes.length);
         }
-        this.infileBuffer.put(this.rowBuffer);
+        putInfile(this.rowBuffer.array(), this.rowBuffer.position(), this.rowBuffer.remaining());
+        this.rowBuffer.position(this.rowBuffer.limit());
         return true;
     }
 
+    /**
+     * Copies bytes to the end of the infile buffer, taking new chunks from the pool as the current one fills up.
+     */
+    private void putInfile(byte[] bytes, int offset, int length) {
+        int written = 0;
+        while (written < length) {
+            ByteBuffer chunk = this.infileChunks.isEmpty() ? null : this.infileChunks.get(this.infileChunks.size() - 1);
+            if (chunk == null || !chunk.hasRemaining()) {
+                chunk = this.chunkPool.acquire();
+                this.infileChunks.add(chunk);
+            }
+            int count = Math.min(length - written, chunk.remaining());
+            chunk.put(bytes, offset + written, count);
+            written += count;
+        }
+        this.infileSize += length;
+    }
+
+    /**
+     * Returns all chunks of the infile buffer to the pool.
+     */
+    private void releaseInfileChunks() {
+        for (ByteBuffer chunk : this.infileChunks) {
+            this.chunkPool.release(chunk);
+        }
+        this.infileChunks.clear();
+        this.infileSize = 0;
+    }
+
     /**
      * @return true if the rowBuffer is empty.
      */
@@ -191,15 +321,34 @@ public class InfileDataBuffer implements InfileRow {
      */
     // CR MB: Do we want to add status flags to this class to prevent undefined use?
     public InputStream asInputStream() {
-        this.infileBuffer.flip();
-        return new ByteArrayInputStream(this.infileBuffer.array(), 0, this.infileBuffer.limit());
+        return new InfileContents(this.chunkPool, this.infileChunks, this.infileSize).asInputStream();
+    }
+
+    /**
+     * Detaches the contents of the infile buffer, leaving it empty. The current row is kept. Rows added afterwards go to
+     * new chunks, so the detached contents can be read by another thread in the meantime. The caller <i>must</i>
+     * release the contents once they have been read.
+     * <p/>
+     * Unless they are empty, the detached contents end with a newline so that contents detached one after another can
+     * be read back to back as a single infile.
+     *
+     * @return the detached contents
+     */
+    public InfileContents detachInfile() {
+        if (this.infileSize > 0) {
+            putInfile(this.newlineBytes, 0, this.newlineBytes.length);
+        }
+        InfileContents contents = new InfileContents(this.chunkPool, this.infileChunks, this.infileSize);
+        this.infileChunks.clear();
+        this.infileSize = 0;
+        return contents;
     }
 
     /**
      * Resets this buffer, clearing both the current row and the infile buffer.
      */
     public void reset() {
-        this.infileBuffer.clear();
+        releaseInfileChunks();
         this.rowBuffer.clear();
     }
 
@@ -207,7 +356,7 @@ public class InfileDataBuffer implements InfileRow {
      * Clears the contents of the infile buffer, but maintains the state of the current row.
      */
     public void clear() {
-        this.infileBuffer.clear();
+        releaseInfileChunks();
     }
 
     /**
@@ -226,36 +375,300 @@ public class InfileDataBuffer implements InfileRow {
         return this;
     }
 
+    /**
+     * Copies runs of bytes that need no escaping in bulk and only inserts the escape character where needed.
+     *
+     * {@inheritDoc}
+     */
     @Override
     public final InfileRow append(byte[] bytes) {
         this.appendTabIfNeeded();
-        for (byte b : bytes) {
-            appendByte(b);
+        int runStart = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (BYTE_ESCAPE_TABLE[bytes[i] & 0xFF]) {
+                this.rowBuffer.put(bytes, runStart, i - runStart);
+                this.rowBuffer.put((byte) MYSQL_ESCAPE_CHAR);
+                runStart = i;
+            }
         }
+        this.rowBuffer.put(bytes, runStart, bytes.length - runStart);
+        return this;
+    }
+
+    /**
+     * Writes the hex digits straight into the row buffer's backing array. Hex digits never need escaping.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public final InfileRow appendHex(byte[] bytes) {
+        if (bytes == null) {
+            return this.appendNull();
+        }
+        if (!this.asciiCompatible) {
+            return this.append(Hex.encodeHexString(bytes));
+        }
+        this.appendTabIfNeeded();
+        checkRemaining(this.rowBuffer.remaining(), bytes.length * 2);
+        int offset = this.rowBuffer.arrayOffset();
+        int end = Hex.encodeHex(bytes, this.rowBuffer.array(), offset + this.rowBuffer.position());
+        this.rowBuffer.position(end - offset);
+        return this;
+    }
+
+    @Override
+    public final InfileRow append(long l) {
+        if (!this.asciiCompatible) {
+            return append(Long.toString(l));
+        }
+        this.appendTabIfNeeded();
+        appendDigits(l);
         return this;
     }
 
+    @Override
+    public final InfileRow append(int i) {
+        return append((long) i);
+    }
+
+    @Override
+    public final InfileRow append(short s) {
+        return append((long) s);
+    }
+
+    @Override
+    public final InfileRow append(double d) {
+        if (!this.asciiCompatible) {
+            return append(Double.toString(d));
+        }
+        this.appendTabIfNeeded();
+        if (isPlainIntegral(d)) {
+            appendDigits((long) d);
+            appendAscii(".0");
+        }
+        else {
+            appendAscii(Double.toString(d));
+        }
+        return this;
+    }
+
+    @Override
+    public final InfileRow append(float f) {
+        if (!this.asciiCompatible) {
+            return append(Float.toString(f));
+        }
+        this.appendTabIfNeeded();
+        if (isPlainIntegral(f)) {
+            appendDigits((long) f);
+            appendAscii(".0");
+        }
+        else {
+            appendAscii(Float.toString(f));
+        }
+        return this;
+    }
+
+    @Override
+    public final InfileRow append(char c) {
+        if (c >= 0x80 || !this.asciiCompatible) {
+            return append(String.valueOf(c));
+        }
+        this.appendTabIfNeeded();
+        if (CHARS_NEEDING_ESCAPING[c]) {
+            this.rowBuffer.put((byte) MYSQL_ESCAPE_CHAR);
+        }
+        this.rowBuffer.put((byte) c);
+        return this;
+    }
+
+    /**
+     * Checks whether {@link Double#toString(double)} would print the value as its integral digits followed by ".0".
+     * Negative zero is excluded because its sign would be lost.
+     */
+    private static boolean isPlainIntegral(double d) {
+        return d == (long) d && Math.abs(d) < MAX_PLAIN_INTEGRAL && (d != 0 || 1 / d > 0);
+    }
+
+    /**
+     * Writes the decimal digits of a long straight into the row buffer's backing array, from the least significant
+     * digit backwards.
+     *
+     * @param value the value to write
+     */
+    private void appendDigits(long value) {
+        if (value == Long.MIN_VALUE) {
+            appendAscii(LONG_MIN_VALUE);
+            return;
+        }
+        boolean negative = value < 0;
+        long magnitude = negative ? -value : value;
+        int length = digitCount(magnitude) + (negative ? 1 : 0);
+        checkRemaining(this.rowBuffer.remaining(), length);
+
+        byte[] array = this.rowBuffer.array();
+        int end = this.rowBuffer.arrayOffset() + this.rowBuffer.position() + length;
+        int position = end;
+        do {
+            array[--position] = (byte) ('0' + (int) (magnitude % 10));
+            magnitude /= 10;
+        } while (magnitude != 0);
+        if (negative) {
+            array[--position] = '-';
+        }
+        this.rowBuffer.position(end - this.rowBuffer.arrayOffset());
+    }
+
+    private static int digitCount(long magnitude) {
+        int count = 1;
+        long bound = 10;
+        // A long has at most 19 digits, and 10^19 would overflow
+        while (count < 19 && magnitude >= bound) {
+            bound *= 10;
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Writes a string that is known to consist only of ASCII characters which need no escaping, such as the output of
+     * {@link Double#toString(double)}. Only valid when the charset is ASCII compatible.
+     *
+     * @param s the string to write
+     */
+    private void appendAscii(String s) {
+        int length = s.length();
+        checkRemaining(this.rowBuffer.remaining(), length);
+        byte[] array = this.rowBuffer.array();
+        int position = this.rowBuffer.arrayOffset() + this.rowBuffer.position();
+        for (int i = 0; i < length; i++) {
+            array[position + i] = (byte) s.charAt(i);
+        }
+        this.rowBuffer.position(this.rowBuffer.position() + length);
+    }
+
     @Override
     public InfileRow append(Float number, int precision, int scale) {
+        checkPrecisionAndScale(precision, scale);
+        return (number == null) ? this.appendNull() : this.appendFixedPoint(number.doubleValue(), scale);
+    }
+
+    @Override
+    public InfileRow append(Double number, int precision, int scale) {
+        checkPrecisionAndScale(precision, scale);
+        return (number == null) ? this.appendNull() : this.appendFixedPoint(number.doubleValue(), scale);
+    }
+
+    @Override
+    public InfileRow append(BigDecimal number, int precision, int scale) {
+        checkPrecisionAndScale(precision, scale);
+        return (number == null) ? this.appendNull() : this.appendFixedPoint(number, scale);
+    }
+
+    private static void checkPrecisionAndScale(int precision, int scale) {
         checkArgument(scale > 0, "Scale (%s) should be greater than 0", scale);
         checkArgument(precision > 0, "Precision (%s) should be greater than 0", precision);
-        checkArgument(scale < precision, "Scale (%s) must be no larger than precision (%s)", scale, precision);
+        checkArgument(scale <= precision, "Scale (%s) must be no larger than precision (%s)", scale, precision);
+    }
 
-        String integer = Strings.repeat("#", precision - scale);
-        String fractional = Strings.repeat("#", scale);
+    /**
+     * Appends the exact binary value of a double rounded half-even to {@code scale} fractional digits, without trailing
+     * zeros. The rounding is done in double arithmetic whenever the scaled value fits into the 52 bit mantissa: the
+     * product {@code value * 10^scale} is computed together with its exact rounding error (Dekker's product), which
+     * decides the ties that the rounded product alone cannot. Everything else falls back to {@link BigDecimal}.
+     *
+     * @param value the value to append
+     * @param scale the number of digits to the right of the decimal point
+     * @return this row
+     */
+    private InfileRow appendFixedPoint(double value, int scale) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return this.append(Double.toString(value));
+        }
+        if (!this.asciiCompatible || scale >= POWERS_OF_TEN.length) {
+            return this.appendFixedPoint(new BigDecimal(value), scale);
+        }
+        double power = POWERS_OF_TEN[scale];
+        double product = value * power;
+        if (Math.abs(product) >= MAX_EXACT_INTEGRAL) {
+            return this.appendFixedPoint(new BigDecimal(value), scale);
+        }
 
-        DecimalFormatSymbols decimalFormatSymbols = new DecimalFormatSymbols();
-        decimalFormatSymbols.setDecimalSeparator('.');
-        DecimalFormat decimalFormat = new DecimalFormat(integer + "." + fractional);
-        decimalFormat.setGroupingUsed(false);
-        decimalFormat.setDecimalFormatSymbols(decimalFormatSymbols);
+        double rounded = Math.rint(product);
+        if (Math.abs(product - rounded) == 0.5) {
+            // The rounded product is exactly halfway between two integers. Let the error of the product decide which
+            // way the exact value leans, and only round to even if it is a true tie.
+            double error = productError(value, power, product);
+            if (error != 0) {
+                rounded = product + Math.copySign(0.5, error);
+            }
+        }
+        this.appendTabIfNeeded();
+        appendFixedPointDigits((long) rounded, scale);
+        return this;
+    }
 
-        String formatted = decimalFormat.format(number);
-        return append(formatted);
+    private InfileRow appendFixedPoint(BigDecimal value, int scale) {
+        BigDecimal rounded = value.setScale(scale, RoundingMode.HALF_EVEN);
+        if (this.asciiCompatible && rounded.precision() < 19) {
+            this.appendTabIfNeeded();
+            appendFixedPointDigits(rounded.unscaledValue().longValue(), scale);
+            return this;
+        }
+        return this.append(rounded.signum() == 0 ? "0" : rounded.stripTrailingZeros().toPlainString());
+    }
+
+    /**
+     * Computes the rounding error of {@code product = a * b} using Veltkamp splitting, so that {@code product + error}
+     * is exactly {@code a * b}.
+     */
+    private static double productError(double a, double b, double product) {
+        double aSplit = SPLIT_FACTOR * a;
+        double aHigh = aSplit - (aSplit - a);
+        double aLow = a - aHigh;
+        double bSplit = SPLIT_FACTOR * b;
+        double bHigh = bSplit - (bSplit - b);
+        double bLow = b - bHigh;
+        return ((aHigh * bHigh - product) + aHigh * bLow + aLow * bHigh) + aLow * bLow;
+    }
+
+    /**
+     * Writes {@code unscaled * 10^-scale} straight into the row buffer's backing array. Trailing fractional zeros are
+     * dropped, and the integer part always has at least one digit.
+     *
+     * @param unscaled the unscaled value, may not be {@link Long#MIN_VALUE}
+     * @param scale the number of digits of {@code unscaled} to the right of the decimal point
+     */
+    private void appendFixedPointDigits(long unscaled, int scale) {
+        long value = unscaled;
+        int fractionDigits = scale;
+        while (fractionDigits > 0 && value % 10 == 0) {
+            value /= 10;
+            fractionDigits--;
+        }
+        boolean negative = value < 0;
+        long magnitude = negative ? -value : value;
+        int digits = Math.max(digitCount(magnitude), fractionDigits + 1);
+        int length = digits + (fractionDigits > 0 ? 1 : 0) + (negative ? 1 : 0);
+        checkRemaining(this.rowBuffer.remaining(), length);
+
+        byte[] array = this.rowBuffer.array();
+        int end = this.rowBuffer.arrayOffset() + this.rowBuffer.position() + length;
+        int position = end;
+        for (int i = 0; i < digits; i++) {
+            if (i == fractionDigits && i > 0) {
+                array[--position] = '.';
+            }
+            array[--position] = (byte) ('0' + (int) (magnitude % 10));
+            magnitude /= 10;
+        }
+        if (negative) {
+            array[--position] = '-';
+        }
+        this.rowBuffer.position(end - this.rowBuffer.arrayOffset());
     }
 
     private void appendByte(byte b) {
-        if (BYTES_NEEDING_ESCAPING.contains(b)) {
+        if (BYTE_ESCAPE_TABLE[b & 0xFF]) {
             this.rowBuffer.put((byte) MYSQL_ESCAPE_CHAR);
         }
         this.rowBuffer.put(b);
@@ -267,9 +680,97 @@ public class InfileDataBuffer implements InfileRow {
             return this.appendNull();
         }
         this.appendTabIfNeeded();
-        String escapedStr = ESCAPE_PATTERN.matcher(s).replaceAll("\\\\$0");
+        if (this.utf8) {
+            appendEscapedUtf8(s);
+        }
+        else {
+            appendEscapedEncoded(s);
+        }
+        return this;
+    }
+
+    /**
+     * Escapes and UTF-8 encodes a string in a single pass, writing straight into the row buffer's backing array.
+     *
+     * @param s the string to append
+     * @throws BufferOverflowException if the encoded string does not fit into the row buffer
+     */
+    private void appendEscapedUtf8(String s) {
+        byte[] array = this.rowBuffer.array();
+        int offset = this.rowBuffer.arrayOffset();
+        int position = offset + this.rowBuffer.position();
+        int limit = offset + this.rowBuffer.limit();
+        int length = s.length();
+
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                if (CHARS_NEEDING_ESCAPING[c]) {
+                    checkRemaining(limit - position, 2);
+                    array[position++] = (byte) MYSQL_ESCAPE_CHAR;
+                }
+                else {
+                    checkRemaining(limit - position, 1);
+                }
+                array[position++] = (byte) c;
+            }
+            else if (c < 0x800) {
+                checkRemaining(limit - position, 2);
+                array[position++] = (byte) (0xC0 | (c >> 6));
+                array[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+            else if (Character.isSurrogate(c)) {
+                if (!Character.isHighSurrogate(c) || i + 1 == length || !Character.isLowSurrogate(s.charAt(i + 1))) {
+                    throw new Error(new MalformedInputException(1));
+                }
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                checkRemaining(limit - position, 4);
+                array[position++] = (byte) (0xF0 | (codePoint >> 18));
+                array[position++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                array[position++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                array[position++] = (byte) (0x80 | (codePoint & 0x3F));
+            }
+            else {
+                checkRemaining(limit - position, 3);
+                array[position++] = (byte) (0xE0 | (c >> 12));
+                array[position++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                array[position++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        this.rowBuffer.position(position - offset);
+    }
 
-        CoderResult result = this.encoder.encode(CharBuffer.wrap(escapedStr), this.rowBuffer, false);
+    private static void checkRemaining(int remaining, int needed) {
+        if (remaining < needed) {
+            throw new BufferOverflowException();
+        }
+    }
+
+    /**
+     * Escapes a string into a reusable char buffer and encodes it using the configured charset. Used for all charsets
+     * other than UTF-8.
+     *
+     * @param s the string to append
+     */
+    private void appendEscapedEncoded(String s) {
+        int length = s.length();
+        if (this.escapedChars == null || this.escapedChars.length < length * 2) {
+            this.escapedChars = new char[Math.max(length * 2, DEFAULT_ROW_BUFFER_SIZE)];
+            this.escapedCharBuffer = CharBuffer.wrap(this.escapedChars);
+        }
+
+        int escapedLength = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80 && CHARS_NEEDING_ESCAPING[c]) {
+                this.escapedChars[escapedLength++] = MYSQL_ESCAPE_CHAR;
+            }
+            this.escapedChars[escapedLength++] = c;
+        }
+        this.escapedCharBuffer.clear();
+        this.escapedCharBuffer.limit(escapedLength);
+
+        CoderResult result = this.encoder.encode(this.escapedCharBuffer, this.rowBuffer, false);
         if (!result.isUnderflow()) {
             try {
                 result.throwException();
@@ -278,7 +779,6 @@ public class InfileDataBuffer implements InfileRow {
                 throw new Error(e);
             }
         }
-        return this;
     }
 
     @Override
@@ -286,20 +786,140 @@ public class InfileDataBuffer implements InfileRow {
         Temporal temporal = this.persistenceAnnotationInspector.findAnnotation(method, Temporal.class);
         Preconditions.checkNotNull(temporal, "A temporal annotation must be provided on method [%s]", method);
 
-        switch (temporal.value()) {
+        return append(d, temporal.value());
+    }
+
+    @Override
+    public final InfileRow append(Date d, TemporalType temporalType) {
+        Preconditions.checkNotNull(temporalType, "temporalType cannot be null");
+        return (d == null) ? this.appendNull() : this.appendInstant(d.getTime(), temporalType);
+    }
+
+    @Override
+    public final InfileRow append(LocalDate date) {
+        if (date == null) {
+            return this.appendNull();
+        }
+        return appendTemporalFields(TemporalType.DATE, date.getYear(), date.getMonthValue(), date.getDayOfMonth(), 0, 0, 0);
+    }
+
+    @Override
+    public final InfileRow append(LocalTime time) {
+        if (time == null) {
+            return this.appendNull();
+        }
+        return appendTemporalFields(TemporalType.TIME, 0, 0, 0, time.getHour(), time.getMinute(), time.getSecond());
+    }
+
+    @Override
+    public final InfileRow append(LocalDateTime dateTime) {
+        if (dateTime == null) {
+            return this.appendNull();
+        }
+        return appendTemporalFields(TemporalType.TIMESTAMP,
+                                    dateTime.getYear(), dateTime.getMonthValue(), dateTime.getDayOfMonth(),
+                                    dateTime.getHour(), dateTime.getMinute(), dateTime.getSecond());
+    }
+
+    @Override
+    public final InfileRow append(Instant instant) {
+        return (instant == null)
+                ? this.appendNull()
+                : this.appendInstant(instant.getEpochSecond() * MILLIS_PER_SECOND, TemporalType.TIMESTAMP);
+    }
+
+    @Override
+    public final InfileRow append(OffsetDateTime dateTime) {
+        return (dateTime == null)
+                ? this.appendNull()
+                : this.appendInstant(dateTime.toEpochSecond() * MILLIS_PER_SECOND, TemporalType.TIMESTAMP);
+    }
+
+    /**
+     * Appends an instant as local date and/or time in the default time zone, the same way as {@link Date} values.
+     *
+     * @param epochMillis the instant in milliseconds since the epoch
+     * @param temporalType which fields of the instant to append
+     * @return this row
+     */
+    private InfileRow appendInstant(long epochMillis, TemporalType temporalType) {
+        long localMillis = epochMillis + DateTimeZone.getDefault().getOffset(epochMillis);
+        int millisOfDay = UTC_CHRONOLOGY.millisOfDay().get(localMillis);
+        return appendTemporalFields(temporalType,
+                                    UTC_CHRONOLOGY.year().get(localMillis),
+                                    UTC_CHRONOLOGY.monthOfYear().get(localMillis),
+                                    UTC_CHRONOLOGY.dayOfMonth().get(localMillis),
+                                    millisOfDay / MILLIS_PER_HOUR,
+                                    millisOfDay / MILLIS_PER_MINUTE % 60,
+                                    millisOfDay / MILLIS_PER_SECOND % 60);
+    }
+
+    /**
+     * Formats date and/or time fields as {@code yyyy-MM-dd}, {@code HH:mm:ss} or {@code yyyy-MM-dd HH:mm:ss} into a
+     * reusable scratch array, and then copies them into the row. Fields which are not part of the temporal type are
+     * ignored.
+     */
+    private InfileRow appendTemporalFields(TemporalType temporalType,
+                                           int year, int month, int day, int hour, int minute, int second) {
+        byte[] scratch = this.temporalScratch;
+        int length = 0;
+        switch (temporalType) {
             case DATE:
-                return appendDate(d, DATE_FORMATTER);
+                length = writeDate(scratch, 0, year, month, day);
+                break;
             case TIME:
-                return appendDate(d, TIME_FORMATTER);
+                length = writeTime(scratch, 0, hour, minute, second);
+                break;
             case TIMESTAMP:
-                return appendDate(d, TIMESTAMP_FORMATTER);
+                length = writeDate(scratch, 0, year, month, day);
+                scratch[length++] = ' ';
+                length = writeTime(scratch, length, hour, minute, second);
+                break;
             default:
-                throw new IllegalArgumentException(String.format(TEMPORAL_TYPE_EXCEPTION, method));
+                throw new IllegalArgumentException(String.format(TEMPORAL_TYPE_EXCEPTION, temporalType));
+        }
+
+        if (!this.asciiCompatible) {
+            return this.append(new String(scratch, 0, length, Charsets.US_ASCII));
         }
+        this.appendTabIfNeeded();
+        this.rowBuffer.put(scratch, 0, length);
+        return this;
     }
 
-    private InfileRow appendDate(Date d, DateTimeFormatter dateTimeFormatter) {
-        return (d == null) ? this.appendNull() : this.append(dateTimeFormatter.print(d.getTime()));
+    private static int writeDate(byte[] scratch, int offset, int year, int month, int day) {
+        int position = offset;
+        if (year < 0) {
+            scratch[position++] = '-';
+        }
+        position = writePadded(scratch, position, Math.abs(year), 4);
+        scratch[position++] = '-';
+        position = writePadded(scratch, position, month, 2);
+        scratch[position++] = '-';
+        return writePadded(scratch, position, day, 2);
+    }
+
+    private static int writeTime(byte[] scratch, int offset, int hour, int minute, int second) {
+        int position = writePadded(scratch, offset, hour, 2);
+        scratch[position++] = ':';
+        position = writePadded(scratch, position, minute, 2);
+        scratch[position++] = ':';
+        return writePadded(scratch, position, second, 2);
+    }
+
+    /**
+     * Writes the digits of a non-negative value, left padded with zeros to at least {@code width} digits.
+     *
+     * @return the position after the last digit
+     */
+    private static int writePadded(byte[] scratch, int offset, int value, int width) {
+        int length = Math.max(digitCount(value), width);
+        int remaining = value;
+        for (int i = offset + length - 1; i >= offset; i--) {
+            scratch[i] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        }
+        return offset + length;
     }
 
     @Override
@@ -327,10 +947,17 @@ public class InfileDataBuffer implements InfileRow {
     /**
      * Checks that buffer is empty.
      *
-     * @return true if {@link #infileBuffer} is empty. false otherwise
+     * @return true if the infile buffer is empty. false otherwise
      */
     public boolean isEmptyInfileBuffer() {
-        return this.infileBuffer.position() == 0;
+        return this.infileSize == 0;
+    }
+
+    /**
+     * @return the number of bytes in the infile buffer
+     */
+    public int getInfileSize() {
+        return this.infileSize;
     }
 
     /**
@@ -351,7 +978,12 @@ public class InfileDataBuffer implements InfileRow {
 
     /* Package private scope for testing purposes */
     int getInfileBufferSize() {
-        return this.infileBuffer.capacity();
+        return this.infileBufferSize;
+    }
+
+    /* Package private scope for testing purposes */
+    boolean isDirectInfileBuffer() {
+        return this.chunkPool.isDirect();
     }
 
     /* Package private scope for testing purposes */
@@ -369,6 +1001,8 @@ public class InfileDataBuffer implements InfileRow {
         private Charset charset;
         private int infileBufferSize;
         private int rowBufferSize;
+        private boolean directInfileBuffer;
+        private InfileChunkPool chunkPool;
 
         private Builder() {
             this.charset = DEFAULT_CHARSET;
@@ -393,8 +1027,35 @@ public class InfileDataBuffer implements InfileRow {
             return this;
         }
 
+        /**
+         * Toggles allocating the infile buffer off-heap. A direct buffer keeps large infile buffers out of the garbage
+         * collected heap and is read straight into the driver's buffers without an intermediate heap copy. Direct buffers count
+         * against {@code -XX:MaxDirectMemorySize}, see {@link InfileDataBuffer#maxDirectMemory()}. The row buffer always
+         * stays on the heap.
+         */
+        public Builder useDirectInfileBuffer(boolean directInfileBuffer) {
+            this.directInfileBuffer = directInfileBuffer;
+            return this;
+        }
+
+        /**
+         * Builds the infile buffer from chunks of the given pool instead of one contiguous buffer. The buffer takes chunks
+         * as rows are added, up to {@code infileBufferSize} bytes, and returns them when it is cleared. Whether chunks
+         * are direct is decided by the pool.
+         */
+        public Builder withChunkPool(InfileChunkPool chunkPool) {
+            this.chunkPool = Preconditions.checkNotNull(chunkPool, "chunkPool should be defined");
+            return this;
+        }
+
         public InfileDataBuffer build() {
-            return new InfileDataBuffer(this.charset, this.infileBufferSize, this.rowBufferSize);
+            Preconditions.checkState(this.chunkPool == null || !this.directInfileBuffer,
+                                     "Direct chunks are configured on the chunk pool");
+            InfileChunkPool pool = this.chunkPool;
+            if (pool == null && this.directInfileBuffer) {
+                pool = new InfileChunkPool(privateChunkSize(this.charset, this.infileBufferSize), 1, true);
+            }
+            return new InfileDataBuffer(this.charset, this.infileBufferSize, this.rowBufferSize, pool);
         }
     }
 
@@ -0,0 +1,163 @@
+package com.opower.persistence.jpile.infile;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A bounded pipe of {@link InfileContents} read as a single {@link InputStream}. A producer keeps detaching the contents
+ * of an infile buffer and sending them down the pipe while a {@code LOAD DATA} statement reads them on another thread, so
+ * one statement can load any number of rows. The stream ends once the producer calls {@link #finish(long, TimeUnit)}
+ * and everything sent before has been read.
+ * <p/>
+ * Contents are released as soon as they have been read. Closing the stream releases all contents that were not read.
+ * <p/>
+ * Instances of this class are safe for use by one producer thread and one consumer thread.
+ *
+ * @author agent
+ */
+public class InfilePipe extends InputStream {
+    // Marks the end of the stream
+    private static final InfileContents END = new InfileContents(null, ImmutableList.<ByteBuffer>of(), 0);
+
+    private final BlockingQueue<InfileContents> queue;
+    private volatile boolean closed;
+
+    // Consumer state
+    private InfileContents current;
+    private InputStream currentStream;
+    private boolean ended;
+
+    /**
+     * @param capacity the maximum number of contents sent but not yet read
+     */
+    public InfilePipe(int capacity) {
+        Preconditions.checkArgument(capacity > 0, "capacity should be positive");
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Sends contents down the pipe, waiting up to the given time for room. Contents sent after the stream has been
+     * closed are released right away.
+     *
+     * @param contents the contents to send
+     * @param timeout  how long to wait for room
+     * @param unit     the unit of {@code timeout}
+     * @return {@code false} if there was no room in time, in which case the caller still owns the contents
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean send(InfileContents contents, long timeout, TimeUnit unit) throws InterruptedException {
+        Preconditions.checkNotNull(contents, "contents cannot be null");
+        if (this.closed) {
+            contents.release();
+            return true;
+        }
+        if (!this.queue.offer(contents, timeout, unit)) {
+            return false;
+        }
+        if (this.closed) {
+            // The stream was closed while offering, possibly after it released everything queued
+            releaseQueued();
+        }
+        return true;
+    }
+
+    /**
+     * Ends the stream after all contents sent so far, waiting up to the given time for room.
+     *
+     * @param timeout how long to wait for room
+     * @param unit    the unit of {@code timeout}
+     * @return {@code false} if there was no room in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean finish(long timeout, TimeUnit unit) throws InterruptedException {
+        return this.closed || this.queue.offer(END, timeout, unit);
+    }
+
+    /**
+     * @return the stream of the contents to read from next, or {@code null} at the end of the stream
+     */
+    private InputStream currentStream() throws InterruptedIOException {
+        if (this.currentStream == null && !this.ended && !this.closed) {
+            try {
+                this.current = this.queue.take();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for infile contents");
+            }
+            if (this.current == END) {
+                this.current = null;
+                this.ended = true;
+            }
+            else {
+                this.currentStream = this.current.asInputStream();
+            }
+        }
+        return this.currentStream;
+    }
+
+    /**
+     * Releases the contents that have been read completely.
+     */
+    private void releaseCurrent() {
+        this.current.release();
+        this.current = null;
+        this.currentStream = null;
+    }
+
+    @Override
+    public int read() throws IOException {
+        for (InputStream stream = currentStream(); stream != null; stream = currentStream()) {
+            int read = stream.read();
+            if (read != -1) {
+                return read;
+            }
+            releaseCurrent();
+        }
+        return -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        for (InputStream stream = currentStream(); stream != null; stream = currentStream()) {
+            int read = stream.read(bytes, offset, length);
+            if (read != -1) {
+                return read;
+            }
+            releaseCurrent();
+        }
+        return -1;
+    }
+
+    @Override
+    public void close() {
+        this.closed = true;
+        if (this.current != null) {
+            releaseCurrent();
+        }
+        releaseQueued();
+    }
+
+    /**
+     * Releases all contents in the queue. Each of them is taken from the queue once, so it is only released once even
+     * if the producer and consumer threads both call this.
+     */
+    private void releaseQueued() {
+        for (InfileContents contents = this.queue.poll(); contents != null; contents = this.queue.poll()) {
+            if (contents != END) {
+                contents.release();
+            }
+        }
+    }
+}
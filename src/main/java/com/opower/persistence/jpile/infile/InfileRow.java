@@ -1,6 +1,13 @@
 package com.opower.persistence.jpile.infile;
 
+import javax.persistence.TemporalType;
 import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
 import java.util.Date;
 
 /**
@@ -35,6 +42,64 @@ public interface InfileRow {
      */
     InfileRow append(byte[] bytes);
 
+    /**
+     * Adds the hexadecimal representation of a byte array to this row before returning said row. Two lowercase hex
+     * digits are added for every byte.
+     *
+     * @param bytes to add
+     * @return this row
+     */
+    InfileRow appendHex(byte[] bytes);
+
+    /**
+     * Adds the decimal representation of a long to this row before returning said row.
+     *
+     * @param l to add
+     * @return this row
+     */
+    InfileRow append(long l);
+
+    /**
+     * Adds the decimal representation of an int to this row before returning said row.
+     *
+     * @param i to add
+     * @return this row
+     */
+    InfileRow append(int i);
+
+    /**
+     * Adds the decimal representation of a short to this row before returning said row.
+     *
+     * @param s to add
+     * @return this row
+     */
+    InfileRow append(short s);
+
+    /**
+     * Adds a double to this row before returning said row. The value is formatted like {@link Double#toString(double)}.
+     *
+     * @param d to add
+     * @return this row
+     */
+    InfileRow append(double d);
+
+    /**
+     * Adds a float to this row before returning said row. The value is formatted like {@link Float#toString(float)}.
+     *
+     * @param f to add
+     * @return this row
+     */
+    InfileRow append(float f);
+
+    /**
+     * Adds a single character to this row before returning said row. Implementations are responsible for handling
+     * encoding.
+     *
+     * @param c to add
+     * @return this row
+     */
+    InfileRow append(char c);
+
     /**
      * Adds a Float to this row before returning said row. Implementations are responsible for formatting.
      *
@@ -45,6 +110,26 @@ public interface InfileRow {
      */
     InfileRow append(Float number, int precision, int scale);
 
+    /**
+     * Adds a Double to this row before returning said row. Implementations are responsible for formatting.
+     *
+     * @param number to add
+     * @param precision the maximum number of digits
+     * @param scale the number of digits to the right of the decimal point
+     * @return this row
+     */
+    InfileRow append(Double number, int precision, int scale);
+
+    /**
+     * Adds a BigDecimal to this row before returning said row. Implementations are responsible for formatting.
+     *
+     * @param number to add
+     * @param precision the maximum number of digits
+     * @param scale the number of digits to the right of the decimal point
+     * @return this row
+     */
+    InfileRow append(BigDecimal number, int precision, int scale);
+
     /**
      * Adds a String to this row before returning said row. Implementations are responsible for handling encoding.
      *
@@ -63,6 +148,57 @@ public interface InfileRow {
      */
     InfileRow append(Date d, Method method);
 
+    /**
+     * Adds a date to this row before returning said row, formatted in the default time zone according to the given
+     * temporal type. Prefer this method when the temporal type of a column is already known.
+     *
+     * @param d to add
+     * @param temporalType which parts of the date to add
+     * @return this row
+     */
+    InfileRow append(Date d, TemporalType temporalType);
+
+    /**
+     * Adds a local date to this row as {@code yyyy-MM-dd} before returning said row.
+     *
+     * @param date to add
+     * @return this row
+     */
+    InfileRow append(LocalDate date);
+
+    /**
+     * Adds a local time to this row as {@code HH:mm:ss} before returning said row.
+     *
+     * @param time to add
+     * @return this row
+     */
+    InfileRow append(LocalTime time);
+
+    /**
+     * Adds a local date and time to this row as {@code yyyy-MM-dd HH:mm:ss} before returning said row.
+     *
+     * @param dateTime to add
+     * @return this row
+     */
+    InfileRow append(LocalDateTime dateTime);
+
+    /**
+     * Adds an instant to this row as {@code yyyy-MM-dd HH:mm:ss} in the default time zone before returning said row.
+     *
+     * @param instant to add
+     * @return this row
+     */
+    InfileRow append(Instant instant);
+
+    /**
+     * Adds a date and time with an offset to this row as {@code yyyy-MM-dd HH:mm:ss} in the default time zone before
+     * returning said row.
+     *
+     * @param dateTime to add
+     * @return this row
+     */
+    InfileRow append(OffsetDateTime dateTime);
+
     /**
      * Adds a boolean to this row before returning said row.
      */
@@ -1,10 +1,14 @@
 package com.opower.persistence.jpile.infile;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.opower.persistence.jpile.infile.driver.C3P0JdbcDriverSupport;
 import com.opower.persistence.jpile.infile.driver.HikariJdbcDriverSupport;
 import com.opower.persistence.jpile.infile.driver.MysqlJdbcDriverSupport;
 import com.opower.persistence.jpile.jdbc.StatementCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.InputStream;
 import java.sql.SQLException;
@@ -26,6 +30,12 @@ import java.util.List;
  * to access the underlying MySQL statement. This class hides all of this tomfoolery behind a very
  * simple facade.
  * <p/>
+ * The input stream is read while the statement executes. It may be an {@link InfilePipe} that is still being fed by
+ * another thread, in which case the statement lasts until the pipe is finished.
+ * <p/>
+ * The driver support of a statement is looked up once per statement class. The input stream is removed from the
+ * statement once it has been executed, so the statement can be reused for other flushes.
+ * <p/>
  * Instances of this class are safe for use by multiple threads.
  *
  * @author s-m
@@ -34,10 +44,15 @@ import java.util.List;
  * @since 1.0
  */
 public class InfileStatementCallback implements StatementCallback<List<Exception>> {
+    private static final Logger LOGGER = LoggerFactory.getLogger(InfileStatementCallback.class);
 
     private static final List<JdbcDriverSupport> SUPPORTED_DRIVERS =
             ImmutableList.of(new HikariJdbcDriverSupport(), new C3P0JdbcDriverSupport(), new MysqlJdbcDriverSupport());
 
+    // The first supported driver accepting statements of a class. Weak keys, so statement classes can be unloaded.
+    private static final Cache<Class<?>, JdbcDriverSupport> DRIVER_SUPPORT_BY_CLASS =
+            CacheBuilder.newBuilder().weakKeys().build();
+
     // SQL statement
     private String loadInfileSql;
     // Source of data.
@@ -56,11 +71,48 @@ public class InfileStatementCallback implements StatementCallback<List<Exception
 
     @Override
     public List<Exception> doInStatement(Statement statement) throws SQLException {
+        JdbcDriverSupport support = findDriverSupport(statement);
+        support.doWithStatement(statement, this.inputStream);
+        List<Exception> warnings;
+        try {
+            statement.execute(this.loadInfileSql);
+            warnings = extractWarnings(statement.getWarnings());
+        }
+        catch (SQLException | RuntimeException e) {
+            clearInputStream(support, statement, e);
+            throw e;
+        }
+        clearInputStream(support, statement, null);
+        return warnings;
+    }
+
+    /**
+     * Removes the input stream from the statement, so the contents are not kept reachable from a statement that is reused.
+     * A failure to do so is added to the failure of the load, if any, so it does not hide it, and is logged otherwise.
+     */
+    private static void clearInputStream(JdbcDriverSupport support, Statement statement, Exception loadFailure) {
+        try {
+            support.doWithStatement(statement, null);
+        }
+        catch (SQLException | RuntimeException e) {
+            if (loadFailure != null) {
+                loadFailure.addSuppressed(e);
+            }
+            else {
+                LOGGER.warn("Could not remove the infile input stream from the statement.", e);
+            }
+        }
+    }
+
+    private static JdbcDriverSupport findDriverSupport(Statement statement) {
+        JdbcDriverSupport cachedSupport = DRIVER_SUPPORT_BY_CLASS.getIfPresent(statement.getClass());
+        if (cachedSupport != null) {
+            return cachedSupport;
+        }
         for (JdbcDriverSupport support : SUPPORTED_DRIVERS) {
             if (support.accept(statement)) {
-                support.doWithStatement(statement, this.inputStream);
-                statement.execute(this.loadInfileSql);
-                return extractWarnings(statement.getWarnings());
+                DRIVER_SUPPORT_BY_CLASS.put(statement.getClass(), support);
+                return support;
             }
         }
         throw new RuntimeException(String.format("Statement of type [%s] is not supported.", statement.getClass().getName()));
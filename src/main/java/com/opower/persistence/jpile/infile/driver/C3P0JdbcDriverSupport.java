@@ -22,6 +22,8 @@ public class C3P0JdbcDriverSupport implements InfileStatementCallback.JdbcDriver
     private static final String INFILE_MUTATOR_METHOD = "setLocalInfileInputStream";
 
     private static Class<?> targetInterface;
+    // Looked up on first use rather than on every flush. Racing threads look up the same method.
+    private static volatile Method infileMutator;
 
     static {
         try {
@@ -41,12 +43,21 @@ public class C3P0JdbcDriverSupport implements InfileStatementCallback.JdbcDriver
     @Override
     public void doWithStatement(Statement statement, InputStream inputStream) throws SQLException {
         try {
-            Method m = com.mysql.jdbc.Statement.class.getMethod(INFILE_MUTATOR_METHOD, InputStream.class);
             C3P0ProxyStatement proxyStatement = (C3P0ProxyStatement) statement;
-            proxyStatement.rawStatementOperation(m, C3P0ProxyStatement.RAW_STATEMENT, new Object[]{inputStream});
+            proxyStatement.rawStatementOperation(infileMutator(), C3P0ProxyStatement.RAW_STATEMENT,
+                                                 new Object[]{inputStream});
         }
         catch (ReflectiveOperationException e) {
             throw Throwables.propagate(e);
         }
     }
+
+    private static Method infileMutator() throws NoSuchMethodException {
+        Method mutator = infileMutator;
+        if (mutator == null) {
+            mutator = com.mysql.jdbc.Statement.class.getMethod(INFILE_MUTATOR_METHOD, InputStream.class);
+            infileMutator = mutator;
+        }
+        return mutator;
+    }
 }
@@ -0,0 +1,35 @@
+package com.opower.persistence.jpile.infile.events;
+
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * This event indicates that a batch of objects passed to {@code persist} was saved to the infile buffers. It is only
+ * fired {@link EventFirePoint#AFTER} the batch, and only if a subscriber has a method taking this event.
+ *
+ * @author agent
+ * @see LoadListener#afterBatch(List)
+ */
+public class BatchEvent extends EventBase {
+
+    private final List<Object> entities;
+
+    /**
+     * Constructor
+     *
+     * @param source object that fired this event.
+     * @param entities entity instances that were saved to buffers, in the order they were saved.
+     */
+    public BatchEvent(Object source, List<Object> entities) {
+        super(source, EventFirePoint.AFTER);
+        this.entities = checkNotNull(entities, "Entities cannot be null");
+    }
+
+    /**
+     * @return entity instances that were saved to buffers, in the order they were saved.
+     */
+    public List<Object> getEntities() {
+        return this.entities;
+    }
+}
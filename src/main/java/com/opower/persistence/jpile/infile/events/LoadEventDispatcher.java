@@ -0,0 +1,204 @@
+package com.opower.persistence.jpile.infile.events;
+
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Dispatches the events of loaders to typed {@link LoadListener}s and to an {@link EventBus}. Listeners are called
+ * directly. Events are only created and posted to the event bus once something may be subscribed to it, that is once
+ * {@link #subscribe(Object)} or {@link #setEventBus(EventBus)} has been called, as the event bus cannot tell whether
+ * it has subscribers. Without listeners and subscribers, firing an event does nothing and allocates nothing.
+ * <p/>
+ * Collecting the entities of a batch costs memory, so {@link #hasBatchListeners()} tells whether anyone wants them: a
+ * listener implementing {@link LoadListener#afterBatch(List)}, or a subscriber with a {@link Subscribe} method taking a
+ * {@link BatchEvent} that was subscribed through {@link #subscribe(Object)}.
+ * <p/>
+ * Instances of this class are safe for use by multiple threads. Listeners added while events are being fired get the
+ * events fired afterwards.
+ *
+ * @author agent
+ */
+public final class LoadEventDispatcher {
+    private static final LoadListener[] NO_LISTENERS = new LoadListener[0];
+
+    // Copied on write, so firing needs no lock
+    private volatile LoadListener[] listeners = NO_LISTENERS;
+    private volatile EventBus eventBus;
+    private volatile boolean postToEventBus = false;
+    // Guarded by this
+    private final Set<Object> batchSubscribers = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+    // Whether batchSubscribers is not empty, read without holding the lock
+    private volatile boolean batchEventsSubscribed = false;
+    private volatile boolean batchListeners = false;
+
+    /**
+     * @param eventBus the event bus to post to once something subscribes to it
+     */
+    public LoadEventDispatcher(EventBus eventBus) {
+        this.eventBus = checkNotNull(eventBus, "Event bus cannot be null");
+    }
+
+    /**
+     * Sets the event bus to post to. Events are posted to it from now on, as it may have subscribers already, except
+     * {@link BatchEvent}s, which are only posted for subscribers added through {@link #subscribe(Object)}.
+     */
+    public void setEventBus(EventBus eventBus) {
+        this.eventBus = checkNotNull(eventBus, "Event bus cannot be null");
+        this.postToEventBus = true;
+    }
+
+    /**
+     * @see EventBus#register(Object)
+     */
+    public void subscribe(Object subscriber) {
+        this.eventBus.register(subscriber);
+        this.postToEventBus = true;
+        if (subscribesToBatches(subscriber)) {
+            synchronized (this) {
+                this.batchSubscribers.add(subscriber);
+                updateBatchListeners();
+            }
+        }
+    }
+
+    /**
+     * @see EventBus#unregister(Object)
+     */
+    public void unsubscribe(Object subscriber) {
+        this.eventBus.unregister(subscriber);
+        synchronized (this) {
+            this.batchSubscribers.remove(subscriber);
+            updateBatchListeners();
+        }
+    }
+
+    public synchronized void addListener(LoadListener listener) {
+        checkNotNull(listener, "Listener cannot be null");
+        LoadListener[] newListeners = Arrays.copyOf(this.listeners, this.listeners.length + 1);
+        newListeners[this.listeners.length] = listener;
+        this.listeners = newListeners;
+        updateBatchListeners();
+    }
+
+    /**
+     * Removes a listener. Does nothing if it was not added.
+     */
+    public synchronized void removeListener(LoadListener listener) {
+        LoadListener[] currentListeners = this.listeners;
+        for (int i = 0; i < currentListeners.length; i++) {
+            if (currentListeners[i] == listener) {
+                LoadListener[] newListeners = new LoadListener[currentListeners.length - 1];
+                System.arraycopy(currentListeners, 0, newListeners, 0, i);
+                System.arraycopy(currentListeners, i + 1, newListeners, i, newListeners.length - i);
+                this.listeners = newListeners;
+                updateBatchListeners();
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return whether events fired now reach any listener or event bus
+     */
+    public boolean hasListeners() {
+        return this.postToEventBus || this.listeners.length > 0;
+    }
+
+    /**
+     * @return whether anyone wants the entities of batches, so they need to be collected
+     */
+    public boolean hasBatchListeners() {
+        return this.batchListeners;
+    }
+
+    // Guarded by this
+    private void updateBatchListeners() {
+        this.batchEventsSubscribed = !this.batchSubscribers.isEmpty();
+        boolean wantsBatches = this.batchEventsSubscribed;
+        for (LoadListener listener : this.listeners) {
+            wantsBatches |= implementsAfterBatch(listener);
+        }
+        this.batchListeners = wantsBatches;
+    }
+
+    private static boolean implementsAfterBatch(LoadListener listener) {
+        try {
+            return listener.getClass().getMethod("afterBatch", List.class).getDeclaringClass() != LoadListenerAdapter.class;
+        }
+        catch (NoSuchMethodException e) {
+            return true;
+        }
+    }
+
+    private static boolean subscribesToBatches(Object subscriber) {
+        // The event bus also only looks at public methods
+        for (Method method : subscriber.getClass().getMethods()) {
+            if (method.isAnnotationPresent(Subscribe.class)
+                    && Arrays.equals(method.getParameterTypes(), new Class<?>[]{BatchEvent.class})) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public void fireBeforeSave(Object source, Object entity) {
+        for (LoadListener listener : this.listeners) {
+            listener.beforeSave(entity);
+        }
+        if (this.postToEventBus) {
+            this.eventBus.post(new SaveEntityEvent(source, EventFirePoint.BEFORE, entity));
+        }
+    }
+
+    public void fireAfterSave(Object source, Object entity) {
+        for (LoadListener listener : this.listeners) {
+            listener.afterSave(entity);
+        }
+        if (this.postToEventBus) {
+            this.eventBus.post(new SaveEntityEvent(source, EventFirePoint.AFTER, entity));
+        }
+    }
+
+    /**
+     * @param startNanos when the flush started, by {@link System#nanoTime()}
+     */
+    public void fireBeforeFlush(Object source, Class<?> entityClass, String tableName, long startNanos) {
+        for (LoadListener listener : this.listeners) {
+            listener.beforeFlush(entityClass, tableName);
+        }
+        if (this.postToEventBus) {
+            this.eventBus.post(new FlushEvent(source, EventFirePoint.BEFORE, entityClass, tableName, startNanos));
+        }
+    }
+
+    /**
+     * @param startNanos when the flush started, by {@link System#nanoTime()}
+     * @param endNanos   when the flush ended, by {@link System#nanoTime()}
+     */
+    public void fireAfterFlush(Object source, Class<?> entityClass, String tableName, long startNanos, long endNanos) {
+        for (LoadListener listener : this.listeners) {
+            listener.afterFlush(entityClass, tableName, endNanos - startNanos);
+        }
+        if (this.postToEventBus) {
+            this.eventBus.post(new FlushEvent(source, EventFirePoint.AFTER, entityClass, tableName, endNanos));
+        }
+    }
+
+    public void fireAfterBatch(Object source, List<Object> savedEntities) {
+        for (LoadListener listener : this.listeners) {
+            listener.afterBatch(savedEntities);
+        }
+        if (this.batchEventsSubscribed) {
+            this.eventBus.post(new BatchEvent(source, savedEntities));
+        }
+    }
+}
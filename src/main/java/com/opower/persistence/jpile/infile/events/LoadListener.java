@@ -0,0 +1,60 @@
+package com.opower.persistence.jpile.infile.events;
+
+import java.util.List;
+
+/**
+ * Typed listener of the events of a loader, a lightweight alternative to subscribing to the event bus. Listeners are
+ * called directly, without creating event objects or looking up subscribers. Either react to every saved entity with
+ * {@link #beforeSave(Object)} and {@link #afterSave(Object)}, or to all entities of a call to {@code persist} at once
+ * with {@link #afterBatch(List)}.
+ * <p/>
+ * Listeners are called on the thread that persists or flushes, which for parallel persists are the worker threads, so
+ * they must be thread safe if they are used with those. Extend {@link LoadListenerAdapter} to implement only some of the
+ * methods.
+ *
+ * @author agent
+ * @see LoadEventDispatcher
+ */
+public interface LoadListener {
+
+    /**
+     * Called before an entity is added to the buffer of its table.
+     *
+     * @param entity the entity
+     */
+    void beforeSave(Object entity);
+
+    /**
+     * Called after an entity has been added to the buffer of its table.
+     *
+     * @param entity the entity
+     */
+    void afterSave(Object entity);
+
+    /**
+     * Called before the buffer of a table is flushed.
+     *
+     * @param entityClass the class of the entities in the buffer
+     * @param tableName   the table the buffer is flushed to
+     */
+    void beforeFlush(Class<?> entityClass, String tableName);
+
+    /**
+     * Called after the buffer of a table has been flushed.
+     *
+     * @param entityClass  the class of the entities in the buffer
+     * @param tableName    the table the buffer was flushed to
+     * @param elapsedNanos the time the flush took in nanoseconds
+     */
+    void afterFlush(Class<?> entityClass, String tableName, long elapsedNanos);
+
+    /**
+     * Called after a batch of objects passed to {@code persist} has been added to the buffers, with every entity that was
+     * saved, including the ones reached from those objects. A call to {@code persist} with many objects is split into
+     * batches of a bounded number of objects, so the saved entities of a large load are not all held in memory. The
+     * saved entities are only collected when a listener implements this method.
+     *
+     * @param savedEntities the saved entities in the order they were saved
+     */
+    void afterBatch(List<Object> savedEntities);
+}
@@ -0,0 +1,31 @@
+package com.opower.persistence.jpile.infile.events;
+
+import java.util.List;
+
+/**
+ * {@link LoadListener} that ignores all events, to be extended by listeners interested in only some of them.
+ *
+ * @author agent
+ */
+public abstract class LoadListenerAdapter implements LoadListener {
+
+    @Override
+    public void beforeSave(Object entity) {
+    }
+
+    @Override
+    public void afterSave(Object entity) {
+    }
+
+    @Override
+    public void beforeFlush(Class<?> entityClass, String tableName) {
+    }
+
+    @Override
+    public void afterFlush(Class<?> entityClass, String tableName, long elapsedNanos) {
+    }
+
+    @Override
+    public void afterBatch(List<Object> savedEntities) {
+    }
+}
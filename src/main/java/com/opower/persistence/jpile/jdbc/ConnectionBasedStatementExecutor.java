@@ -6,11 +6,13 @@ import com.google.common.base.Throwables;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Implementation of {@link StatementExecutor} interface that operates the
  * JDBC {@link Connection}. Foreign keys are disabled for the duration of
- * usage of {@link ConnectionBasedStatementExecutor} instance.
+ * usage of {@link ConnectionBasedStatementExecutor} instance, unless it is
+ * created to leave them enabled.
  * <p/>
  * Don't forget to {@link #shutdown()} the instance to ensure that foreign key
  * constraints are re-enabled.
@@ -18,17 +20,33 @@ import java.sql.Statement;
  * <b>Important</b>: connection is not closed in {@link #shutdown()} because it is not
  * created within {@link ConnectionBasedStatementExecutor} and that's caller's responsibility to
  * manage connection lifecycle.
+ * <p/>
+ * A statement is reused across callbacks rather than created for each of them. Callbacks running at the same time on
+ * other threads get a statement of their own, which is closed when they are done.
  *
  * @author ivan.german
  */
 public class ConnectionBasedStatementExecutor implements StatementExecutor {
 
     private final Connection connection;
+    private final boolean disableForeignKeys;
+    // The statement not in use by any callback, if there is one
+    private final AtomicReference<Statement> idleStatement = new AtomicReference<>();
 
     public ConnectionBasedStatementExecutor(Connection connection) {
+        this(connection, true);
+    }
+
+    /**
+     * @param connection         the connection to execute statements on
+     * @param disableForeignKeys whether to disable foreign key checks until {@link #shutdown()}. Leave them enabled only
+     *                           if rows are loaded after the rows they refer to.
+     */
+    public ConnectionBasedStatementExecutor(Connection connection, boolean disableForeignKeys) {
         Preconditions.checkNotNull(connection, "connection can't be null");
 
         this.connection = connection;
+        this.disableForeignKeys = disableForeignKeys;
         init();
     }
 
@@ -37,7 +55,9 @@ public class ConnectionBasedStatementExecutor implements StatementExecutor {
     }
 
     protected void init() {
-        execute(ToggleForeignKeysStatementCallback.DISABLE_FOREIGN_KEYS);
+        if (this.disableForeignKeys) {
+            execute(ToggleForeignKeysStatementCallback.DISABLE_FOREIGN_KEYS);
+        }
     }
 
     /**
@@ -50,6 +70,7 @@ public class ConnectionBasedStatementExecutor implements StatementExecutor {
      */
     public void closeConnection() {
         try {
+            closeIdleStatement();
             this.connection.close();
         }
         catch (SQLException e) {
@@ -64,17 +85,44 @@ public class ConnectionBasedStatementExecutor implements StatementExecutor {
     public <T> T execute(StatementCallback<T> statementCallback) {
         Preconditions.checkNotNull(statementCallback, "can't execute null statementCallback");
 
-        Connection actualConnection = getConnection();
-
-        try (Statement statement = actualConnection.createStatement()) {
-            return statementCallback.doInStatement(statement);
-        } catch (SQLException e) {
+        Statement statement = this.idleStatement.getAndSet(null);
+        try {
+            if (statement == null) {
+                statement = getConnection().createStatement();
+            }
+            T result = statementCallback.doInStatement(statement);
+            statement.clearWarnings();
+            if (this.idleStatement.compareAndSet(null, statement)) {
+                statement = null;
+            }
+            return result;
+        }
+        catch (SQLException e) {
             throw Throwables.propagate(e);
         }
+        finally {
+            // Not returned to be reused, either because the callback failed or because another statement is idle
+            closeQuietly(statement);
+        }
+    }
+
+    private void closeIdleStatement() {
+        closeQuietly(this.idleStatement.getAndSet(null));
+    }
+
+    private static void closeQuietly(Statement statement) {
+        if (statement != null) {
+            try {
+                statement.close();
+            }
+            catch (SQLException e) {
+                // Ignored exception
+            }
+        }
     }
 
     /**
-     * Re-enables foreign key constraints for current connection.
+     * Re-enables foreign key constraints for current connection, if they were disabled.
      * <p/>
      * <b>Important</b>: connection is not closed here because it is not
      * created within {@link ConnectionBasedStatementExecutor} and it is
@@ -82,6 +130,13 @@ public class ConnectionBasedStatementExecutor implements StatementExecutor {
      */
     @Override
     public void shutdown() {
-        execute(ToggleForeignKeysStatementCallback.ENABLE_FOREIGN_KEYS);
+        try {
+            if (this.disableForeignKeys) {
+                execute(ToggleForeignKeysStatementCallback.ENABLE_FOREIGN_KEYS);
+            }
+        }
+        finally {
+            closeIdleStatement();
+        }
     }
 }
@@ -0,0 +1,45 @@
+package com.opower.persistence.jpile.jdbc;
+
+import com.google.common.base.Preconditions;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * This implementation adds the sequence of a table to a sequence table unless it already exists. A new sequence starts
+ * at the max ID of the table. The sequence table needs a {@code sequence_name} primary key and a {@code last_id} column.
+ *
+ * @author agent
+ * @see ReserveIdBlockStatementCallback
+ */
+public class InitIdSequenceStatementCallback implements StatementCallback<Boolean> {
+
+    private static final String QUERY_TEMPLATE = "insert ignore into %s (sequence_name, last_id) "
+                                                 + "select '%s', coalesce(max(%s), 0) from %s";
+
+    private final String sequenceTableName;
+    private final String idColumnName;
+    private final String tableName;
+
+    public InitIdSequenceStatementCallback(String sequenceTableName, String idColumnName, String tableName) {
+        Preconditions.checkNotNull(sequenceTableName, "sequenceTableName is required");
+        Preconditions.checkNotNull(idColumnName, "idColumnName is required");
+        Preconditions.checkNotNull(tableName, "tableName is required");
+
+        this.sequenceTableName = sequenceTableName;
+        this.idColumnName = idColumnName;
+        this.tableName = tableName;
+    }
+
+    /**
+     * @return true if the sequence was added, false if it already existed
+     */
+    @Override
+    public Boolean doInStatement(Statement statement) throws SQLException {
+        Preconditions.checkNotNull(statement, "statement can't be null");
+
+        String query = String.format(QUERY_TEMPLATE, this.sequenceTableName, this.tableName, this.idColumnName,
+                                     this.tableName);
+        return statement.executeUpdate(query) > 0;
+    }
+}
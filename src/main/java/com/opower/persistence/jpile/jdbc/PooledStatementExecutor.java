@@ -0,0 +1,203 @@
+package com.opower.persistence.jpile.jdbc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * This implementation leases up to a fixed number of {@link java.sql.Connection}s from a {@link DataSource} and runs
+ * each callback on a connection no other callback is using, so flushes of different tables, or of different buffers of
+ * one table, are sent to the database over separate sessions at the same time. Each connection is wrapped in a
+ * {@link ConnectionBasedStatementExecutor}, so foreign keys are disabled on every connection when it is opened unless
+ * the executor is created to leave them enabled.
+ * <p/>
+ * Connections are opened on demand. When all of them are in use, callbacks wait for one to be returned. A callback
+ * always runs on a single connection, so session state such as {@code LAST_INSERT_ID()} can be used within one callback
+ * but not across callbacks.
+ * <p/>
+ * {@link #shutdown()} re-enables foreign keys and closes all connections; connections still in use are closed when they
+ * are returned. Instances of this class are safe for use by multiple threads.
+ *
+ * @author agent
+ * @see DataSourceBasedStatementExecutor
+ */
+public class PooledStatementExecutor implements StatementExecutor {
+    // How often callbacks waiting for a connection check whether the executor has been shut down
+    private static final long LEASE_POLL_INTERVAL_MILLIS = 100;
+
+    private final DataSource dataSource;
+    private final int poolSize;
+    private final boolean disableForeignKeys;
+    private final BlockingQueue<ConnectionBasedStatementExecutor> idleExecutors = new LinkedBlockingQueue<>();
+    private final List<ConnectionBasedStatementExecutor> allExecutors = new CopyOnWriteArrayList<>();
+    private volatile boolean shutdown = false;
+
+    /**
+     * @param dataSource the data source to lease connections from
+     * @param poolSize   the maximum number of connections to lease
+     */
+    public PooledStatementExecutor(DataSource dataSource, int poolSize) {
+        this(dataSource, poolSize, true);
+    }
+
+    /**
+     * @param dataSource         the data source to lease connections from
+     * @param poolSize           the maximum number of connections to lease
+     * @param disableForeignKeys whether to disable foreign key checks on the connections
+     * @see ConnectionBasedStatementExecutor#ConnectionBasedStatementExecutor(java.sql.Connection, boolean)
+     */
+    public PooledStatementExecutor(DataSource dataSource, int poolSize, boolean disableForeignKeys) {
+        Preconditions.checkNotNull(dataSource, "dataSource must not be null");
+        Preconditions.checkArgument(poolSize > 0, "poolSize must be positive");
+
+        this.dataSource = dataSource;
+        this.poolSize = poolSize;
+        this.disableForeignKeys = disableForeignKeys;
+    }
+
+    /**
+     * @return the maximum number of connections leased from the data source
+     */
+    public int getPoolSize() {
+        return this.poolSize;
+    }
+
+    /**
+     * @return the number of connections currently leased from the data source
+     */
+    public int getConnectionCount() {
+        return this.allExecutors.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Waits for a connection if all connections of the pool are in use.
+     */
+    @Override
+    public <T> T execute(StatementCallback<T> statementCallback) {
+        Preconditions.checkNotNull(statementCallback, "can't execute null statementCallback");
+        Preconditions.checkState(!this.shutdown, "statement executor has been shut down");
+
+        ConnectionBasedStatementExecutor executor = lease();
+        try {
+            return executor.execute(statementCallback);
+        }
+        finally {
+            release(executor);
+        }
+    }
+
+    private ConnectionBasedStatementExecutor lease() {
+        ConnectionBasedStatementExecutor executor = this.idleExecutors.poll();
+        while (executor == null) {
+            Preconditions.checkState(!this.shutdown, "statement executor has been shut down");
+            executor = openIfBelowPoolSize();
+            if (executor == null) {
+                try {
+                    executor = this.idleExecutors.poll(LEASE_POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw Throwables.propagate(e);
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * @return an executor on a new connection, or null if the pool is full
+     */
+    private synchronized ConnectionBasedStatementExecutor openIfBelowPoolSize() {
+        if (this.allExecutors.size() >= this.poolSize) {
+            return null;
+        }
+        Connection connection;
+        try {
+            connection = this.dataSource.getConnection();
+        }
+        catch (SQLException e) {
+            throw Throwables.propagate(e);
+        }
+        ConnectionBasedStatementExecutor executor;
+        try {
+            executor = new ConnectionBasedStatementExecutor(connection, this.disableForeignKeys);
+        }
+        catch (RuntimeException e) {
+            // The executor failed to set up the session, so it never owned the connection
+            try {
+                connection.close();
+            }
+            catch (SQLException closeFailure) {
+                e.addSuppressed(closeFailure);
+            }
+            throw e;
+        }
+        this.allExecutors.add(executor);
+        return executor;
+    }
+
+    private void release(ConnectionBasedStatementExecutor executor) {
+        if (this.shutdown) {
+            close(executor);
+        }
+        else {
+            this.idleExecutors.add(executor);
+            // Shut down while being returned, so make sure it does not stay idle
+            if (this.shutdown && this.idleExecutors.remove(executor)) {
+                close(executor);
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Re-enables foreign keys on all connections and closes them. Every connection is closed even if re-enabling foreign
+     * keys fails on some of them; the first failure is thrown afterwards, with the others suppressed.
+     */
+    @Override
+    public void shutdown() {
+        this.shutdown = true;
+        List<ConnectionBasedStatementExecutor> executors = newArrayList();
+        this.idleExecutors.drainTo(executors);
+        RuntimeException failure = null;
+        for (ConnectionBasedStatementExecutor executor : executors) {
+            try {
+                close(executor);
+            }
+            catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+                else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void close(ConnectionBasedStatementExecutor executor) {
+        try {
+            executor.shutdown();
+        }
+        finally {
+            executor.closeConnection();
+            this.allExecutors.remove(executor);
+        }
+    }
+}
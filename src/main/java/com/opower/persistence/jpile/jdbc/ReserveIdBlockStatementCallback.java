@@ -0,0 +1,55 @@
+package com.opower.persistence.jpile.jdbc;
+
+import com.google.common.base.Preconditions;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * This implementation reserves a block of IDs from the sequence of a table in a sequence table and returns the first ID
+ * of the block. The sequence is bumped with a single {@code UPDATE} that stores the new value in
+ * {@code LAST_INSERT_ID()}, so concurrent sessions always get disjoint blocks. With auto-commit disabled the row lock is
+ * held until the transaction ends.
+ *
+ * @author agent
+ * @see InitIdSequenceStatementCallback
+ */
+public class ReserveIdBlockStatementCallback implements StatementCallback<Long> {
+
+    private static final String UPDATE_TEMPLATE = "update %s set last_id = last_insert_id(last_id + %d) "
+                                                  + "where sequence_name = '%s'";
+    private static final String SELECT_QUERY = "select last_insert_id()";
+
+    private final String sequenceTableName;
+    private final String tableName;
+    private final int blockSize;
+
+    public ReserveIdBlockStatementCallback(String sequenceTableName, String tableName, int blockSize) {
+        Preconditions.checkNotNull(sequenceTableName, "sequenceTableName is required");
+        Preconditions.checkNotNull(tableName, "tableName is required");
+        Preconditions.checkArgument(blockSize > 0, "blockSize should be positive");
+
+        this.sequenceTableName = sequenceTableName;
+        this.tableName = tableName;
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public Long doInStatement(Statement statement) throws SQLException {
+        Preconditions.checkNotNull(statement, "statement can't be null");
+
+        String update = String.format(UPDATE_TEMPLATE, this.sequenceTableName, this.blockSize, this.tableName);
+        if (statement.executeUpdate(update) != 1) {
+            throw new SQLException(String.format("Could not find sequence [%s] in [%s]", this.tableName,
+                                                 this.sequenceTableName));
+        }
+
+        try (ResultSet resultSet = statement.executeQuery(SELECT_QUERY)) {
+            if (resultSet.first()) {
+                return resultSet.getLong(1) - this.blockSize + 1;
+            }
+            throw new SQLException(String.format("Could not reserve ids for table [%s]", this.tableName));
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.opower.persistence.jpile.loader;
+
+import com.opower.persistence.jpile.infile.InfileRow;
+
+/**
+ * Base class of the row writers generated by {@link RowWriterGenerator}. A row writer appends the columns of one entity
+ * class to an infile row by calling the getters directly and passing each value to the append method that fits the
+ * column's type. The generated code has no branches: values that need a null check or a conversion are appended by the
+ * static helpers of this class, and columns the generator has no specialized code for are handed back to the loader.
+ * <p/>
+ * This class is public only so that writers generated in the package of the entity can extend it.
+ *
+ * @author agent
+ */
+public abstract class GeneratedRowWriter {
+    private SingleInfileObjectLoader<?> loader;
+    private InfileColumn[] columns;
+
+    final void init(SingleInfileObjectLoader<?> loader, InfileColumn[] columns) {
+        this.loader = loader;
+        this.columns = columns;
+    }
+
+    /**
+     * Appends the columns of an entity to an infile row, in the order of the loader's mappings.
+     *
+     * @param entity    the entity, cannot be null
+     * @param infileRow the row to append to
+     */
+    public abstract void write(Object entity, InfileRow infileRow);
+
+    /**
+     * Appends a column the generated code has no specialized code for.
+     *
+     * @param column    the index of the column in the loader's columns
+     * @param value     the value returned by the getter of the column
+     * @param infileRow the row to append to
+     */
+    protected final void appendValue(int column, Object value, InfileRow infileRow) {
+        this.loader.appendValue(this.columns[column], value, infileRow);
+    }
+
+    protected static void appendLong(Long value, InfileRow infileRow) {
+        if (value == null) {
+            infileRow.appendNull();
+        }
+        else {
+            infileRow.append(value.longValue());
+        }
+    }
+
+    protected static void appendInt(Number value, InfileRow infileRow) {
+        if (value == null) {
+            infileRow.appendNull();
+        }
+        else {
+            infileRow.append(value.intValue());
+        }
+    }
+
+    protected static void appendDouble(Double value, InfileRow infileRow) {
+        if (value == null) {
+            infileRow.appendNull();
+        }
+        else {
+            infileRow.append(value.doubleValue());
+        }
+    }
+
+    protected static void appendDouble(double value, int precision, int scale, InfileRow infileRow) {
+        infileRow.append(Double.valueOf(value), precision, scale);
+    }
+
+    protected static void appendFloat(Float value, InfileRow infileRow) {
+        if (value == null) {
+            infileRow.appendNull();
+        }
+        else {
+            infileRow.append(value.floatValue());
+        }
+    }
+
+    protected static void appendFloat(float value, int precision, int scale, InfileRow infileRow) {
+        infileRow.append(Float.valueOf(value), precision, scale);
+    }
+
+    protected static void appendBoolean(boolean value, InfileRow infileRow) {
+        infileRow.append(value ? 1 : 0);
+    }
+
+    protected static void appendChar(char value, InfileRow infileRow) {
+        infileRow.append(value);
+    }
+
+    protected static void appendRawBytes(byte[] value, InfileRow infileRow) {
+        if (value == null) {
+            infileRow.appendNull();
+        }
+        else {
+            infileRow.append(value);
+        }
+    }
+
+    protected static void appendEnumName(Enum<?> value, InfileRow infileRow) {
+        if (value == null) {
+            infileRow.appendNull();
+        }
+        else {
+            infileRow.append(value.name());
+        }
+    }
+
+    protected static void appendEnumOrdinal(Enum<?> value, InfileRow infileRow) {
+        if (value == null) {
+            infileRow.appendNull();
+        }
+        else {
+            infileRow.append(value.ordinal());
+        }
+    }
+}
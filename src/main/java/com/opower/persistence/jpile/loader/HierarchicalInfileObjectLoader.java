@@ -1,41 +1,55 @@
 package com.opower.persistence.jpile.loader;
 
 import com.google.common.base.Preconditions;
-import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.EventBus;
+import com.google.common.math.IntMath;
+import com.opower.persistence.jpile.infile.InfileChunkPool;
 import com.opower.persistence.jpile.infile.InfileDataBuffer;
-import com.opower.persistence.jpile.infile.events.EventFirePoint;
-import com.opower.persistence.jpile.infile.events.SaveEntityEvent;
+import com.opower.persistence.jpile.infile.events.LoadEventDispatcher;
+import com.opower.persistence.jpile.infile.events.LoadListener;
 import com.opower.persistence.jpile.infile.events.SaveEntityEventAdapter;
 import com.opower.persistence.jpile.jdbc.ConnectionBasedStatementExecutor;
+import com.opower.persistence.jpile.jdbc.PooledStatementExecutor;
 import com.opower.persistence.jpile.jdbc.StatementExecutor;
+import com.opower.persistence.jpile.loader.flush.FlushPolicy;
+import com.opower.persistence.jpile.loader.id.CountingIdAllocator;
+import com.opower.persistence.jpile.loader.id.IdAllocatorFactory;
+import com.opower.persistence.jpile.loader.id.SharedIdAllocatorFactory;
 import com.opower.persistence.jpile.reflection.CachedProxy;
+import com.opower.persistence.jpile.reflection.EntityMetadata;
 import com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector;
+import com.opower.persistence.jpile.reflection.PropertyAccessor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.persistence.ManyToOne;
-import javax.persistence.OneToMany;
-import javax.persistence.OneToOne;
-import javax.persistence.PrimaryKeyJoinColumn;
 import javax.persistence.SecondaryTable;
+import javax.sql.DataSource;
 import java.io.Closeable;
 import java.io.Flushable;
-import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
+import java.math.RoundingMode;
 import java.sql.Connection;
 import java.util.Collection;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.google.common.base.Throwables.propagate;
 import static com.google.common.collect.Iterables.concat;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Lists.newArrayListWithCapacity;
 import static com.google.common.collect.Maps.newHashMap;
 import static com.google.common.collect.Maps.newLinkedHashMap;
-import static com.google.common.collect.Sets.newHashSet;
+import static com.google.common.collect.Sets.newLinkedHashSet;
 import static com.opower.persistence.jpile.infile.InfileDataBuffer.DEFAULT_INFILE_BUFFER_SIZE;
 import static com.opower.persistence.jpile.infile.InfileDataBuffer.DEFAULT_ROW_BUFFER_SIZE;
 
@@ -55,6 +69,9 @@ import static com.opower.persistence.jpile.infile.InfileDataBuffer.DEFAULT_ROW_B
  * </pre>
  * Note that because the connection is passed in, it is up to the caller to close the connection correctly. Otherwise the
  * connection will never be closed.
+ * <p/>
+ * Instances of this class are not safe for use by multiple threads, unless {@link #setConcurrentPersist(int)} is used
+ * to persist from several threads at once.
  *
  * @author amir.raminfar
  * @since 1.0
@@ -63,24 +80,63 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(HierarchicalInfileObjectLoader.class);
     private static final String EVENT_BUS_IDENTIFIER = "jpile-event-bus";
+    // The number of objects a worker of a parallel persist takes at once
+    private static final int PARALLEL_BATCH_SIZE = 64;
+    // The number of top-level objects whose saved entities are collected into one batch event
+    private static final int BATCH_EVENT_SIZE = PARALLEL_BATCH_SIZE;
+    // Sets of visited objects that grew larger than this are not reused, as clearing them takes time proportional to
+    // their capacity
+    private static final int MAX_REUSED_VISITED_SIZE = 1024;
+    private static final PropertyAccessor[] EMPTY_PROPERTIES = new PropertyAccessor[0];
 
     private PersistenceAnnotationInspector persistenceAnnotationInspector =
             CachedProxy.create(new PersistenceAnnotationInspector());
 
-    private EventBus eventBus = new EventBus(EVENT_BUS_IDENTIFIER);
+    private LoadEventDispatcher loadEvents = new LoadEventDispatcher(new EventBus(EVENT_BUS_IDENTIFIER));
     private StatementExecutor statementExecutor;
 
     private int infileBufferSize = DEFAULT_INFILE_BUFFER_SIZE;
     private int rowBufferSize = DEFAULT_ROW_BUFFER_SIZE;
+    private boolean useDirectInfileBuffers = false;
+    // Shared by the infile buffers of all tables, created on first use unless one is set
+    private InfileChunkPool chunkPool;
 
     // linked for consistent error message
     private Map<Class<?>, SingleInfileObjectLoader<Object>> primaryObjectLoaders = newLinkedHashMap();
     private Map<Class<?>, SingleInfileObjectLoader<Object>> secondaryTableObjectLoaders = newLinkedHashMap();
-    private Map<Class<?>, Set<Method>> parentDependent = newHashMap();
-    private Map<Class<?>, Set<Method>> childDependent = newHashMap();
+    // How to persist an object of each class, compiled on first use. Linked to order tables by first use.
+    private Map<Class<?>, PersistPlan> persistPlans = newLinkedHashMap();
+    // The set of objects visited by persist(), kept between calls. Null while in use.
+    private Set<Object> visitedSet;
+    // The entities saved by the current call to persist(), if they are collected for batch events
+    private List<Object> savedEntities;
     private Set<Class<?>> classesToIgnore = ImmutableSet.of();
     private Set<String> secondaryClassesToIgnore = ImmutableSet.of();
     private boolean useReplace = false;
+    private boolean useRawBinary = false;
+    private boolean useGeneratedRowWriters = true;
+    private ExecutorService flushExecutor;
+    private int maxInFlightFlushes;
+    private FlushPolicy flushPolicy;
+    private IdAllocatorFactory idAllocatorFactory;
+    private boolean foreignKeyChecks = false;
+    // The dependencies between the tables of the compiled plans of this loader and its workers, built on first use
+    private TableDependencyGraph dependencyGraph;
+    private int dependencyGraphPlans;
+    // Shares one id allocator per table between all loaders, including those of the workers
+    private SharedIdAllocatorFactory sharedIdAllocatorFactory;
+    // The loaders of the worker threads of parallel persists, created on first use
+    private final List<HierarchicalInfileObjectLoader> workers = newArrayList();
+    // The number of workers concurrent persists are spread over, 0 unless they are enabled
+    private int stripeCount;
+    // The workers of concurrent persists, created on first use. Also in the list of workers.
+    private volatile HierarchicalInfileObjectLoader[] stripes;
+    // Held while persisting with this loader when it is a worker of concurrent persists
+    private final ReentrantLock stripeLock = new ReentrantLock();
+
+    // Bytes buffered by all loaders, kept below the memory budget by flushing the largest buffers
+    private long memoryBudget = Long.MAX_VALUE;
+    private long bufferedBytes = 0;
 
     /**
      * Disables fk (if not already disabled) and saves each object
@@ -100,190 +156,626 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
     public void persist(Iterable<?> objects) {
         Preconditions.checkNotNull(
                 this.statementExecutor, "statementExecutor is null, did you call setConnection() or setStatementExecutor()?");
+        if (this.stripeCount > 0) {
+            persistOnStripe(objects);
+            return;
+        }
+
+        // Taken rather than shared, in case an event listener persists more objects
+        Set<Object> visited = this.visitedSet != null ? this.visitedSet : newVisitedSet();
+        this.visitedSet = null;
+        List<Object> outerSavedEntities = this.savedEntities;
+        // Saved entities are only collected if anyone wants batch events, a batch per so many top-level objects
+        List<Object> batch = this.loadEvents.hasBatchListeners() ? newArrayList() : null;
+        int batchObjects = 0;
+        this.savedEntities = batch;
+        try {
+            for (Object o : objects) {
+                persistWithCyclicCheck(o, visited);
+                if (visited.size() > MAX_REUSED_VISITED_SIZE) {
+                    visited = newVisitedSet();
+                }
+                else {
+                    visited.clear();
+                }
+                if (batch != null && ++batchObjects == BATCH_EVENT_SIZE) {
+                    // A new list, as listeners may keep the one they are given
+                    this.loadEvents.fireAfterBatch(this, Collections.unmodifiableList(batch));
+                    batch = newArrayList();
+                    batchObjects = 0;
+                    this.savedEntities = batch;
+                }
+            }
+        }
+        finally {
+            this.savedEntities = outerSavedEntities;
+        }
+        this.visitedSet = visited;
+        if (batchObjects > 0) {
+            this.loadEvents.fireAfterBatch(this, Collections.unmodifiableList(batch));
+        }
+    }
+
+    /**
+     * Persists objects with the first worker of concurrent persists that no other thread is using, or waits for the
+     * worker of the current thread if all of them are in use.
+     */
+    private void persistOnStripe(Iterable<?> objects) {
+        HierarchicalInfileObjectLoader[] currentStripes = getStripes();
+        int home = (int) (Thread.currentThread().getId() % currentStripes.length);
+        HierarchicalInfileObjectLoader stripe = null;
+        for (int i = 0; i < currentStripes.length && stripe == null; i++) {
+            HierarchicalInfileObjectLoader candidate = currentStripes[(home + i) % currentStripes.length];
+            if (candidate.stripeLock.tryLock()) {
+                stripe = candidate;
+            }
+        }
+        if (stripe == null) {
+            stripe = currentStripes[home];
+            stripe.stripeLock.lock();
+        }
+        try {
+            stripe.persist(objects);
+        }
+        finally {
+            stripe.stripeLock.unlock();
+        }
+    }
+
+    private HierarchicalInfileObjectLoader[] getStripes() {
+        HierarchicalInfileObjectLoader[] currentStripes = this.stripes;
+        if (currentStripes == null) {
+            synchronized (this) {
+                currentStripes = this.stripes;
+                if (currentStripes == null) {
+                    currentStripes = new HierarchicalInfileObjectLoader[this.stripeCount];
+                    for (int i = 0; i < currentStripes.length; i++) {
+                        currentStripes[i] = newWorker(this.stripeCount);
+                        this.workers.add(currentStripes[i]);
+                    }
+                    this.stripes = currentStripes;
+                }
+            }
+        }
+        return currentStripes;
+    }
+
+    /**
+     * Waits for all running concurrent persists and keeps new ones from starting until {@link #unlockStripes()}.
+     *
+     * @return whether concurrent persists are enabled and the workers were locked
+     */
+    private boolean lockStripes() {
+        if (this.stripeCount == 0) {
+            return false;
+        }
+        // Always in the same order, and persists only hold one lock, so this cannot deadlock
+        for (HierarchicalInfileObjectLoader stripe : getStripes()) {
+            stripe.stripeLock.lock();
+        }
+        return true;
+    }
+
+    private void unlockStripes() {
+        for (HierarchicalInfileObjectLoader stripe : this.stripes) {
+            stripe.stripeLock.unlock();
+        }
+    }
+
+    /**
+     * Creates a set of visited objects. Objects are compared by identity, as entities may be mutable or have expensive
+     * {@code equals} and {@code hashCode} methods.
+     */
+    private static Set<Object> newVisitedSet() {
+        return Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+    }
+
+    /**
+     * Saves each object on {@code parallelism} worker threads of the given executor and waits for them to finish. Every
+     * worker converts the objects it takes into buffers of its own, one per table, so encoding scales with the number of
+     * workers. Full buffers are flushed by the worker that filled them, or on the flush executor if one has been set with
+     * {@link #setAsyncFlush(ExecutorService, int)}; flushes over a single connection are serialized by the driver. Objects
+     * buffered by the workers are flushed by {@link #flush()} like all others.
+     * <p/>
+     * Ids are generated by one allocator per table shared by all workers, and the memory budget is divided among them.
+     * Event listeners are called on the worker threads. The executor is not shut down by this loader and should not be
+     * the flush executor.
+     *
+     * @param objects     the objects to save
+     * @param executor    the executor to run the workers on
+     * @param parallelism the number of workers
+     */
+    public void persist(Iterable<?> objects, ExecutorService executor, int parallelism) {
+        Preconditions.checkNotNull(
+                this.statementExecutor, "statementExecutor is null, did you call setConnection() or setStatementExecutor()?");
+        Preconditions.checkNotNull(executor, "executor can't be null");
+        Preconditions.checkArgument(parallelism > 0, "parallelism must be positive");
+        Preconditions.checkState(this.stripeCount == 0, "parallel persists cannot be combined with concurrent persists");
+
+        while (this.workers.size() < parallelism) {
+            this.workers.add(newWorker(parallelism));
+        }
+        final Iterator<?> iterator = objects.iterator();
+        // Private, so no other code can hold it and stall the workers
+        final Object iteratorLock = new Object();
+        List<Future<?>> futures = newArrayList();
+        for (final HierarchicalInfileObjectLoader worker : this.workers.subList(0, parallelism)) {
+            // Workers created by earlier calls may have had a share of a different budget or number of workers
+            worker.memoryBudget = workerMemoryBudget(parallelism);
+            futures.add(executor.submit(new Runnable() {
+                @Override
+                public void run() {
+                    for (List<Object> batch = nextBatch(iterator, iteratorLock);
+                         !batch.isEmpty();
+                         batch = nextBatch(iterator, iteratorLock)) {
+                        worker.persist(batch);
+                    }
+                }
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw propagate(e);
+        }
+        catch (ExecutionException e) {
+            throw propagate(e.getCause());
+        }
+        finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
 
-        for (Object o : objects) {
-            persistWithCyclicCheck(o, new HashSet<>());
+    private static List<Object> nextBatch(Iterator<?> iterator, Object iteratorLock) {
+        List<Object> batch = newArrayListWithCapacity(PARALLEL_BATCH_SIZE);
+        synchronized (iteratorLock) {
+            while (batch.size() < PARALLEL_BATCH_SIZE && iterator.hasNext()) {
+                batch.add(iterator.next());
+            }
         }
+        return batch;
+    }
+
+    /**
+     * Creates the loader of a worker thread, configured like this loader.
+     */
+    private HierarchicalInfileObjectLoader newWorker(int parallelism) {
+        HierarchicalInfileObjectLoader worker = new HierarchicalInfileObjectLoader();
+        worker.persistenceAnnotationInspector = this.persistenceAnnotationInspector;
+        worker.loadEvents = this.loadEvents;
+        worker.statementExecutor = this.statementExecutor;
+        worker.infileBufferSize = this.infileBufferSize;
+        worker.rowBufferSize = this.rowBufferSize;
+        worker.useDirectInfileBuffers = this.useDirectInfileBuffers;
+        worker.chunkPool = getChunkPool();
+        worker.classesToIgnore = this.classesToIgnore;
+        worker.secondaryClassesToIgnore = this.secondaryClassesToIgnore;
+        worker.useReplace = this.useReplace;
+        worker.useRawBinary = this.useRawBinary;
+        worker.useGeneratedRowWriters = this.useGeneratedRowWriters;
+        worker.flushExecutor = this.flushExecutor;
+        worker.maxInFlightFlushes = this.maxInFlightFlushes;
+        worker.flushPolicy = this.flushPolicy;
+        worker.foreignKeyChecks = this.foreignKeyChecks;
+        worker.sharedIdAllocatorFactory = getSharedIdAllocatorFactory();
+        worker.memoryBudget = workerMemoryBudget(parallelism);
+        return worker;
+    }
+
+    /**
+     * @return the share of the memory budget of this loader of each of its workers
+     */
+    private long workerMemoryBudget(int parallelism) {
+        return Math.max(1, this.memoryBudget / parallelism);
     }
 
     private void persistWithCyclicCheck(Object entity, Set<Object> cyclicCheck) {
         Preconditions.checkNotNull(entity, "Cannot persist null");
+        persistWithCyclicCheck(entity, getPersistPlan(entity.getClass()), cyclicCheck);
+    }
 
-        // If we already saved this object then ignore
-        if (cyclicCheck.contains(entity)) {
-            LOGGER.debug("Skipping in file persist on [{}] because it has already been saved.", entity);
+    private void persistWithCyclicCheck(Object entity, PersistPlan plan, Set<Object> cyclicCheck) {
+        // If we are supposed to ignore this class then also ignore
+        if (plan.ignored) {
+            LOGGER.debug("Ignoring [{}].", entity);
             return;
         }
 
-        // If we are supposed to ignore this class then also ignore
-        if (this.classesToIgnore.contains(entity.getClass())) {
-            LOGGER.debug("Ignoring [{}].", entity);
+        // Add to a set so we don't save this object again, unless we already saved it
+        if (!cyclicCheck.add(entity)) {
+            LOGGER.debug("Skipping in file persist on [{}] because it has already been saved.", entity);
             return;
         }
 
         LOGGER.debug("Persisting [{}].", entity);
 
-        // Initialize for this class
-        initForClass(entity.getClass());
-
-        // Add to a set so we don't save this object again
-        cyclicCheck.add(entity);
-
         // Save dependent children first because there is a key that depends on these items
-        for (Method dependent : this.childDependent.get(entity.getClass())) {
-            Object o = invoke(dependent, entity);
+        for (PropertyAccessor dependent : plan.childDependents) {
+            Object o = dependent.get(entity);
             if (o != null) {
                 persistWithCyclicCheck(o, cyclicCheck);
             }
         }
 
         // Save this entity now that we know all children have been saved
-        this.eventBus.post(new SaveEntityEvent(this, EventFirePoint.BEFORE, entity));
-        this.primaryObjectLoaders.get(entity.getClass()).add(entity);
-        this.eventBus.post(new SaveEntityEvent(this, EventFirePoint.AFTER, entity));
+        this.loadEvents.fireBeforeSave(this, entity);
+        addToLoader(plan.primaryLoader, entity);
+        this.loadEvents.fireAfterSave(this, entity);
+        if (this.savedEntities != null) {
+            this.savedEntities.add(entity);
+        }
 
         // Get generated id
-        Object id = PersistenceAnnotationInspector.getIdValue(this.persistenceAnnotationInspector, entity);
+        Object id = plan.getIdValue(entity);
 
         // Find all objects that depend entity's id being generated and save these now
-        for (Method dependent : this.parentDependent.get(entity.getClass())) {
-            Object o = invoke(dependent, entity);
+        for (PropertyAccessor dependent : plan.parentDependents) {
+            Object o = dependent.get(entity);
             if (o != null) {
                 if (o instanceof Collection) {
-                    for (Object item : (Collection) o) {
+                    for (Object item : (Collection<?>) o) {
                         persistWithCyclicCheck(item, cyclicCheck);
                     }
                 }
                 else {
-                    PersistenceAnnotationInspector.setIdValue(this.persistenceAnnotationInspector, o, id);
-                    persistWithCyclicCheck(o, cyclicCheck);
+                    PersistPlan dependentPlan = getPersistPlan(o.getClass());
+                    dependentPlan.setIdValue(o, id);
+                    persistWithCyclicCheck(o, dependentPlan, cyclicCheck);
                 }
             }
         }
 
         // Check to see if there is a secondary
-        SingleInfileObjectLoader<Object> loader = this.secondaryTableObjectLoaders.get(entity.getClass());
-        if (loader != null) {
-            loader.add(entity);
+        if (plan.secondaryLoader != null) {
+            addToLoader(plan.secondaryLoader, entity);
+        }
+    }
+
+    /**
+     * Returns how to persist objects of a class, compiling it and initializing for the class on first use.
+     */
+    private PersistPlan getPersistPlan(Class<?> aClass) {
+        PersistPlan plan = this.persistPlans.get(aClass);
+        if (plan == null) {
+            plan = compilePersistPlan(aClass);
+            this.persistPlans.put(aClass, plan);
+        }
+        return plan;
+    }
+
+    private PersistPlan compilePersistPlan(Class<?> aClass) {
+        EntityMetadata metadata = EntityMetadata.of(aClass);
+        PropertyAccessor idProperty = metadata.getIdProperty();
+        // Only the ids of entities with a table are passed on to their dependents
+        PropertyAccessor tableIdProperty = metadata.hasTable() ? idProperty : null;
+        if (this.classesToIgnore.contains(aClass)) {
+            return new PersistPlan(aClass, true, null, null, EMPTY_PROPERTIES, EMPTY_PROPERTIES, idProperty,
+                                   tableIdProperty);
+        }
+        createObjectLoader(aClass, metadata);
+        return new PersistPlan(aClass, false, this.primaryObjectLoaders.get(aClass),
+                               this.secondaryTableObjectLoaders.get(aClass),
+                               metadata.getChildDependents().toArray(EMPTY_PROPERTIES),
+                               metadata.getParentDependents().toArray(EMPTY_PROPERTIES), idProperty, tableIdProperty);
+    }
+
+    /**
+     * Adds an entity to a loader and flushes the largest buffers if that takes the loaders over the memory budget.
+     */
+    private void addToLoader(SingleInfileObjectLoader<Object> loader, Object entity) {
+        InfileDataBuffer buffer = loader.getInfileDataBuffer();
+        int sizeBefore = buffer.getInfileSize();
+        loader.add(entity);
+        // The difference is negative if the loader flushed itself to make room for the entity
+        this.bufferedBytes += buffer.getInfileSize() - sizeBefore;
+
+        while (this.bufferedBytes > this.memoryBudget) {
+            SingleInfileObjectLoader<Object> largest = null;
+            for (SingleInfileObjectLoader<Object> candidate : allObjectLoaders()) {
+                if (largest == null || candidate.getInfileDataBuffer().getInfileSize()
+                        > largest.getInfileDataBuffer().getInfileSize()) {
+                    largest = candidate;
+                }
+            }
+            int largestSize = largest.getInfileDataBuffer().getInfileSize();
+            LOGGER.debug("Buffered {} bytes exceed the memory budget of {} bytes, flushing {} bytes of [{}].",
+                         this.bufferedBytes, this.memoryBudget, largestSize, largest.getTableName());
+            if (this.foreignKeyChecks) {
+                flushDependenciesOf(largest);
+            }
+            largest.flush();
+            this.bufferedBytes -= largestSize;
         }
     }
 
-    private void initForClass(Class<?> aClass) {
-        findParentDependents(aClass);
-        findChildDependents(aClass);
-        createObjectLoader(aClass);
+    private Iterable<SingleInfileObjectLoader<Object>> allObjectLoaders() {
+        return concat(this.primaryObjectLoaders.values(), this.secondaryTableObjectLoaders.values());
     }
 
-    private void createObjectLoader(Class<?> aClass) {
+    private void createObjectLoader(Class<?> aClass, EntityMetadata metadata) {
         if (this.primaryObjectLoaders.containsKey(aClass)) {
             return;
         }
         SingleInfileObjectLoader<Object> primaryLoader = new SingleInfileObjectLoaderBuilder<>(aClass)
-                .withEventBus(this.eventBus)
+                .withLoadEvents(this.loadEvents)
                 .withBuffer(newInfileDataBuffer())
                 .withDefaultTableName()
                 .withStatementExecutor(this.statementExecutor)
                 .usingAnnotationInspector(this.persistenceAnnotationInspector)
                 .useReplace(this.useReplace)
+                .useRawBinary(this.useRawBinary)
+                .useGeneratedRowWriter(this.useGeneratedRowWriters)
+                .withAsyncFlush(this.flushExecutor, this.maxInFlightFlushes)
+                .withFlushPolicy(this.flushPolicy)
+                .withIdAllocatorFactory(getSharedIdAllocatorFactory())
                 .build();
 
         this.primaryObjectLoaders.put(aClass, primaryLoader);
+        flushDependenciesFirst(primaryLoader);
 
-        for (SecondaryTable secondaryTable : this.persistenceAnnotationInspector.findSecondaryTables(aClass)) {
+        for (SecondaryTable secondaryTable : metadata.getSecondaryTables()) {
             if (!this.secondaryClassesToIgnore.contains(secondaryTable.name())) {
                 SingleInfileObjectLoader<Object> secondaryLoader = new SingleInfileObjectLoaderBuilder<>(aClass)
-                        .withEventBus(this.eventBus)
+                        .withLoadEvents(this.loadEvents)
                         .withBuffer(newInfileDataBuffer())
                         .withDefaultTableName()
                         .usingSecondaryTable(secondaryTable)
                         .withStatementExecutor(this.statementExecutor)
                         .usingAnnotationInspector(this.persistenceAnnotationInspector)
                         .useReplace(this.useReplace)
+                        .useRawBinary(this.useRawBinary)
+                        .useGeneratedRowWriter(this.useGeneratedRowWriters)
+                        .withAsyncFlush(this.flushExecutor, this.maxInFlightFlushes)
+                        .withFlushPolicy(this.flushPolicy)
                         .build();
 
                 this.secondaryTableObjectLoaders.put(aClass, secondaryLoader);
+                flushDependenciesFirst(secondaryLoader);
             }
         }
     }
 
-    private void findParentDependents(Class<?> aClass) {
-        if (this.parentDependent.containsKey(aClass)) {
-            return;
+    /**
+     * With foreign key checks, makes a loader flush the tables it depends on before flushing on its own.
+     */
+    private void flushDependenciesFirst(final SingleInfileObjectLoader<Object> loader) {
+        if (this.foreignKeyChecks) {
+            loader.setFlushPrerequisite(new Runnable() {
+                @Override
+                public void run() {
+                    flushDependenciesOf(loader);
+                }
+            });
         }
-        Set<Method> methods = newHashSet(this.persistenceAnnotationInspector.methodsAnnotatedWith(aClass, OneToMany.class));
-        methods.addAll(this.persistenceAnnotationInspector.methodsAnnotatedWith(aClass, OneToOne.class,
-                                                                           PrimaryKeyJoinColumn.class));
-        this.parentDependent.put(aClass, methods.size() > 0 ? methods : ImmutableSet.<Method>of());
+    }
 
-        // Do all children again
-        for (Method m : methods) {
-            findParentDependents(getReturnType(m));
+    private void flushDependenciesOf(SingleInfileObjectLoader<Object> loader) {
+        List<List<String>> waves = getDependencyGraph().getDependencyWaves(loader.getTableName());
+        this.bufferedBytes -= flushInWaves(waves, ImmutableList.of(this));
+    }
+
+    private static List<String> tablesOf(Iterable<HierarchicalInfileObjectLoader> instances) {
+        Set<String> tables = newLinkedHashSet();
+        for (HierarchicalInfileObjectLoader instance : instances) {
+            for (SingleInfileObjectLoader<Object> loader : instance.allObjectLoaders()) {
+                tables.add(loader.getTableName());
+            }
         }
+        return ImmutableList.copyOf(tables);
     }
 
-    private void findChildDependents(Class<?> aClass) {
-        if (this.childDependent.containsKey(aClass)) {
-            return;
+    /**
+     * Flushes the loaders of the given tables of the given instances one wave after the other. All loaders of a wave
+     * start flushing before any of them is waited for, so with asynchronous flushes they send their buffers at the same
+     * time.
+     *
+     * @return the number of bytes flushed
+     */
+    private static long flushInWaves(List<List<String>> waves, Iterable<HierarchicalInfileObjectLoader> instances) {
+        Map<String, List<SingleInfileObjectLoader<Object>>> loadersByTable = newHashMap();
+        for (HierarchicalInfileObjectLoader instance : instances) {
+            for (SingleInfileObjectLoader<Object> loader : instance.allObjectLoaders()) {
+                List<SingleInfileObjectLoader<Object>> tableLoaders = loadersByTable.get(loader.getTableName());
+                if (tableLoaders == null) {
+                    tableLoaders = newArrayList();
+                    loadersByTable.put(loader.getTableName(), tableLoaders);
+                }
+                tableLoaders.add(loader);
+            }
         }
 
-        Set<Method> methods = newHashSet(this.persistenceAnnotationInspector.methodsAnnotatedWith(aClass, ManyToOne.class));
-        methods.addAll(this.persistenceAnnotationInspector.methodsAnnotatedWith(aClass, new Predicate<Method>() {
-            @Override
-            public boolean apply(Method m) {
-                // Must have OneToOne but not PrimaryKeyJoinColumn annotations
-                PersistenceAnnotationInspector annotationInspector =
-                        HierarchicalInfileObjectLoader.this.persistenceAnnotationInspector;
-                return annotationInspector.hasAnnotation(m, OneToOne.class)
-                        && !annotationInspector.hasAnnotation(m, PrimaryKeyJoinColumn.class);
+        long flushedBytes = 0;
+        List<SingleInfileObjectLoader<Object>> waveLoaders = newArrayList();
+        for (List<String> wave : waves) {
+            waveLoaders.clear();
+            for (String table : wave) {
+                List<SingleInfileObjectLoader<Object>> tableLoaders = loadersByTable.get(table);
+                if (tableLoaders != null) {
+                    waveLoaders.addAll(tableLoaders);
+                }
+            }
+            for (SingleInfileObjectLoader<Object> loader : waveLoaders) {
+                flushedBytes += loader.getInfileDataBuffer().getInfileSize();
+                loader.startFlush();
             }
-        }));
+            for (SingleInfileObjectLoader<Object> loader : waveLoaders) {
+                loader.flush();
+            }
+        }
+        return flushedBytes;
+    }
 
-        this.childDependent.put(aClass, methods.size() > 0 ? methods : ImmutableSet.<Method>of());
+    /**
+     * Returns the dependencies between the tables of this loader and its workers, from the relations between the
+     * persisted classes: a table depends on the tables of its many-to-one and one-to-one children, the tables of its
+     * one-to-many and primary key joined children depend on it, and secondary tables depend on their primary table.
+     *
+     * @return the dependency graph, rebuilt when more classes have been persisted
+     */
+    private TableDependencyGraph getDependencyGraph() {
+        Iterable<HierarchicalInfileObjectLoader> instances = concat(ImmutableList.of(this), this.workers);
+        int planCount = 0;
+        for (HierarchicalInfileObjectLoader instance : instances) {
+            planCount += instance.persistPlans.size();
+        }
+        if (this.dependencyGraph != null && this.dependencyGraphPlans == planCount) {
+            return this.dependencyGraph;
+        }
 
-        // Do all children again
-        for (Method m : methods) {
-            findChildDependents(getReturnType(m));
+        Map<Class<?>, PersistPlan> plans = newLinkedHashMap();
+        for (HierarchicalInfileObjectLoader instance : instances) {
+            for (PersistPlan plan : instance.persistPlans.values()) {
+                if (!plan.ignored && !plans.containsKey(plan.entityClass)) {
+                    plans.put(plan.entityClass, plan);
+                }
+            }
         }
+        TableDependencyGraph graph = new TableDependencyGraph();
+        for (PersistPlan plan : plans.values()) {
+            String table = plan.primaryLoader.getTableName();
+            graph.addTable(table);
+            if (plan.secondaryLoader != null) {
+                graph.addDependency(plan.secondaryLoader.getTableName(), table);
+            }
+            for (PropertyAccessor child : plan.childDependents) {
+                for (PersistPlan childPlan : plansOf(plans.values(), getReturnType(child))) {
+                    graph.addDependency(table, childPlan.primaryLoader.getTableName());
+                }
+            }
+            for (PropertyAccessor dependent : plan.parentDependents) {
+                for (PersistPlan dependentPlan : plansOf(plans.values(), getReturnType(dependent))) {
+                    graph.addDependency(dependentPlan.primaryLoader.getTableName(), table);
+                }
+            }
+        }
+        this.dependencyGraph = graph;
+        this.dependencyGraphPlans = planCount;
+        return graph;
     }
 
-    private Class<?> getReturnType(Method m) {
-        if (m.getGenericReturnType() instanceof ParameterizedType) {
+    /**
+     * Returns the plans of a type and its subtypes, as a property may hold objects of any of them.
+     */
+    private static List<PersistPlan> plansOf(Collection<PersistPlan> plans, Class<?> type) {
+        List<PersistPlan> plansOfType = newArrayList();
+        for (PersistPlan plan : plans) {
+            if (type.isAssignableFrom(plan.entityClass)) {
+                plansOfType.add(plan);
+            }
+        }
+        return plansOfType;
+    }
+
+    private Class<?> getReturnType(PropertyAccessor property) {
+        if (property.getGenericType() instanceof ParameterizedType) {
             // For List<String> etc...
-            ParameterizedType type = (ParameterizedType) m.getGenericReturnType();
+            ParameterizedType type = (ParameterizedType) property.getGenericType();
             return (Class<?>) type.getActualTypeArguments()[0];
         }
         else {
-            return (Class<?>) m.getGenericReturnType();
+            return (Class<?>) property.getGenericType();
         }
     }
 
+    /**
+     * Returns the factory sharing one id allocator per table between the loaders of this instance and its workers.
+     * Unless a factory has been set, ids count up from the max id of each table.
+     *
+     * @return the shared factory
+     */
+    private SharedIdAllocatorFactory getSharedIdAllocatorFactory() {
+        if (this.sharedIdAllocatorFactory == null) {
+            this.sharedIdAllocatorFactory = new SharedIdAllocatorFactory(
+                    this.idAllocatorFactory != null ? this.idAllocatorFactory : CountingIdAllocator.startingAtMaxId());
+        }
+        return this.sharedIdAllocatorFactory;
+    }
+
     private InfileDataBuffer newInfileDataBuffer() {
         return InfileDataBuffer.builder()
                 .withInfileBufferSize(this.infileBufferSize)
                 .withRowBufferSize(this.rowBufferSize)
+                .withChunkPool(getChunkPool())
                 .build();
     }
 
-    private Object invoke(Method method, Object target) {
-        try {
-            return method.invoke(target);
-        }
-        catch (ReflectiveOperationException e) {
-            throw propagate(e);
+    /**
+     * Returns the chunk pool shared by all infile buffers. Unless one has been set, the pool uses chunks of
+     * {@link InfileChunkPool#DEFAULT_CHUNK_SIZE} bytes and keeps up to a single infile buffer's worth of released chunks,
+     * plus one for each flush that may be in flight.
+     *
+     * @return the shared chunk pool
+     */
+    private InfileChunkPool getChunkPool() {
+        if (this.chunkPool == null) {
+            int chunkSize = Math.min(InfileChunkPool.DEFAULT_CHUNK_SIZE, this.infileBufferSize);
+            int maxPooledChunks = IntMath.divide(this.infileBufferSize, chunkSize, RoundingMode.CEILING)
+                    * (this.maxInFlightFlushes + 1);
+            this.chunkPool = new InfileChunkPool(chunkSize, maxPooledChunks, this.useDirectInfileBuffers);
         }
+        return this.chunkPool;
     }
 
     /**
-     * Flushes all object loaders
+     * Flushes all object loaders, including those of parallel workers. With foreign key checks enabled, tables are
+     * flushed after the tables they refer to by many-to-one and one-to-one relations, and before their one-to-many and
+     * secondary tables, and tables not depending on each other are flushed in the same wave. Without them all tables are
+     * flushed in a single wave, in the order they were first persisted. With
+     * {@link #setAsyncFlush(ExecutorService, int) asynchronous flushes} the tables of a wave send their buffers at the
+     * same time.
      */
     @Override
     public void flush() {
         LOGGER.debug("Flushing all object loaders.");
-        for (SingleInfileObjectLoader<?> loader : this.primaryObjectLoaders.values()) {
-            loader.flush();
+        boolean locked = lockStripes();
+        try {
+            Iterable<HierarchicalInfileObjectLoader> instances = concat(ImmutableList.of(this), this.workers);
+            List<List<String>> waves = this.foreignKeyChecks
+                                       ? getDependencyGraph().getWaves()
+                                       : ImmutableList.of(tablesOf(instances));
+            flushInWaves(waves, instances);
+            for (HierarchicalInfileObjectLoader instance : instances) {
+                instance.bufferedBytes = 0;
+            }
+        }
+        finally {
+            if (locked) {
+                unlockStripes();
+            }
+        }
+    }
+
+    /**
+     * Flushes the loaders whose flush policy says it is time to, for example because their oldest row has waited too
+     * long. Persisting objects already does this for the tables they touch, so it is only needed while nothing is
+     * persisted for a while. It must not be called while a parallel persist is running, but may be called while
+     * concurrent persists are running, which it waits for.
+     *
+     * @see #setFlushPolicy(FlushPolicy)
+     */
+    public void flushIfDue() {
+        boolean locked = lockStripes();
+        try {
+            for (SingleInfileObjectLoader<Object> loader : allObjectLoaders()) {
+                int infileSize = loader.getInfileDataBuffer().getInfileSize();
+                if (loader.flushIfDue()) {
+                    this.bufferedBytes -= infileSize;
+                }
+            }
+            for (HierarchicalInfileObjectLoader worker : this.workers) {
+                worker.flushIfDue();
+            }
         }
-        for (SingleInfileObjectLoader<?> loader : this.secondaryTableObjectLoaders.values()) {
-            loader.flush();
+        finally {
+            if (locked) {
+                unlockStripes();
+            }
         }
     }
 
@@ -298,16 +790,69 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
         LOGGER.debug("Closing all object loaders.");
         this.primaryObjectLoaders.clear();
         this.secondaryTableObjectLoaders.clear();
+        this.persistPlans.clear();
+        this.dependencyGraph = null;
+        this.workers.clear();
+        this.stripes = null;
         this.statementExecutor.shutdown();
     }
 
     /**
-     * Disables foreign key checks for this connection by executing {@code SET FOREIGN_KEY_CHECKS = 0}
+     * Makes {@link #persist(Iterable)} safe to call from several threads at once, for example to feed one loader from
+     * the threads serving requests. The objects of each call are buffered by one of {@code stripes} workers, each with
+     * buffers of its own for every table. A call takes a worker no other thread is using, and only waits if all of them
+     * are. Ids are generated by one allocator per table shared by all workers, and the memory budget is divided among
+     * them. Event listeners are called on the persisting threads.
+     * <p/>
+     * {@link #flush()} and {@link #flushIfDue()} wait for running persists and flush the buffers of all workers; they
+     * may be called from any thread. The workers are created on first use with the settings of this loader at that
+     * time, so this must be called after the other settings and before anything is persisted. Settings must not be
+     * changed while persisting. Concurrent persists cannot be combined with
+     * {@link #persist(Iterable, ExecutorService, int)}.
+     *
+     * @param stripes the number of workers, usually about the number of threads persisting at once
+     */
+    public void setConcurrentPersist(int stripes) {
+        Preconditions.checkArgument(stripes > 0, "stripes must be positive");
+        Preconditions.checkState(this.workers.isEmpty(), "concurrent persists must be enabled before persisting");
+        this.stripeCount = stripes;
+    }
+
+    /**
+     * Disables foreign key checks for this connection by executing {@code SET FOREIGN_KEY_CHECKS = 0}, unless they are to
+     * be kept with {@link #setForeignKeyChecks(boolean)}.
      */
     public void setConnection(Connection connection) {
         Preconditions.checkNotNull(connection, "connection can't be null");
 
-        this.statementExecutor = new ConnectionBasedStatementExecutor(connection);
+        this.statementExecutor = new ConnectionBasedStatementExecutor(connection, !this.foreignKeyChecks);
+    }
+
+    /**
+     * Leases up to {@code maxConnections} connections from the data source, so that asynchronous flushes and parallel
+     * workers send their buffers over separate sessions at the same time. Foreign key checks are disabled on every
+     * connection, unless they are to be kept with {@link #setForeignKeyChecks(boolean)}.
+     *
+     * @see PooledStatementExecutor
+     */
+    public void setDataSource(DataSource dataSource, int maxConnections) {
+        this.statementExecutor = new PooledStatementExecutor(dataSource, maxConnections, !this.foreignKeyChecks);
+    }
+
+    /**
+     * Keeps foreign key checks enabled while loading, for databases where they may not be disabled. Tables are then
+     * flushed after the tables they depend on, also when a single table flushes because its buffer is full, its flush
+     * policy says so or the memory budget is exceeded; the tables it depends on are flushed first, so flushes get
+     * smaller. Tables that depend on each other in a cycle cannot be loaded this way.
+     * <p/>
+     * Must be called before {@link #setConnection(Connection)} or {@link #setDataSource(DataSource, int)} and before
+     * anything is persisted. A statement executor set with {@link #setStatementExecutor(StatementExecutor)} must leave
+     * foreign key checks enabled itself.
+     *
+     * @param foreignKeyChecks whether foreign key checks are enabled, false by default
+     */
+    public void setForeignKeyChecks(boolean foreignKeyChecks) {
+        this.foreignKeyChecks = foreignKeyChecks;
     }
 
     public void setStatementExecutor(StatementExecutor statementExecutor) {
@@ -326,6 +871,116 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
         this.rowBufferSize = rowBufferSize;
     }
 
+    /**
+     * Toggles allocating infile buffers off-heap. Infile buffers are made of chunks from a shared pool, so direct memory
+     * use grows with the amount of buffered data rather than with the number of tables. This has no effect when a chunk
+     * pool is set with {@link #setChunkPool(InfileChunkPool)}.
+     *
+     * @see InfileDataBuffer.Builder#useDirectInfileBuffer(boolean)
+     * @see InfileDataBuffer#maxDirectMemory()
+     */
+    public void setUseDirectInfileBuffers(boolean useDirectInfileBuffers) {
+        this.useDirectInfileBuffers = useDirectInfileBuffers;
+    }
+
+    /**
+     * Makes every table send its full buffers to the database on the given executor while rows keep being added, with at
+     * most {@code maxInFlightFlushes} buffers per table being sent at once. {@link #flush()} still waits for everything
+     * to be sent. The executor is not shut down by this loader.
+     *
+     * @see InfileObjectLoader#setAsyncFlush(ExecutorService, int)
+     */
+    public void setAsyncFlush(ExecutorService flushExecutor, int maxInFlightFlushes) {
+        Preconditions.checkNotNull(flushExecutor, "flushExecutor can't be null");
+        Preconditions.checkArgument(maxInFlightFlushes > 0, "max in-flight flushes must be positive");
+        this.flushExecutor = flushExecutor;
+        this.maxInFlightFlushes = maxInFlightFlushes;
+    }
+
+    /**
+     * Sets the policy deciding when each table flushes before its buffer is full, for example after a maximum age, number
+     * of rows or number of bytes. Every table gets its own policy from {@link FlushPolicy#forLoader()}, so an
+     * {@link com.opower.persistence.jpile.loader.flush.AdaptiveFlushPolicy} tunes the size of each table on its own. Only
+     * applies to tables persisted to for the first time after it is set.
+     *
+     * @see InfileObjectLoader#setFlushPolicy(FlushPolicy)
+     * @see #flushIfDue()
+     */
+    public void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = Preconditions.checkNotNull(flushPolicy, "flushPolicy can't be null");
+    }
+
+    /**
+     * Sets the factory of the allocators of auto generated ids. By default ids count up from the max id a table has when
+     * it is first persisted to, which is only safe if nothing else loads into the table at the same time.
+     *
+     * @see com.opower.persistence.jpile.loader.id.SequenceTableIdAllocator#factory(String, int)
+     */
+    public void setIdAllocatorFactory(IdAllocatorFactory idAllocatorFactory) {
+        this.idAllocatorFactory = Preconditions.checkNotNull(idAllocatorFactory, "idAllocatorFactory can't be null");
+        this.sharedIdAllocatorFactory = null;
+    }
+
+    /**
+     * Sets the maximum number of bytes buffered by the loaders of all tables together. Each table still flushes on its own
+     * when its infile buffer is full, but when the total goes over the budget the largest buffers are flushed until it
+     * is back within it. This bounds memory use regardless of how many tables a graph touches. The budget counts buffered
+     * row data; every table with buffered rows also holds on to at most one partially filled chunk.
+     *
+     * @param memoryBudget the budget in bytes, {@link Long#MAX_VALUE} (the default) for no budget
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        Preconditions.checkArgument(memoryBudget > 0, "memory budget must be positive");
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * @return the number of bytes currently buffered by the loaders of all tables, including those of parallel workers.
+     *         Only an estimate while concurrent persists are running.
+     */
+    public long getBufferedBytes() {
+        long totalBufferedBytes = this.bufferedBytes;
+        for (HierarchicalInfileObjectLoader worker : this.workers) {
+            totalBufferedBytes += worker.getBufferedBytes();
+        }
+        return totalBufferedBytes;
+    }
+
+    /**
+     * Returns the number of bytes currently buffered for each table, in the order the tables were first persisted.
+     *
+     * @return buffered bytes by table name
+     */
+    public Map<String, Integer> getBufferedBytesByTable() {
+        Map<String, Integer> bufferedBytesByTable = newLinkedHashMap();
+        boolean locked = lockStripes();
+        try {
+            Iterable<SingleInfileObjectLoader<Object>> loaders = allObjectLoaders();
+            for (HierarchicalInfileObjectLoader worker : this.workers) {
+                loaders = concat(loaders, worker.allObjectLoaders());
+            }
+            for (SingleInfileObjectLoader<Object> loader : loaders) {
+                Integer tableBytes = bufferedBytesByTable.get(loader.getTableName());
+                int infileSize = loader.getInfileDataBuffer().getInfileSize();
+                bufferedBytesByTable.put(loader.getTableName(), tableBytes == null ? infileSize : tableBytes + infileSize);
+            }
+        }
+        finally {
+            if (locked) {
+                unlockStripes();
+            }
+        }
+        return Collections.unmodifiableMap(bufferedBytesByTable);
+    }
+
+    /**
+     * Sets the pool the infile buffers of all tables take their chunks from. The pool may be shared with other loaders.
+     * Each table still buffers at most {@link #setInfileBufferSize(int) infileBufferSize} bytes before flushing.
+     */
+    public void setChunkPool(InfileChunkPool chunkPool) {
+        this.chunkPool = Preconditions.checkNotNull(chunkPool, "chunkPool can't be null");
+    }
+
     /**
      * This method is deprecated.
      *
@@ -349,6 +1004,8 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
      */
     public void setIgnoredClasses(Set<Class<?>> classesToIgnore) {
         this.classesToIgnore = classesToIgnore;
+        this.persistPlans.clear();
+        this.dependencyGraph = null;
     }
 
     public void setSecondaryClassesToIgnore(Set<String> secondaryClassesToIgnore) {
@@ -359,8 +1016,8 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
      * This method is decommissioned.
      * <br/>
      * Use {@link #subscribe(Object)} method by passing listener object which has public method that
-     * marked by {@link com.google.common.eventbus.Subscribe} annotation and accepts {@link SaveEntityEvent}
-     * as argument. Example:
+     * marked by {@link com.google.common.eventbus.Subscribe} annotation and accepts
+     * {@link com.opower.persistence.jpile.infile.events.SaveEntityEvent} as argument. Example:
      * <pre>
      * {@code public class Listener {
      *     @literal @Subscribe public void handle(SaveEntityEvent event) { }
@@ -388,12 +1045,14 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
      *     @literal @Subscribe public void handle(FlushEvent event) { }
      *  }}
      * </pre>
+     * Events are only created and posted once a listener has been subscribed. {@link #addListener(LoadListener)} adds
+     * a typed listener that is called without creating events at all.
      *
      * @see EventBus#register(Object)
      * @since 1.8.0
      */
     public void subscribe(Object listener) {
-        this.eventBus.register(listener);
+        this.loadEvents.subscribe(listener);
     }
 
     /**
@@ -403,7 +1062,24 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
      * @since 1.8.0
      */
     public void unsubscribe(Object listener) {
-        this.eventBus.unregister(listener);
+        this.loadEvents.unsubscribe(listener);
+    }
+
+    /**
+     * Adds a typed listener, called directly rather than through the event bus. Unlike subscribers of the event bus,
+     * listeners can receive all entities saved by a call to {@code persist} at once.
+     *
+     * @see LoadListener
+     */
+    public void addListener(LoadListener listener) {
+        this.loadEvents.addListener(listener);
+    }
+
+    /**
+     * Removes a typed listener. Does nothing if it was not added.
+     */
+    public void removeListener(LoadListener listener) {
+        this.loadEvents.removeListener(listener);
     }
 
     /**
@@ -415,7 +1091,7 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
      * @since 1.8.0
      */
     public void setEventBus(EventBus eventBus) {
-        this.eventBus = eventBus;
+        this.loadEvents.setEventBus(eventBus);
     }
 
     /**
@@ -426,6 +1102,75 @@ public class HierarchicalInfileObjectLoader implements Flushable, Closeable {
         this.useReplace = useReplace;
     }
 
+    /**
+     * Toggles raw binary mode. In this mode {@code byte[]} columns are sent as escaped raw bytes instead of being hex
+     * encoded and decoded with {@code unhex()}, and the data is loaded with {@code CHARACTER SET binary}. Text columns
+     * are then stored without conversion, so they must use the same charset as the infile buffers (UTF-8).
+     *
+     * @see SingleInfileObjectLoaderBuilder#useRawBinary(boolean)
+     */
+    public void setUseRawBinary(boolean useRawBinary) {
+        this.useRawBinary = useRawBinary;
+    }
+
+    /**
+     * Toggles generating row writers for the entity classes, enabled by default. Turn it off to convert all entities
+     * with reflection, for example when classes cannot be defined at runtime.
+     *
+     * @see SingleInfileObjectLoaderBuilder#useGeneratedRowWriter(boolean)
+     */
+    public void setUseGeneratedRowWriters(boolean useGeneratedRowWriters) {
+        this.useGeneratedRowWriters = useGeneratedRowWriters;
+    }
+
+    /**
+     * How to persist the objects of one class: the loaders of its tables, the properties holding the objects to persist
+     * before and after it, and its id property, all resolved once so persisting an object needs no lookups by class.
+     */
+    private static final class PersistPlan {
+        private final Class<?> entityClass;
+        private final boolean ignored;
+        private final SingleInfileObjectLoader<Object> primaryLoader;
+        // Null if there is no secondary table
+        private final SingleInfileObjectLoader<Object> secondaryLoader;
+        private final PropertyAccessor[] childDependents;
+        private final PropertyAccessor[] parentDependents;
+        // Null if there is no id property, or no table whose id it is
+        private final PropertyAccessor idProperty;
+        private final PropertyAccessor tableIdProperty;
+
+        private PersistPlan(Class<?> entityClass, boolean ignored, SingleInfileObjectLoader<Object> primaryLoader,
+                            SingleInfileObjectLoader<Object> secondaryLoader, PropertyAccessor[] childDependents,
+                            PropertyAccessor[] parentDependents, PropertyAccessor idProperty,
+                            PropertyAccessor tableIdProperty) {
+            this.entityClass = entityClass;
+            this.ignored = ignored;
+            this.primaryLoader = primaryLoader;
+            this.secondaryLoader = secondaryLoader;
+            this.childDependents = childDependents;
+            this.parentDependents = parentDependents;
+            this.idProperty = idProperty;
+            this.tableIdProperty = tableIdProperty;
+        }
+
+        /**
+         * @see PersistenceAnnotationInspector#getIdValue(PersistenceAnnotationInspector, Object)
+         */
+        private Object getIdValue(Object entity) {
+            return this.tableIdProperty != null ? this.tableIdProperty.get(entity) : null;
+        }
+
+        /**
+         * @see PersistenceAnnotationInspector#setIdValue(PersistenceAnnotationInspector, Object, Object)
+         */
+        private void setIdValue(Object entity, Object id) {
+            Preconditions.checkNotNull(this.idProperty, "@Id not found for class [%s]", this.entityClass);
+            if (this.idProperty.isWritable()) {
+                this.idProperty.set(entity, id);
+            }
+        }
+    }
+
     /**
      * An event interface that can be used to do perform actions before and after persisting objects
      *
@@ -0,0 +1,224 @@
+package com.opower.persistence.jpile.loader;
+
+import com.google.common.base.Preconditions;
+import com.opower.persistence.jpile.reflection.PropertyAccessor;
+
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.TemporalType;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.util.Date;
+
+/**
+ * A column of a {@link SingleInfileObjectLoader}, with everything needed to append its values resolved from the
+ * annotations of its property when the loader is built. Converting a row then only looks at these descriptors.
+ * <p/>
+ * Instances of this class are immutable.
+ *
+ * @author agent
+ */
+final class InfileColumn {
+
+    /**
+     * How the values of a column are appended, resolved from the declared type of its property.
+     */
+    enum Type {
+        LONG,
+        INT,
+        DOUBLE,
+        FLOAT,
+        BIG_DECIMAL,
+        BOOLEAN,
+        CHARACTER,
+        STRING,
+        DATE,
+        LOCAL_DATE,
+        LOCAL_TIME,
+        LOCAL_DATE_TIME,
+        INSTANT,
+        OFFSET_DATE_TIME,
+        BYTES,
+        ENUM,
+        // A reference to another entity, replaced by its id
+        ENTITY,
+        // Resolved from the runtime type of each value, for columns declared as Object, Number and the like
+        DYNAMIC;
+
+        /**
+         * Finds how values of a type are appended. Entities are not recognized by this method.
+         *
+         * @param aClass the type of the values, may be primitive
+         * @return the type, or {@link #DYNAMIC} if values of the type have no specific append method
+         */
+        static Type of(Class<?> aClass) {
+            if (aClass == Long.class || aClass == long.class) {
+                return LONG;
+            }
+            if (aClass == Integer.class || aClass == Short.class || aClass == Byte.class
+                || aClass == int.class || aClass == short.class || aClass == byte.class) {
+                return INT;
+            }
+            if (aClass == Double.class || aClass == double.class) {
+                return DOUBLE;
+            }
+            if (aClass == Float.class || aClass == float.class) {
+                return FLOAT;
+            }
+            if (aClass == Boolean.class || aClass == boolean.class) {
+                return BOOLEAN;
+            }
+            if (aClass == Character.class || aClass == char.class) {
+                return CHARACTER;
+            }
+            if (aClass == String.class) {
+                return STRING;
+            }
+            if (Date.class.isAssignableFrom(aClass)) {
+                return DATE;
+            }
+            if (aClass == LocalDate.class) {
+                return LOCAL_DATE;
+            }
+            if (aClass == LocalTime.class) {
+                return LOCAL_TIME;
+            }
+            if (aClass == LocalDateTime.class) {
+                return LOCAL_DATE_TIME;
+            }
+            if (aClass == Instant.class) {
+                return INSTANT;
+            }
+            if (aClass == OffsetDateTime.class) {
+                return OFFSET_DATE_TIME;
+            }
+            if (aClass == byte[].class) {
+                return BYTES;
+            }
+            if (Enum.class.isAssignableFrom(aClass)) {
+                return ENUM;
+            }
+            if (BigDecimal.class.isAssignableFrom(aClass)) {
+                return BIG_DECIMAL;
+            }
+            return DYNAMIC;
+        }
+    }
+
+    private final String name;
+    private final PropertyAccessor property;
+    private final Type type;
+    private final int precision;
+    private final int scale;
+    private final TemporalType temporalType;
+    private final boolean enumName;
+    private final PropertyAccessor referencedId;
+
+    /**
+     * @param name               the name of the column
+     * @param property           the property the values of the column are read from
+     * @param type               how values are appended
+     * @param precision          the precision of decimal values, 0 if they are not formatted with a fixed scale
+     * @param scale              the scale of decimal values, 0 if they are not formatted with a fixed scale
+     * @param temporalType       the temporal type of {@link Date} values, null if there is none
+     * @param referencedId       the id property of the referenced entity, for {@link Type#ENTITY} columns
+     */
+    InfileColumn(String name, PropertyAccessor property, Type type, int precision, int scale, TemporalType temporalType,
+                 PropertyAccessor referencedId) {
+        this.name = Preconditions.checkNotNull(name, "name cannot be null");
+        this.property = Preconditions.checkNotNull(property, "property cannot be null");
+        this.type = Preconditions.checkNotNull(type, "type cannot be null");
+        this.precision = precision;
+        this.scale = scale;
+        this.temporalType = temporalType;
+        this.enumName = isEnumeratedByName(property.getAnnotatedElement());
+        this.referencedId = referencedId;
+    }
+
+    /**
+     * Checks whether the values of an enum column are stored by name rather than by ordinal.
+     *
+     * @param element the getter or field of the column
+     * @return true if it is annotated with {@code @Enumerated(EnumType.STRING)}
+     */
+    static boolean isEnumeratedByName(AnnotatedElement element) {
+        Enumerated enumerated = element.getAnnotation(Enumerated.class);
+        return enumerated != null && enumerated.value() == EnumType.STRING;
+    }
+
+    /**
+     * @return the name of the column
+     */
+    String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return the property the values of the column are read from
+     */
+    PropertyAccessor getProperty() {
+        return this.property;
+    }
+
+    /**
+     * @return the getter of the column, null if its property is accessed through its field
+     */
+    Method getGetter() {
+        return this.property.getGetter();
+    }
+
+    /**
+     * @return how values of the column are appended
+     */
+    Type getType() {
+        return this.type;
+    }
+
+    /**
+     * @return true if decimal values are formatted with the precision and scale of the column
+     */
+    boolean isScaled() {
+        return this.precision > 0 && this.scale > 0;
+    }
+
+    /**
+     * @return the precision of decimal values
+     */
+    int getPrecision() {
+        return this.precision;
+    }
+
+    /**
+     * @return the scale of decimal values
+     */
+    int getScale() {
+        return this.scale;
+    }
+
+    /**
+     * @return the temporal type of {@link Date} values, null if the property is not annotated with one
+     */
+    TemporalType getTemporalType() {
+        return this.temporalType;
+    }
+
+    /**
+     * @return true if enum values are stored by name, false if they are stored by ordinal
+     */
+    boolean isEnumName() {
+        return this.enumName;
+    }
+
+    /**
+     * @return the id property of the referenced entity, null if there is none
+     */
+    PropertyAccessor getReferencedId() {
+        return this.referencedId;
+    }
+}
@@ -1,17 +1,32 @@
 package com.opower.persistence.jpile.loader;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.opower.persistence.jpile.infile.InfileContents;
 import com.opower.persistence.jpile.infile.InfileDataBuffer;
+import com.opower.persistence.jpile.infile.InfilePipe;
 import com.opower.persistence.jpile.infile.InfileRow;
 import com.opower.persistence.jpile.infile.InfileStatementCallback;
 import com.opower.persistence.jpile.jdbc.ConnectionBasedStatementExecutor;
 import com.opower.persistence.jpile.jdbc.StatementCallback;
 import com.opower.persistence.jpile.jdbc.StatementExecutor;
+import com.opower.persistence.jpile.loader.flush.FlushPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.Flushable;
 import java.sql.Connection;
+import java.util.ArrayDeque;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class provides a convenient pattern for loading POJOs in batch to MySQL via tha 'LOAD DATA INFILE' protocol.
@@ -24,6 +39,15 @@ import java.util.List;
  * {@link #add(Object)} method. This will ensure that any objects that were not auto-flushed as a result of a full buffer
  * are pushed as well.
  * <p/>
+ * Flushes can be made asynchronous with {@link #setAsyncFlush(ExecutorService, int)}. A full buffer is then handed to a
+ * sender running on the given executor while rows keep being added to a fresh buffer; if the executor rejects it, the
+ * buffer is sent on the calling thread instead. With
+ * {@link #setStreamingLoad(ExecutorService, int)} full buffers are instead streamed into a single {@code LOAD DATA}
+ * statement that lasts until the next {@link #flush()}.
+ * <p/>
+ * A {@link FlushPolicy} set with {@link #setFlushPolicy(FlushPolicy)} can make the loader flush before the buffer is full,
+ * for example once its oldest row has waited long enough.
+ * <p/>
  * Instances of this class are not safe for use by multiple threads.
  *
  * @param <E> entity to be converted to infile row
@@ -32,6 +56,10 @@ import java.util.List;
  * @since 1.0
  */
 public abstract class InfileObjectLoader<E> implements Flushable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(InfileObjectLoader.class);
+
+    // How long to wait for room in the pipe of a streaming load before checking whether the load is still running
+    private static final long PIPE_WAIT_MILLIS = 100;
 
     /**
      * Statement executor that will execute JDBC statements
@@ -66,6 +94,20 @@ public abstract class InfileObjectLoader<E> implements Flushable {
     // build a very large one if needed.
     private List<Exception> warnings;
 
+    // Asynchronous flushing, disabled unless an executor is set. Oldest in-flight flush first.
+    private ExecutorService flushExecutor;
+    private int maxInFlightFlushes;
+    private final Deque<Future<List<Exception>>> inFlightFlushes = new ArrayDeque<>();
+    // Streaming loads. The pipe feeds the single in-flight LOAD DATA statement, if one has been started.
+    private boolean streaming;
+    private InfilePipe pipe;
+    // Decides whether to flush before the buffer is full, if set. The rows in the buffer and when the first was added.
+    private FlushPolicy flushPolicy;
+    private int bufferedRows;
+    private long firstRowNanos;
+    // Run before the buffer is flushed while rows are being added, if set
+    private Runnable flushPrerequisite;
+
     /**
      * For subclasses to extend correctly
      */
@@ -112,6 +154,89 @@ public abstract class InfileObjectLoader<E> implements Flushable {
         this.statementExecutor = statementExecutor;
     }
 
+    /**
+     * Makes flushes of full buffers asynchronous. When the buffer is full, its contents are detached and sent to the
+     * database by a task on the executor while rows keep being added. At most {@code maxInFlightFlushes} contents are
+     * in flight at once; adding more rows waits for the oldest one to complete. An exception thrown by a sender is
+     * rethrown by the next call to {@link #add(Object)} or {@link #flush()}, which also still waits for all in-flight
+     * contents to be sent.
+     * <p/>
+     * The executor is not shut down by this loader. Use a single threaded executor to keep rows in order, as
+     * {@code LOAD DATA} statements sent on the same connection are executed one at a time anyway.
+     *
+     * @param flushExecutor      the executor to send contents on
+     * @param maxInFlightFlushes the maximum number of contents being sent at once
+     */
+    protected void setAsyncFlush(ExecutorService flushExecutor, int maxInFlightFlushes) {
+        Preconditions.checkNotNull(flushExecutor, "flushExecutor cannot be null");
+        Preconditions.checkArgument(maxInFlightFlushes > 0, "maxInFlightFlushes should be positive");
+        this.flushExecutor = flushExecutor;
+        this.maxInFlightFlushes = maxInFlightFlushes;
+        this.streaming = false;
+    }
+
+    /**
+     * Streams full buffers into a single {@code LOAD DATA} statement instead of executing one statement per buffer. The
+     * statement is started on the executor when the first buffer is full and reads the contents of the buffers through
+     * an {@link InfilePipe} holding at most {@code maxQueuedBuffers} of them. It ends when {@link #flush()} is called,
+     * so a batch of any size is loaded with one statement. Adding more rows waits while the pipe is full, and an
+     * exception thrown by the statement is rethrown by the next call to {@link #add(Object)} or {@link #flush()}.
+     * <p/>
+     * The statement keeps its connection busy until the batch ends, so the statement executor must not be used for
+     * anything else in the meantime. The executor is not shut down by this loader.
+     *
+     * @param flushExecutor    the executor to run the statement on
+     * @param maxQueuedBuffers the maximum number of buffers sent to the statement but not read yet
+     */
+    protected void setStreamingLoad(ExecutorService flushExecutor, int maxQueuedBuffers) {
+        setAsyncFlush(flushExecutor, maxQueuedBuffers);
+        this.streaming = true;
+    }
+
+    /**
+     * @return whether full buffers are streamed into a single statement per batch
+     */
+    protected boolean isStreamingLoad() {
+        return this.streaming;
+    }
+
+    /**
+     * Sets the policy deciding when to flush before the buffer is full. Without a policy the buffer is only flushed when
+     * it is full or when {@link #flush()} is called. The policy is told how long each flush takes, except for streaming
+     * loads, which send a whole batch with one statement. Streaming loads send flushed rows down the stream, so they are
+     * only visible in the database once the batch ends.
+     *
+     * @param flushPolicy the policy of this loader, or null for none
+     */
+    protected void setFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+    }
+
+    /**
+     * @return the policy deciding when to flush before the buffer is full, null if there is none
+     */
+    protected FlushPolicy getFlushPolicy() {
+        return this.flushPolicy;
+    }
+
+    /**
+     * Sets what to run before the buffer is flushed because it is full or because the flush policy says so, for example
+     * flushing the loaders of the tables the rows of this loader refer to by foreign keys. It is not run by
+     * {@link #flush()}, as the caller decides what to flush first.
+     *
+     * @param flushPrerequisite what to run before flushing while rows are being added, or null for nothing
+     */
+    protected void setFlushPrerequisite(Runnable flushPrerequisite) {
+        this.flushPrerequisite = flushPrerequisite;
+    }
+
+    /**
+     * @return whether full buffers are flushed asynchronously
+     */
+    protected boolean isAsyncFlush() {
+        return this.flushExecutor != null;
+    }
+
     /**
      * Add an entity to be written to the database as an infile row.
      *
@@ -119,16 +244,53 @@ public abstract class InfileObjectLoader<E> implements Flushable {
      */
     public void add(E entity) {
         Preconditions.checkNotNull(entity, "Entity to add cannot be null");
+        awaitCompletedFlushes();
 
         this.convertToInfileRow(entity, this.infileDataBuffer.newRow());
         if (!this.infileDataBuffer.addRowToInfile()) {
-            this.flush();
+            flushFullBuffer();
             if (!this.infileDataBuffer.addRowToInfile()) {
                 // This should be impossible, as the buffer asserts that an empty infile can accept
                 // any valid row.
                 throw new IllegalStateException("Cannot add row to infile, even though infile has been flushed.");
             }
         }
+        if (this.bufferedRows++ == 0) {
+            this.firstRowNanos = System.nanoTime();
+        }
+        flushIfDue();
+    }
+
+    /**
+     * Flushes the buffer if the flush policy says it is time to, for example because its oldest row has waited too long.
+     * Adding a row already does this, so it is only needed while no rows are being added. It must be called from the
+     * thread adding the rows, as this loader is not thread safe.
+     *
+     * @return whether the buffer was flushed
+     */
+    public boolean flushIfDue() {
+        if (this.flushPolicy == null || this.bufferedRows == 0
+                || !this.flushPolicy.shouldFlush(this.bufferedRows, this.infileDataBuffer.getInfileSize(),
+                                                 System.nanoTime() - this.firstRowNanos)) {
+            return false;
+        }
+        flushFullBuffer();
+        return true;
+    }
+
+    /**
+     * Flushes a buffer that cannot take any more rows, on the flush executor if there is one.
+     */
+    private void flushFullBuffer() {
+        if (this.flushPrerequisite != null) {
+            this.flushPrerequisite.run();
+        }
+        if (isAsyncFlush()) {
+            sendAsync();
+        }
+        else {
+            this.flush();
+        }
     }
 
     /**
@@ -145,13 +307,200 @@ public abstract class InfileObjectLoader<E> implements Flushable {
      */
     @Override
     public void flush() {
+        if (this.streaming) {
+            sendToPipe();
+            finishPipe();
+            return;
+        }
+        if (isAsyncFlush()) {
+            sendAsync();
+            while (!this.inFlightFlushes.isEmpty()) {
+                awaitOldestFlush();
+            }
+            return;
+        }
         if (!this.infileDataBuffer.isEmptyInfileBuffer()) {
             StatementCallback<List<Exception>> statementCallback = new InfileStatementCallback(
                     this.loadInfileSql, this.infileDataBuffer.asInputStream()
             );
+            long start = System.nanoTime();
             this.warnings = getStatementExecutor().execute(statementCallback);
+            if (this.flushPolicy != null) {
+                this.flushPolicy.flushed(this.bufferedRows, this.infileDataBuffer.getInfileSize(),
+                                         System.nanoTime() - start);
+            }
         }
         this.infileDataBuffer.clear();
+        this.bufferedRows = 0;
+    }
+
+    /**
+     * Starts flushing the buffer without waiting for the flush executor, so that the loaders of several tables can send
+     * their buffers at the same time. {@link #flush()} must be called afterwards to wait for the flush to complete.
+     * Without a flush executor the buffer is flushed right away.
+     */
+    void startFlush() {
+        if (isAsyncFlush()) {
+            sendAsync();
+        }
+        else {
+            flush();
+        }
+    }
+
+    /**
+     * Detaches the contents of the infile buffer and sends them on the flush executor, first waiting for the oldest
+     * flush if too many are in flight.
+     */
+    private void sendAsync() {
+        if (this.streaming) {
+            sendToPipe();
+            return;
+        }
+        if (this.infileDataBuffer.isEmptyInfileBuffer()) {
+            return;
+        }
+        while (this.inFlightFlushes.size() >= this.maxInFlightFlushes) {
+            awaitOldestFlush();
+        }
+
+        final int rows = this.bufferedRows;
+        final InfileContents contents = this.infileDataBuffer.detachInfile();
+        this.bufferedRows = 0;
+        final String sql = this.loadInfileSql;
+        final StatementExecutor executor = getStatementExecutor();
+        final FlushPolicy policy = this.flushPolicy;
+        Callable<List<Exception>> sender = new Callable<List<Exception>>() {
+            @Override
+            public List<Exception> call() {
+                try {
+                    long start = System.nanoTime();
+                    List<Exception> flushWarnings = executor.execute(new InfileStatementCallback(
+                            sql, contents.asInputStream()));
+                    if (policy != null) {
+                        policy.flushed(rows, contents.getSize(), System.nanoTime() - start);
+                    }
+                    return flushWarnings;
+                }
+                finally {
+                    contents.release();
+                }
+            }
+        };
+        Future<List<Exception>> flush;
+        try {
+            flush = this.flushExecutor.submit(sender);
+        }
+        catch (RejectedExecutionException e) {
+            // The rows have already left the buffer, so send them on this thread rather than lose them. The outcome is
+            // collected like that of any other flush.
+            LOGGER.warn("The flush executor rejected the flush of [{}], sending it on the calling thread.", sql, e);
+            FutureTask<List<Exception>> task = new FutureTask<>(sender);
+            task.run();
+            flush = task;
+        }
+        this.inFlightFlushes.add(flush);
+    }
+
+    /**
+     * Detaches the contents of the infile buffer and sends them down the pipe of the streaming load, starting the load if
+     * there is none in flight.
+     */
+    private void sendToPipe() {
+        if (this.infileDataBuffer.isEmptyInfileBuffer()) {
+            return;
+        }
+        if (this.pipe == null) {
+            final InfilePipe newPipe = new InfilePipe(this.maxInFlightFlushes);
+            final String sql = this.loadInfileSql;
+            final StatementExecutor executor = getStatementExecutor();
+            this.inFlightFlushes.add(this.flushExecutor.submit(new Callable<List<Exception>>() {
+                @Override
+                public List<Exception> call() {
+                    try {
+                        return executor.execute(new InfileStatementCallback(sql, newPipe));
+                    }
+                    finally {
+                        newPipe.close();
+                    }
+                }
+            }));
+            this.pipe = newPipe;
+        }
+
+        InfileContents contents = this.infileDataBuffer.detachInfile();
+        this.bufferedRows = 0;
+        try {
+            while (!this.pipe.send(contents, PIPE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                checkStreamingLoadRunning();
+            }
+        }
+        catch (InterruptedException | RuntimeException e) {
+            contents.release();
+            throw propagateInterruption(e);
+        }
+    }
+
+    /**
+     * Ends the stream of the streaming load, if there is one, and waits for the load to complete.
+     */
+    private void finishPipe() {
+        if (this.pipe == null) {
+            return;
+        }
+        try {
+            while (!this.pipe.finish(PIPE_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                checkStreamingLoadRunning();
+            }
+        }
+        catch (InterruptedException e) {
+            throw propagateInterruption(e);
+        }
+        awaitOldestFlush();
+    }
+
+    /**
+     * Rethrows the exception of the streaming load if it ended while the pipe was still being fed.
+     */
+    private void checkStreamingLoadRunning() {
+        if (this.inFlightFlushes.peek().isDone()) {
+            awaitOldestFlush();
+            throw new IllegalStateException("The streaming load ended before all rows were sent.");
+        }
+    }
+
+    private static RuntimeException propagateInterruption(Exception e) {
+        if (e instanceof InterruptedException) {
+            Thread.currentThread().interrupt();
+        }
+        throw Throwables.propagate(e);
+    }
+
+    /**
+     * Collects the results of in-flight flushes that have already completed, without waiting for the others.
+     */
+    private void awaitCompletedFlushes() {
+        while (!this.inFlightFlushes.isEmpty() && this.inFlightFlushes.peek().isDone()) {
+            awaitOldestFlush();
+        }
+    }
+
+    /**
+     * Waits for the oldest in-flight flush and records its warnings, rethrowing its exception if it failed.
+     */
+    private void awaitOldestFlush() {
+        Future<List<Exception>> flush = this.inFlightFlushes.poll();
+        // A streaming load reads from the pipe until it completes, so a new one needs a new pipe
+        this.pipe = null;
+        try {
+            this.warnings = flush.get();
+        }
+        catch (ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+        catch (InterruptedException e) {
+            throw propagateInterruption(e);
+        }
     }
 
     /**
@@ -0,0 +1,370 @@
+package com.opower.persistence.jpile.loader;
+
+import com.google.common.base.Throwables;
+import com.opower.persistence.jpile.infile.InfileRow;
+import javassist.CannotCompileException;
+import javassist.ClassPool;
+import javassist.bytecode.AccessFlag;
+import javassist.bytecode.Bytecode;
+import javassist.bytecode.ClassFile;
+import javassist.bytecode.Descriptor;
+import javassist.bytecode.MethodInfo;
+import javassist.bytecode.Opcode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.persistence.TemporalType;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.collect.Lists.newArrayList;
+
+/**
+ * Generates a {@link GeneratedRowWriter} for the entity class of a {@link SingleInfileObjectLoader} with javassist. The
+ * generated writer calls each getter directly and passes its value to the append method chosen from the getter's return
+ * type and annotations, so writing a row needs neither reflection nor an {@code instanceof} chain.
+ * <p/>
+ * The bytecode is assembled directly rather than compiled from source, so that no class files other than the entity's
+ * have to be read. It is a straight sequence of calls without branches, which the JVM verifies without stack maps.
+ * <p/>
+ * The writer is defined in the package and class loader of the entity, so it can only be generated for public entity
+ * classes with public getters. Entities using field access are not supported either. In these cases, or if the class
+ * cannot be defined, no writer is generated and the loader keeps reading the properties through their accessors.
+ * <p/>
+ * Writer classes are generated once per process for each entity class and layout of columns, and shared by all loaders
+ * with that layout. A layout for which no writer could be generated is not tried again.
+ *
+ * @author agent
+ */
+final class RowWriterGenerator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RowWriterGenerator.class);
+
+    private static final String ROW_WRITER_SUFFIX = "$$JpileRowWriter$$";
+    private static final AtomicInteger COUNTER = new AtomicInteger();
+    // The writer classes generated for each entity class by their layout, or NO_WRITER_CLASS if generation failed, kept
+    // with the entity class
+    private static final ClassValue<ConcurrentMap<List<Object>, Class<?>>> WRITER_CLASSES =
+            new ClassValue<ConcurrentMap<List<Object>, Class<?>>>() {
+                @Override
+                protected ConcurrentMap<List<Object>, Class<?>> computeValue(Class<?> type) {
+                    return new ConcurrentHashMap<>();
+                }
+            };
+    private static final Class<?> NO_WRITER_CLASS = Void.class;
+
+    // Local variables of the generated write method
+    private static final int THIS = 0;
+    private static final int ROW = 2;
+    private static final int ENTITY = 3;
+
+    private static final Method APPEND_VALUE = writerMethod("appendValue", int.class, Object.class, InfileRow.class);
+
+    private RowWriterGenerator() {
+    }
+
+    /**
+     * Generates a row writer for the columns of a loader. The loader must have its columns and options set.
+     *
+     * @param loader the loader to generate the writer for
+     * @return the row writer, or {@code null} if none could be generated
+     */
+    static GeneratedRowWriter generate(SingleInfileObjectLoader<?> loader) {
+        Class<?> entityClass = loader.getEntityClass();
+        InfileColumn[] columns = loader.getColumns().toArray(new InfileColumn[loader.getColumns().size()]);
+        if (!isAccessible(entityClass)) {
+            LOGGER.debug("Not generating a row writer for [{}] because the class is not public.", entityClass);
+            return null;
+        }
+        for (InfileColumn column : columns) {
+            if (column.getGetter() == null) {
+                LOGGER.debug("Not generating a row writer for [{}] because it uses field access.", entityClass);
+                return null;
+            }
+            if (!Modifier.isPublic(column.getGetter().getModifiers())) {
+                LOGGER.debug("Not generating a row writer for [{}] because [{}] is not public.", entityClass,
+                             column.getGetter());
+                return null;
+            }
+        }
+
+        List<Object> layout = layout(loader, columns);
+        ConcurrentMap<List<Object>, Class<?>> entityWriterClasses = WRITER_CLASSES.get(entityClass);
+        if (entityWriterClasses.get(layout) == NO_WRITER_CLASS) {
+            return null;
+        }
+        try {
+            GeneratedRowWriter writer = (GeneratedRowWriter) writerClass(loader, entityClass, columns, layout).newInstance();
+            writer.init(loader, columns);
+            return writer;
+        }
+        catch (CannotCompileException | IOException | ReflectiveOperationException | RuntimeException | LinkageError e) {
+            // Only warned about once, as every later loader with this layout would fail the same way
+            if (entityWriterClasses.put(layout, NO_WRITER_CLASS) != NO_WRITER_CLASS) {
+                LOGGER.warn("Could not generate a row writer for [{}], using reflection instead.", entityClass, e);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Returns the writer class for the columns of a loader, generating it unless it has been generated for a loader with
+     * the same columns before.
+     */
+    private static Class<?> writerClass(SingleInfileObjectLoader<?> loader, Class<?> entityClass, InfileColumn[] columns,
+                                        List<Object> layout) throws CannotCompileException, IOException {
+        ConcurrentMap<List<Object>, Class<?>> entityWriterClasses = WRITER_CLASSES.get(entityClass);
+        Class<?> writerClass = entityWriterClasses.get(layout);
+        if (writerClass == null) {
+            ClassFile classFile = new ClassFile(false, entityClass.getName() + ROW_WRITER_SUFFIX + COUNTER.incrementAndGet(),
+                                                GeneratedRowWriter.class.getName());
+            classFile.setAccessFlags(AccessFlag.PUBLIC | AccessFlag.FINAL | AccessFlag.SYNTHETIC);
+            classFile.addMethod(constructor(classFile));
+            classFile.addMethod(writeMethod(classFile, loader, entityClass, columns));
+
+            writerClass = new ClassPool()
+                    .makeClass(new ByteArrayInputStream(toBytes(classFile)))
+                    .toClass(entityClass.getClassLoader(), entityClass.getProtectionDomain());
+            // Another thread may have generated the same writer in the meantime
+            Class<?> existing = entityWriterClasses.putIfAbsent(layout, writerClass);
+            if (existing != null) {
+                writerClass = existing;
+            }
+        }
+        return writerClass;
+    }
+
+    /**
+     * Returns everything the generated code depends on: the options of the loader and, for each column, its getter and
+     * how its values are appended.
+     */
+    private static List<Object> layout(SingleInfileObjectLoader<?> loader, InfileColumn[] columns) {
+        // May contain nulls, so not an immutable list
+        List<Object> layout = newArrayList();
+        layout.add(loader.isRawBinary());
+        for (InfileColumn column : columns) {
+            Collections.addAll(layout, column.getGetter(), column.getType(), column.getPrecision(), column.getScale(),
+                               column.getTemporalType(), column.isEnumName());
+        }
+        return layout;
+    }
+
+    private static boolean isAccessible(Class<?> aClass) {
+        for (Class<?> c = aClass; c != null; c = c.getEnclosingClass()) {
+            if (!Modifier.isPublic(c.getModifiers())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static MethodInfo constructor(ClassFile classFile) {
+        Bytecode code = new Bytecode(classFile.getConstPool(), 0, 1);
+        code.addAload(THIS);
+        code.addInvokespecial(GeneratedRowWriter.class.getName(), MethodInfo.nameInit, "()V");
+        code.addReturn(null);
+
+        MethodInfo constructor = new MethodInfo(classFile.getConstPool(), MethodInfo.nameInit, "()V");
+        constructor.setAccessFlags(AccessFlag.PUBLIC);
+        constructor.setCodeAttribute(code.toCodeAttribute());
+        return constructor;
+    }
+
+    private static MethodInfo writeMethod(ClassFile classFile, SingleInfileObjectLoader<?> loader, Class<?> entityClass,
+                                          InfileColumn[] columns) {
+        Bytecode code = new Bytecode(classFile.getConstPool(), 0, ENTITY + 1);
+        code.addAload(1);
+        code.addCheckcast(entityClass.getName());
+        code.addAstore(ENTITY);
+        for (int i = 0; i < columns.length; i++) {
+            addColumn(code, loader, entityClass, i, columns[i]);
+        }
+        code.addReturn(null);
+
+        MethodInfo write = new MethodInfo(classFile.getConstPool(), "write",
+                                          descriptor(writerMethod("write", Object.class, InfileRow.class)));
+        write.setAccessFlags(AccessFlag.PUBLIC);
+        write.setCodeAttribute(code.toCodeAttribute());
+        return write;
+    }
+
+    /**
+     * Adds the code appending one column: the value of the getter, followed by the precision, scale or temporal type the
+     * append method needs, is passed either to a method of the row or to a helper of {@link GeneratedRowWriter}.
+     */
+    private static void addColumn(Bytecode code, SingleInfileObjectLoader<?> loader, Class<?> entityClass, int index,
+                                  InfileColumn column) {
+        Method getter = column.getGetter();
+        Class<?> type = getter.getReturnType();
+        boolean primitive = type.isPrimitive();
+        Object[] scale = {column.getPrecision(), column.getScale()};
+        Object[] arguments = {};
+        Method append;
+
+        switch (column.getType()) {
+            case LONG:
+                append = primitive
+                        ? rowMethod("append", long.class)
+                        : writerMethod("appendLong", Long.class, InfileRow.class);
+                break;
+            case INT:
+                append = primitive
+                        ? rowMethod("append", int.class)
+                        : writerMethod("appendInt", Number.class, InfileRow.class);
+                break;
+            case DOUBLE:
+            case FLOAT:
+                String helper = column.getType() == InfileColumn.Type.DOUBLE ? "appendDouble" : "appendFloat";
+                if (column.isScaled()) {
+                    append = primitive
+                            ? writerMethod(helper, type, int.class, int.class, InfileRow.class)
+                            : rowMethod("append", type, int.class, int.class);
+                    arguments = scale;
+                }
+                else {
+                    append = primitive ? rowMethod("append", type) : writerMethod(helper, type, InfileRow.class);
+                }
+                break;
+            case BIG_DECIMAL:
+                if (column.isScaled()) {
+                    append = rowMethod("append", BigDecimal.class, int.class, int.class);
+                    arguments = scale;
+                }
+                else {
+                    append = rowMethod("append", Object.class);
+                }
+                break;
+            case BOOLEAN:
+                append = primitive
+                        ? writerMethod("appendBoolean", boolean.class, InfileRow.class)
+                        : rowMethod("append", Boolean.class);
+                break;
+            case CHARACTER:
+                append = primitive
+                        ? writerMethod("appendChar", char.class, InfileRow.class)
+                        : rowMethod("append", Object.class);
+                break;
+            case STRING:
+            case LOCAL_DATE:
+            case LOCAL_TIME:
+            case LOCAL_DATE_TIME:
+            case INSTANT:
+            case OFFSET_DATE_TIME:
+                append = rowMethod("append", type);
+                break;
+            case DATE:
+                if (column.getTemporalType() != null) {
+                    append = rowMethod("append", Date.class, TemporalType.class);
+                    arguments = new Object[]{column.getTemporalType()};
+                }
+                else {
+                    // Rejected by the loader for non-null values
+                    append = APPEND_VALUE;
+                }
+                break;
+            case BYTES:
+                append = loader.isRawBinary()
+                        ? writerMethod("appendRawBytes", byte[].class, InfileRow.class)
+                        : rowMethod("appendHex", byte[].class);
+                break;
+            case ENUM:
+                append = writerMethod(column.isEnumName() ? "appendEnumName" : "appendEnumOrdinal",
+                                      Enum.class, InfileRow.class);
+                break;
+            default:
+                // Entities are replaced by their id and dynamic columns depend on the runtime type, so leave it to the loader
+                append = APPEND_VALUE;
+                break;
+        }
+
+        boolean rowAppend = append.getDeclaringClass() == InfileRow.class;
+        if (rowAppend) {
+            code.addAload(ROW);
+        }
+        else if (append.equals(APPEND_VALUE)) {
+            code.addAload(THIS);
+            code.addIconst(index);
+        }
+        code.addAload(ENTITY);
+        code.addInvokevirtual(entityClass.getName(), getter.getName(), descriptor(getter));
+        for (Object argument : arguments) {
+            if (argument instanceof TemporalType) {
+                code.addGetstatic(TemporalType.class.getName(), ((TemporalType) argument).name(),
+                                  descriptor(TemporalType.class));
+            }
+            else {
+                code.addIconst((Integer) argument);
+            }
+        }
+
+        String appendDescriptor = descriptor(append);
+        if (rowAppend) {
+            code.addInvokeinterface(InfileRow.class.getName(), append.getName(), appendDescriptor,
+                                    Descriptor.paramSize(appendDescriptor) + 1);
+            code.addOpcode(Opcode.POP);
+        }
+        else {
+            code.addAload(ROW);
+            if (Modifier.isStatic(append.getModifiers())) {
+                code.addInvokestatic(GeneratedRowWriter.class.getName(), append.getName(), appendDescriptor);
+            }
+            else {
+                code.addInvokevirtual(GeneratedRowWriter.class.getName(), append.getName(), appendDescriptor);
+            }
+        }
+    }
+
+    private static Method rowMethod(String name, Class<?>... parameterTypes) {
+        try {
+            return InfileRow.class.getMethod(name, parameterTypes);
+        }
+        catch (NoSuchMethodException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private static Method writerMethod(String name, Class<?>... parameterTypes) {
+        try {
+            return GeneratedRowWriter.class.getDeclaredMethod(name, parameterTypes);
+        }
+        catch (NoSuchMethodException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private static String descriptor(Method method) {
+        StringBuilder descriptor = new StringBuilder("(");
+        for (Class<?> parameterType : method.getParameterTypes()) {
+            descriptor.append(descriptor(parameterType));
+        }
+        return descriptor.append(')').append(descriptor(method.getReturnType())).toString();
+    }
+
+    private static String descriptor(Class<?> type) {
+        if (type.isArray()) {
+            return "[" + descriptor(type.getComponentType());
+        }
+        if (type.isPrimitive()) {
+            return Descriptor.of(type.getName());
+        }
+        return "L" + type.getName().replace('.', '/') + ";";
+    }
+
+    private static byte[] toBytes(ClassFile classFile) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            classFile.write(out);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -6,28 +6,34 @@ import com.opower.persistence.jpile.infile.InfileRow;
 import com.opower.persistence.jpile.infile.events.EventBase;
 import com.opower.persistence.jpile.infile.events.EventFirePoint;
 import com.opower.persistence.jpile.infile.events.FlushEvent;
+import com.opower.persistence.jpile.infile.events.LoadEventDispatcher;
+import com.opower.persistence.jpile.loader.id.CountingIdAllocator;
+import com.opower.persistence.jpile.loader.id.IdAllocator;
 import com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector;
+import com.opower.persistence.jpile.reflection.PropertyAccessor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.persistence.Column;
-import javax.persistence.EnumType;
-import javax.persistence.Enumerated;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
-import static com.google.common.base.Throwables.propagate;
 import static com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector.getIdValue;
-import static com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector.setIdValue;
-import static com.opower.persistence.jpile.util.Hex.encodeHexString;
 
 /**
  * An InfileObjectLoader which will update that database using IN FILE format using hibernate annotations.
@@ -39,7 +45,8 @@ public class SingleInfileObjectLoader<E> extends InfileObjectLoader<E> {
     private static Logger logger = LoggerFactory.getLogger(SingleInfileObjectLoader.class);
 
     /**
-     * TODO: we may need to make this atomic to be thread safe
+     * The last id generated by this loader. Ids are allocated by the {@link IdAllocator} of this loader, so writing this
+     * field has no effect; use {@link #setAutoGeneratedId(long)} instead.
      *
      * @deprecated this field will eventually become private. Use corresponding accessor/mutator instead.
      */
@@ -63,6 +70,27 @@ public class SingleInfileObjectLoader<E> extends InfileObjectLoader<E> {
     protected final Map<Method, SingleInfileObjectLoader<Object>> embeds = new LinkedHashMap<>();
 
 
+    // Whether byte[] columns are sent as escaped raw bytes rather than hex encoded
+    private boolean rawBinary = false;
+
+    // The accessors of all columns by column name, including those of entities using field access
+    private final Map<String, PropertyAccessor> properties = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    // The loaders of all embedded properties, including those of entities using field access
+    private final Map<PropertyAccessor, SingleInfileObjectLoader<Object>> embeddedLoaders = new LinkedHashMap<>();
+
+    // The columns in the order of the mappings, resolved when this loader is built
+    private InfileColumn[] columns = new InfileColumn[0];
+
+    // Writes the columns of an entity without reflection, null if the columns are written reflectively
+    private GeneratedRowWriter rowWriter;
+
+    // Reads and writes the @Id of entities, resolved when this loader is built
+    private PropertyAccessor idProperty;
+
+    // Allocates the ids of entities with an auto generated @Id
+    private volatile IdAllocator idAllocator = new CountingIdAllocator(0);
+
     /**
      * Entity type for this object loader
      *
@@ -119,35 +147,117 @@ public class SingleInfileObjectLoader<E> extends InfileObjectLoader<E> {
     @Deprecated
     protected EventBus eventBus;
 
+    // Fires events instead of the event bus, if set
+    private LoadEventDispatcher loadEvents;
+
     SingleInfileObjectLoader(Class<? extends E> aClass) {
         this.aClass = aClass;
     }
 
     /**
-     * @return autoincremented ID for the next entry
+     * @return the last ID generated by this loader, or the ID generation started after if none has been generated yet
      */
     protected long getAutoGeneratedId() {
         return this.autoGeneratedId;
     }
 
+    /**
+     * Restarts generating IDs after the given ID, counting up in this loader only.
+     *
+     * @param autoGeneratedId the ID after which to start
+     * @see CountingIdAllocator
+     */
     protected void setAutoGeneratedId(long autoGeneratedId) {
         this.autoGeneratedId = autoGeneratedId;
+        this.idAllocator = new CountingIdAllocator(autoGeneratedId);
     }
 
     /**
-     * @return the mappings for this object loader
+     * @return the allocator of the ids of entities with an auto generated {@link javax.persistence.Id &#064;Id}
+     */
+    IdAllocator getIdAllocator() {
+        return this.idAllocator;
+    }
+
+    void setIdAllocator(IdAllocator idAllocator) {
+        this.idAllocator = Preconditions.checkNotNull(idAllocator, "idAllocator cannot be null");
+    }
+
+    /**
+     * @return the mappings for this object loader, without the columns of entities using field access
      */
     Map<String, Method> getMappings() {
         return this.mappings;
     }
 
     /**
-     * @return the embeds for this object loader
+     * @return the embeds for this object loader, without the embedded fields of entities using field access
      */
     Map<Method, SingleInfileObjectLoader<Object>> getEmbeds() {
         return this.embeds;
     }
 
+    /**
+     * @return the accessors of all columns of this object loader by column name
+     */
+    Map<String, PropertyAccessor> getProperties() {
+        return Collections.unmodifiableMap(this.properties);
+    }
+
+    /**
+     * Maps a column to the property it is read from.
+     *
+     * @param column   the name of the column
+     * @param property the property
+     */
+    void addProperty(String column, PropertyAccessor property) {
+        this.properties.put(column, property);
+        if (property.getGetter() != null) {
+            this.mappings.put(column, property.getGetter());
+        }
+    }
+
+    /**
+     * @return the loaders of all embedded properties of this object loader
+     */
+    Map<PropertyAccessor, SingleInfileObjectLoader<Object>> getEmbeddedLoaders() {
+        return Collections.unmodifiableMap(this.embeddedLoaders);
+    }
+
+    /**
+     * Adds the loader of an embedded property, which appends the columns of the embedded object after the columns of
+     * this loader.
+     *
+     * @param property the embedded property
+     * @param loader   the loader of the embedded object
+     */
+    void addEmbeddedLoader(PropertyAccessor property, SingleInfileObjectLoader<Object> loader) {
+        this.embeddedLoaders.put(property, loader);
+        if (property.getGetter() != null) {
+            this.embeds.put(property.getGetter(), loader);
+        }
+    }
+
+    /**
+     * @return the columns of this object loader, in the order of the mappings
+     */
+    List<InfileColumn> getColumns() {
+        return Collections.unmodifiableList(Arrays.asList(this.columns));
+    }
+
+    void setColumns(List<InfileColumn> columns) {
+        this.columns = columns.toArray(new InfileColumn[columns.size()]);
+    }
+
+    /**
+     * Sets the accessor of the {@link javax.persistence.Id &#064;Id} of entities used to set generated ids.
+     *
+     * @param idProperty the id property
+     */
+    void setIdProperty(PropertyAccessor idProperty) {
+        this.idProperty = idProperty;
+    }
+
     /**
      * @return entity type for this object loader
      */
@@ -155,6 +265,24 @@ public class SingleInfileObjectLoader<E> extends InfileObjectLoader<E> {
         return this.aClass;
     }
 
+    /**
+     * @return the entity type of this loader
+     */
+    Class<? extends E> getEntityClass() {
+        return this.aClass;
+    }
+
+    /**
+     * @return the generated writer of the columns of an entity, or {@code null} if they are written reflectively
+     */
+    GeneratedRowWriter getRowWriter() {
+        return this.rowWriter;
+    }
+
+    void setRowWriter(GeneratedRowWriter rowWriter) {
+        this.rowWriter = rowWriter;
+    }
+
     /**
      * @return {@link PersistenceAnnotationInspector} that is used to analyse JPA annotations of entity's class
      */
@@ -199,6 +327,17 @@ public class SingleInfileObjectLoader<E> extends InfileObjectLoader<E> {
         this.embedChild = embedChild;
     }
 
+    /**
+     * @return whether {@code byte[]} columns are sent as escaped raw bytes rather than hex encoded
+     */
+    protected boolean isRawBinary() {
+        return this.rawBinary;
+    }
+
+    protected void setRawBinary(boolean rawBinary) {
+        this.rawBinary = rawBinary;
+    }
+
     /**
      * @return table that is filled by this object loader
      */
@@ -221,73 +360,165 @@ public class SingleInfileObjectLoader<E> extends InfileObjectLoader<E> {
         this.eventBus = eventBus;
     }
 
+    /**
+     * @return the dispatcher firing the events of this loader instead of the event bus, null if there is none
+     */
+    LoadEventDispatcher getLoadEvents() {
+        return this.loadEvents;
+    }
+
+    void setLoadEvents(LoadEventDispatcher loadEvents) {
+        this.loadEvents = loadEvents;
+    }
+
     /**
      * If the object doesn't have an id it will create a generate a new id. Then it will save the data to the infileRow.
      */
     @Override
     public void convertToInfileRow(E entity, InfileRow infileRow) {
         if (entity == null && this.allowNull) {
-            for (int i = 0; i < this.mappings.size(); i++) {
+            for (int i = 0; i < this.properties.size(); i++) {
                 infileRow.appendNull();
             }
-            for (SingleInfileObjectLoader<Object> loader : this.embeds.values()) {
+            for (SingleInfileObjectLoader<Object> loader : this.embeddedLoaders.values()) {
                 loader.convertToInfileRow(null, infileRow);
             }
         }
         else {
-            if (!this.embedChild && getIdValue(this.persistenceAnnotationInspector, entity) == null) {
+            if (!this.embedChild && this.autoGenerateId && this.idProperty.get(entity) == null) {
                 generateAndSetId(entity);
             }
-            for (Method m : this.mappings.values()) {
-                Object object = invoke(m, entity);
-                if (object == null) {
-                    infileRow.appendNull();
-                    continue;
+            if (this.rowWriter != null) {
+                this.rowWriter.write(entity, infileRow);
+            }
+            else {
+                for (InfileColumn column : this.columns) {
+                    appendValue(column, column.getProperty().get(entity), infileRow);
                 }
-                if (this.persistenceAnnotationInspector.hasTableAnnotation(object.getClass())) {
-                    Long id = (Long) getIdValue(this.persistenceAnnotationInspector, object);
-                    Preconditions.checkState(id != null, "@Id for [%s] is null", object);
-                    object = id;
+            }
+            for (Map.Entry<PropertyAccessor, SingleInfileObjectLoader<Object>> entry : this.embeddedLoaders.entrySet()) {
+                Object object = entry.getKey().get(entity);
+                entry.getValue().convertToInfileRow(object, infileRow);
+            }
+        }
+    }
+
+    /**
+     * Appends the value of one column to an infile row, as described by the column. Values of
+     * {@link InfileColumn.Type#DYNAMIC} columns are appended according to their runtime type.
+     *
+     * @param column    the column
+     * @param object    the value of the property of the column
+     * @param infileRow the row to append to
+     */
+    void appendValue(InfileColumn column, Object object, InfileRow infileRow) {
+        if (object == null) {
+            infileRow.appendNull();
+            return;
+        }
+        InfileColumn.Type type = column.getType();
+        if (type == InfileColumn.Type.DYNAMIC) {
+            if (this.persistenceAnnotationInspector.hasTableAnnotation(object.getClass())) {
+                appendId(object, getIdValue(this.persistenceAnnotationInspector, object), infileRow);
+                return;
+            }
+            type = InfileColumn.Type.of(object.getClass());
+        }
+        switch (type) {
+            case LONG:
+                infileRow.append(((Number) object).longValue());
+                break;
+            case INT:
+                infileRow.append(((Number) object).intValue());
+                break;
+            case DOUBLE:
+                if (column.isScaled()) {
+                    infileRow.append((Double) object, column.getPrecision(), column.getScale());
                 }
-                if (object instanceof Date) {
-                    infileRow.append((Date) object, m);
+                else {
+                    infileRow.append(((Double) object).doubleValue());
                 }
-                else if (object instanceof Boolean) {
-                    infileRow.append((Boolean) object);
+                break;
+            case FLOAT:
+                if (column.isScaled()) {
+                    infileRow.append((Float) object, column.getPrecision(), column.getScale());
                 }
-                else if (object instanceof byte[]) {
-                    infileRow.append(encodeHexString((byte[]) object));
+                else {
+                    infileRow.append(((Float) object).floatValue());
                 }
-                else if (object instanceof Enum) {
-                    infileRow.append(getEnumValueToAppend(m, (Enum <?>) object));
+                break;
+            case BIG_DECIMAL:
+                if (column.isScaled()) {
+                    infileRow.append((BigDecimal) object, column.getPrecision(), column.getScale());
                 }
-                else if (object instanceof Float) {
-                    Column column = this.persistenceAnnotationInspector.findAnnotation(m, Column.class);
-                    if (column != null) {
-                        int precision = column.precision();
-                        int scale = column.scale();
-                        if (precision > 0 && scale > 0) {
-                            infileRow.append((Float) object, precision, scale);
-                            continue;
-                        }
-                    }
+                else {
                     infileRow.append(object);
                 }
+                break;
+            case BOOLEAN:
+                infileRow.append((Boolean) object);
+                break;
+            case STRING:
+                infileRow.append((String) object);
+                break;
+            case CHARACTER:
+                infileRow.append(((Character) object).charValue());
+                break;
+            case DATE:
+                Preconditions.checkNotNull(column.getTemporalType(), "A temporal annotation must be provided on [%s]",
+                                           column.getProperty());
+                infileRow.append((Date) object, column.getTemporalType());
+                break;
+            case LOCAL_DATE:
+                infileRow.append((LocalDate) object);
+                break;
+            case LOCAL_TIME:
+                infileRow.append((LocalTime) object);
+                break;
+            case LOCAL_DATE_TIME:
+                infileRow.append((LocalDateTime) object);
+                break;
+            case INSTANT:
+                infileRow.append((Instant) object);
+                break;
+            case OFFSET_DATE_TIME:
+                infileRow.append((OffsetDateTime) object);
+                break;
+            case BYTES:
+                if (this.rawBinary) {
+                    infileRow.append((byte[]) object);
+                }
                 else {
-                    infileRow.append(object);
+                    infileRow.appendHex((byte[]) object);
                 }
-            }
-            for (Map.Entry<Method, SingleInfileObjectLoader<Object>> entry : this.embeds.entrySet()) {
-                Object object = invoke(entry.getKey(), entity);
-                entry.getValue().convertToInfileRow(object, infileRow);
-            }
+                break;
+            case ENUM:
+                if (column.isEnumName()) {
+                    infileRow.append(((Enum<?>) object).name());
+                }
+                else {
+                    infileRow.append(((Enum<?>) object).ordinal());
+                }
+                break;
+            case ENTITY:
+                PropertyAccessor referencedId = column.getReferencedId();
+                appendId(object, referencedId != null ? referencedId.get(object) : null, infileRow);
+                break;
+            default:
+                infileRow.append(object);
+                break;
         }
     }
 
+    private void appendId(Object entity, Object id, InfileRow infileRow) {
+        Preconditions.checkState(id != null, "@Id for [%s] is null", entity);
+        infileRow.append(((Long) id).longValue());
+    }
+
     /**
-     * Get the enum value depending on if the {@code method} specifies the {@link Enumerated} annotation
-     * and if it's an {@link EnumType#STRING} to use the {@link Enum#name()}, otherwise use {@link Enum#ordinal()} as specified
-     * in the {@link Enumerated} documentation.
+     * Get the enum value depending on if the {@code method} specifies the {@link javax.persistence.Enumerated}
+     * annotation and if it's an {@link javax.persistence.EnumType#STRING} to use the {@link Enum#name()}, otherwise use
+     * {@link Enum#ordinal()} as specified in the {@link javax.persistence.Enumerated} documentation.
      *
      * Visible for testing.
      *
@@ -296,8 +527,7 @@ public class SingleInfileObjectLoader<E> extends InfileObjectLoader<E> {
      * @return the enum value to append
      */
     Object getEnumValueToAppend(Method method, Enum<?> enumObject) {
-        Enumerated enumerated = method.getAnnotation(Enumerated.class);
-        if (enumerated != null && enumerated.value() == EnumType.STRING) {
+        if (InfileColumn.isEnumeratedByName(method)) {
             return enumObject.name();
         }
 
@@ -307,12 +537,22 @@ public class SingleInfileObjectLoader<E> extends InfileObjectLoader<E> {
     @Override
     public void flush() {
         long start = System.nanoTime();
-        postEvent(new FlushEvent(this, EventFirePoint.BEFORE, this.aClass, this.tableName, start));
+        if (this.loadEvents != null) {
+            this.loadEvents.fireBeforeFlush(this, this.aClass, this.tableName, start);
+        }
+        else {
+            postEvent(new FlushEvent(this, EventFirePoint.BEFORE, this.aClass, this.tableName, start));
+        }
         super.flush();
         long end = System.nanoTime();
         logger.debug("Elapsed time to flush [{}] to database {}ms",
                 this.aClass, TimeUnit.NANOSECONDS.toMillis(end - start));
-        postEvent(new FlushEvent(this, EventFirePoint.AFTER, this.aClass, this.tableName, end));
+        if (this.loadEvents != null) {
+            this.loadEvents.fireAfterFlush(this, this.aClass, this.tableName, start, end);
+        }
+        else {
+            postEvent(new FlushEvent(this, EventFirePoint.AFTER, this.aClass, this.tableName, end));
+        }
     }
 
     private void postEvent(EventBase event) {
@@ -322,26 +562,18 @@ public class SingleInfileObjectLoader<E> extends InfileObjectLoader<E> {
     }
 
     private void generateAndSetId(E e) {
-        if (this.autoGenerateId) {
-            this.autoGeneratedId++;
-            setIdValue(this.persistenceAnnotationInspector, e, this.autoGeneratedId);
-        }
-    }
-
-    private Object invoke(Method method, Object target) {
-        try {
-            return method.invoke(target);
-        }
-        catch (InvocationTargetException | IllegalAccessException e) {
-            throw propagate(e);
+        long id = this.idAllocator.nextId();
+        this.autoGeneratedId = id;
+        if (this.idProperty.isWritable()) {
+            this.idProperty.set(e, id);
         }
     }
 
     Collection<String> getAllColumns() {
-        Set<String> columns = new LinkedHashSet<>(this.mappings.keySet());
-        for (SingleInfileObjectLoader<Object> loader : this.embeds.values()) {
-            columns.addAll(loader.getAllColumns());
+        Set<String> allColumns = new LinkedHashSet<>(this.properties.keySet());
+        for (SingleInfileObjectLoader<Object> loader : this.embeddedLoaders.values()) {
+            allColumns.addAll(loader.getAllColumns());
         }
-        return columns;
+        return allColumns;
     }
 }
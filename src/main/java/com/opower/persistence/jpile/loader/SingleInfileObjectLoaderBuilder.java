@@ -6,10 +6,14 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.common.eventbus.EventBus;
 import com.opower.persistence.jpile.infile.InfileDataBuffer;
+import com.opower.persistence.jpile.infile.events.LoadEventDispatcher;
 import com.opower.persistence.jpile.jdbc.ConnectionBasedStatementExecutor;
 import com.opower.persistence.jpile.jdbc.FindMaxIdStatementCallback;
 import com.opower.persistence.jpile.jdbc.StatementExecutor;
+import com.opower.persistence.jpile.loader.flush.FlushPolicy;
+import com.opower.persistence.jpile.loader.id.IdAllocatorFactory;
 import com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector;
+import com.opower.persistence.jpile.reflection.PropertyAccessor;
 
 import javax.persistence.Column;
 import javax.persistence.Embedded;
@@ -21,11 +25,13 @@ import javax.persistence.ManyToOne;
 import javax.persistence.OneToOne;
 import javax.persistence.PrimaryKeyJoinColumn;
 import javax.persistence.SecondaryTable;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
 import java.lang.annotation.Annotation;
-import java.lang.reflect.Method;
 import java.sql.Connection;
 import java.util.Collection;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 
@@ -40,6 +46,7 @@ public class SingleInfileObjectLoaderBuilder<E> {
 
     private final Class<? extends E> aClass;
     private EventBus eventBus;
+    private LoadEventDispatcher loadEvents;
     private StatementExecutor statementExecutor;
     private InfileDataBuffer infileDataBuffer;
     private PersistenceAnnotationInspector annotationInspector;
@@ -48,7 +55,14 @@ public class SingleInfileObjectLoaderBuilder<E> {
     private boolean allowNull = false;
     private boolean embedded = false;
     private boolean useReplace = false;
+    private boolean useRawBinary = false;
+    private boolean useGeneratedRowWriter = true;
+    private ExecutorService flushExecutor;
+    private int maxInFlightFlushes;
+    private boolean streamingLoad;
     private SecondaryTable secondaryTable;
+    private IdAllocatorFactory idAllocatorFactory;
+    private FlushPolicy flushPolicy;
 
     public SingleInfileObjectLoaderBuilder(Class<? extends E> aClass) {
         this.aClass = checkNotNull(aClass, "Class cannot be null");
@@ -91,6 +105,20 @@ public class SingleInfileObjectLoaderBuilder<E> {
         return this;
     }
 
+    /**
+     * Fires events through the given dispatcher instead of posting them to the event bus.
+     */
+    SingleInfileObjectLoaderBuilder<E> withLoadEvents(LoadEventDispatcher loadEvents) {
+        this.loadEvents = checkNotNull(loadEvents, "Load events cannot be null");
+        return this;
+    }
+
+    private SingleInfileObjectLoaderBuilder<E> withEventsOf(SingleInfileObjectLoaderBuilder<?> parent) {
+        this.eventBus = parent.eventBus;
+        this.loadEvents = parent.loadEvents;
+        return this;
+    }
+
     public SingleInfileObjectLoaderBuilder<E> withDefaultTableName() {
         this.defaultTableName = true;
         return this;
@@ -111,6 +139,73 @@ public class SingleInfileObjectLoaderBuilder<E> {
         return this;
     }
 
+    /**
+     * Toggles raw binary mode. Instead of hex encoding {@code byte[]} columns and decoding them with {@code unhex()} on the
+     * server, their bytes are escaped and sent as they are, and the file is loaded with {@code CHARACTER SET binary}.
+     * This halves the size of binary columns on the wire, but text columns are then stored without any conversion, so
+     * the charset of the buffer must match the charset of the columns.
+     */
+    public SingleInfileObjectLoaderBuilder<E> useRawBinary(boolean useRawBinary) {
+        this.useRawBinary = useRawBinary;
+        return this;
+    }
+
+    /**
+     * Toggles generating a row writer for the entity class. The generated writer calls the getters directly and appends
+     * each column with the method that fits its declared type. It is only generated for public classes with public
+     * getters; other classes, and classes using field access, are written through property accessors. Enabled by
+     * default.
+     */
+    public SingleInfileObjectLoaderBuilder<E> useGeneratedRowWriter(boolean useGeneratedRowWriter) {
+        this.useGeneratedRowWriter = useGeneratedRowWriter;
+        return this;
+    }
+
+    /**
+     * Sends full buffers to the database on the given executor while rows keep being added.
+     *
+     * @see InfileObjectLoader#setAsyncFlush(ExecutorService, int)
+     */
+    public SingleInfileObjectLoaderBuilder<E> withAsyncFlush(ExecutorService flushExecutor, int maxInFlightFlushes) {
+        this.flushExecutor = flushExecutor;
+        this.maxInFlightFlushes = maxInFlightFlushes;
+        this.streamingLoad = false;
+        return this;
+    }
+
+    /**
+     * Streams full buffers into a single {@code LOAD DATA} statement per batch, run on the given executor.
+     *
+     * @see InfileObjectLoader#setStreamingLoad(ExecutorService, int)
+     */
+    public SingleInfileObjectLoaderBuilder<E> withStreamingLoad(ExecutorService flushExecutor, int maxQueuedBuffers) {
+        this.flushExecutor = flushExecutor;
+        this.maxInFlightFlushes = maxQueuedBuffers;
+        this.streamingLoad = true;
+        return this;
+    }
+
+    /**
+     * Allocates auto generated ids with allocators created by the given factory instead of counting up from the max id
+     * of the table found when the loader is built. Use a {@link com.opower.persistence.jpile.loader.id.BlockIdAllocator}
+     * to load into the same table from several loaders or processes at once.
+     */
+    public SingleInfileObjectLoaderBuilder<E> withIdAllocatorFactory(IdAllocatorFactory idAllocatorFactory) {
+        this.idAllocatorFactory = idAllocatorFactory;
+        return this;
+    }
+
+    /**
+     * Flushes before the buffer is full when the given policy says so. Every loader built gets its own policy from
+     * {@link FlushPolicy#forLoader()}.
+     *
+     * @see InfileObjectLoader#setFlushPolicy(FlushPolicy)
+     */
+    public SingleInfileObjectLoaderBuilder<E> withFlushPolicy(FlushPolicy flushPolicy) {
+        this.flushPolicy = flushPolicy;
+        return this;
+    }
+
     public SingleInfileObjectLoaderBuilder<E> usingSecondaryTable(SecondaryTable secondaryTable) {
         this.secondaryTable = secondaryTable;
         return this;
@@ -133,11 +228,22 @@ public class SingleInfileObjectLoaderBuilder<E> {
 
         SingleInfileObjectLoader<E> objectLoader = new SingleInfileObjectLoader<>(this.aClass);
         objectLoader.setEventBus(this.eventBus);
+        objectLoader.setLoadEvents(this.loadEvents);
         objectLoader.setStatementExecutor(this.statementExecutor);
         objectLoader.setInfileDataBuffer(this.infileDataBuffer);
         objectLoader.setPersistenceAnnotationInspector(this.annotationInspector);
         objectLoader.setAllowNull(this.allowNull);
         objectLoader.setEmbedChild(this.embedded);
+        objectLoader.setRawBinary(this.useRawBinary);
+        if (this.streamingLoad) {
+            objectLoader.setStreamingLoad(this.flushExecutor, this.maxInFlightFlushes);
+        }
+        else if (this.flushExecutor != null) {
+            objectLoader.setAsyncFlush(this.flushExecutor, this.maxInFlightFlushes);
+        }
+        if (this.flushPolicy != null) {
+            objectLoader.setFlushPolicy(this.flushPolicy.forLoader());
+        }
         if (this.defaultTableName) {
             if (this.secondaryTable == null) {
                 this.tableName = this.annotationInspector.tableName(this.aClass);
@@ -150,9 +256,19 @@ public class SingleInfileObjectLoaderBuilder<E> {
         this.findAnnotations(objectLoader);
         if (!this.embedded) {
             String idColumnName = findPrimaryIdColumnName(objectLoader);
-            objectLoader.setAutoGeneratedId(findMaxId(idColumnName, this.tableName));
+            if (this.idAllocatorFactory == null) {
+                objectLoader.setAutoGeneratedId(findMaxId(idColumnName, this.tableName));
+            }
+            else if (objectLoader.isAutoGenerateId()) {
+                objectLoader.setIdAllocator(this.idAllocatorFactory.newIdAllocator(this.statementExecutor, this.tableName,
+                                                                                   idColumnName));
+            }
             this.generateLoadInfileSql(objectLoader);
         }
+        this.findColumns(objectLoader);
+        if (this.useGeneratedRowWriter) {
+            objectLoader.setRowWriter(RowWriterGenerator.generate(objectLoader));
+        }
 
         return objectLoader;
     }
@@ -162,20 +278,20 @@ public class SingleInfileObjectLoaderBuilder<E> {
      */
     private void findAnnotations(SingleInfileObjectLoader<E> objectLoader) {
         // Finds all columns that are annotated with @Column
-        for (PersistenceAnnotationInspector.AnnotatedMethod<Column> annotatedMethod
-                : this.annotationInspector.annotatedMethodsWith(this.aClass, Column.class)) {
+        for (PersistenceAnnotationInspector.AnnotatedProperty<Column> annotatedProperty
+                : this.annotationInspector.annotatedPropertiesWith(this.aClass, Column.class)) {
 
-            Preconditions.checkState(!annotatedMethod.getAnnotation().name().isEmpty(),
-                                     "@Column.name is not found on method [%s]",
-                                     annotatedMethod.getMethod());
-            Column column = annotatedMethod.getAnnotation();
+            Preconditions.checkState(!annotatedProperty.getAnnotation().name().isEmpty(),
+                                     "@Column.name is not found on [%s]",
+                                     annotatedProperty.getProperty());
+            Column column = annotatedProperty.getAnnotation();
             if (this.secondaryTable != null) {
                 if (column.table().equals(this.tableName)) {
-                    objectLoader.getMappings().put(annotatedMethod.getAnnotation().name(), annotatedMethod.getMethod());
+                    objectLoader.addProperty(column.name(), annotatedProperty.getProperty());
                 }
             }
             else if (column.table().isEmpty() || column.table().equals(this.tableName)) {
-                objectLoader.getMappings().put(annotatedMethod.getAnnotation().name(), annotatedMethod.getMethod());
+                objectLoader.addProperty(column.name(), annotatedProperty.getProperty());
             }
         }
 
@@ -184,39 +300,87 @@ public class SingleInfileObjectLoaderBuilder<E> {
             // Finds all one to one columns with @OneToOne
             // Finds all columns with @ManyToOne
             // If @JoinColumn is not there then there is nothing to write
-            for (PersistenceAnnotationInspector.AnnotatedMethod<JoinColumn> annotatedMethod
-                    : this.annotationInspector.annotatedMethodsWith(this.aClass, JoinColumn.class)) {
-                if (this.annotationInspector.hasAnnotation(annotatedMethod.getMethod(), ManyToOne.class)
-                    || this.annotationInspector.hasAnnotation(annotatedMethod.getMethod(), OneToOne.class)) {
-                    objectLoader.getMappings().put(annotatedMethod.getAnnotation().name(), annotatedMethod.getMethod());
+            for (PersistenceAnnotationInspector.AnnotatedProperty<JoinColumn> annotatedProperty
+                    : this.annotationInspector.annotatedPropertiesWith(this.aClass, JoinColumn.class)) {
+                if (this.annotationInspector.hasAnnotation(annotatedProperty.getProperty(), ManyToOne.class)
+                    || this.annotationInspector.hasAnnotation(annotatedProperty.getProperty(), OneToOne.class)) {
+                    objectLoader.addProperty(annotatedProperty.getAnnotation().name(), annotatedProperty.getProperty());
                 }
             }
             // Finds all columns with @Embedded or @EmbeddedId
-            for (PersistenceAnnotationInspector.AnnotatedMethod<? extends Annotation> annotatedMethod
-                    : Iterables.concat(this.annotationInspector.annotatedMethodsWith(this.aClass, Embedded.class),
-                    this.annotationInspector.annotatedMethodsWith(this.aClass, EmbeddedId.class))) {
-                Method method = annotatedMethod.getMethod();
+            for (PersistenceAnnotationInspector.AnnotatedProperty<? extends Annotation> annotatedProperty
+                    : Iterables.concat(this.annotationInspector.annotatedPropertiesWith(this.aClass, Embedded.class),
+                    this.annotationInspector.annotatedPropertiesWith(this.aClass, EmbeddedId.class))) {
+                PropertyAccessor property = annotatedProperty.getProperty();
                 SingleInfileObjectLoader<Object> embeddedObjectLoader
-                        = new SingleInfileObjectLoaderBuilder<>(method.getReturnType())
-                        .withEventBus(this.eventBus)
+                        = new SingleInfileObjectLoaderBuilder<>(property.getType())
+                        .withEventsOf(this)
                         .withBuffer(this.infileDataBuffer)
                         .withDefaultTableName()
                         .withStatementExecutor(this.statementExecutor)
                         .withTableName(this.tableName)
                         .usingAnnotationInspector(this.annotationInspector)
+                        .useRawBinary(this.useRawBinary)
+                        .useGeneratedRowWriter(this.useGeneratedRowWriter)
                         .allowNull()
                         .isEmbedded()
                         .build();
-                objectLoader.getEmbeds().put(method, embeddedObjectLoader);
+                objectLoader.addEmbeddedLoader(property, embeddedObjectLoader);
             }
         }
     }
 
+    /**
+     * Resolves how the values of every column are appended, so that rows can be converted without looking up
+     * annotations. The {@link Temporal} annotation is resolved here too, whatever the declared type, as columns declared
+     * with a supertype of {@link java.util.Date} may hold dates; date values of columns without it are rejected when
+     * they are appended. Must be called once all properties have been found.
+     */
+    private void findColumns(SingleInfileObjectLoader<E> objectLoader) {
+        ImmutableList.Builder<InfileColumn> columns = ImmutableList.builder();
+        for (Map.Entry<String, PropertyAccessor> mapping : objectLoader.getProperties().entrySet()) {
+            PropertyAccessor property = mapping.getValue();
+            Class<?> type = property.getType();
+            PropertyAccessor referencedId = null;
+            InfileColumn.Type columnType;
+            if (this.annotationInspector.hasTableAnnotation(type)) {
+                columnType = InfileColumn.Type.ENTITY;
+                referencedId = this.annotationInspector.idProperty(type);
+            }
+            else {
+                columnType = InfileColumn.Type.of(type);
+            }
+            Temporal temporal = this.annotationInspector.findAnnotation(property, Temporal.class);
+            TemporalType temporalType = temporal != null ? temporal.value() : null;
+            Column column = findScaledColumn(property);
+            columns.add(new InfileColumn(mapping.getKey(), property, columnType,
+                                         column != null ? column.precision() : 0,
+                                         column != null ? column.scale() : 0,
+                                         temporalType,
+                                         referencedId));
+        }
+        objectLoader.setColumns(columns.build());
+    }
+
+    /**
+     * Finds the {@link Column} annotation of a decimal column if it declares both a precision and a scale.
+     *
+     * @param property the property of the column
+     * @return the column annotation, or null if there is none or it does not define a precision and a scale
+     */
+    private Column findScaledColumn(PropertyAccessor property) {
+        Column column = this.annotationInspector.findAnnotation(property, Column.class);
+        if (column != null && column.precision() > 0 && column.scale() > 0) {
+            return column;
+        }
+        return null;
+    }
+
     private String findPrimaryIdColumnName(SingleInfileObjectLoader<E> objectLoader) {
-        Method primaryIdGetter = this.annotationInspector.idGetter(this.aClass);
-        if (primaryIdGetter != null) {
-            Column column = this.annotationInspector.findAnnotation(primaryIdGetter, Column.class);
-            String name = this.annotationInspector.fieldFromGetter(primaryIdGetter).getName();
+        PropertyAccessor idProperty = this.annotationInspector.idProperty(this.aClass);
+        if (idProperty != null) {
+            Column column = this.annotationInspector.findAnnotation(idProperty, Column.class);
+            String name = idProperty.getName();
             if (this.secondaryTable != null) {
                 PrimaryKeyJoinColumn[] primaryKeyJoinColumns = this.secondaryTable.pkJoinColumns();
                 Preconditions.checkState(primaryKeyJoinColumns.length == 1, "There needs to be one pkJoinColumns");
@@ -225,14 +389,15 @@ public class SingleInfileObjectLoaderBuilder<E> {
             else if (column != null && !column.name().isEmpty()) {
                 name = column.name();
             }
-            objectLoader.getMappings().put(name, primaryIdGetter);
-            GeneratedValue generatedValue = this.annotationInspector.findAnnotation(primaryIdGetter, GeneratedValue.class);
+            objectLoader.addProperty(name, idProperty);
+            GeneratedValue generatedValue = this.annotationInspector.findAnnotation(idProperty, GeneratedValue.class);
 
             boolean autoGenerateId = this.secondaryTable == null
                     && generatedValue != null
                     && generatedValue.strategy() == GenerationType.AUTO;
 
             objectLoader.setAutoGenerateId(autoGenerateId);
+            objectLoader.setIdProperty(idProperty);
             return name;
         }
         return null;
@@ -242,7 +407,9 @@ public class SingleInfileObjectLoaderBuilder<E> {
         StringBuilder builder = new StringBuilder("LOAD DATA LOCAL INFILE 'stream' ");
         builder.append(this.useReplace ? "REPLACE " : "");
         builder.append("INTO TABLE ");
-        builder.append(this.tableName).append(" (");
+        builder.append(this.tableName).append(" ");
+        builder.append(this.useRawBinary ? "CHARACTER SET binary " : "");
+        builder.append("(");
 
         ImmutableList.Builder<String> columnsBuilder = ImmutableList.builder();
         ImmutableList.Builder<String> setClausesBuilder = ImmutableList.builder();
@@ -266,7 +433,8 @@ public class SingleInfileObjectLoaderBuilder<E> {
 
     /**
      * Find and populate the columns to be inserted. Columns that need to be set are {@code byte[]} fields because they need to
-     * be unhexed which is not done when calling {@link InfileDataBuffer#append(byte[])}.
+     * be unhexed which is not done when calling {@link InfileDataBuffer#append(byte[])}. In raw binary mode
+     * {@code byte[]} fields are sent escaped but otherwise unchanged, so they are inserted like any other column.
      * <br/>
      * {@link com.opower.persistence.jpile.loader.SingleInfileObjectLoader#getAllColumns()} can not be used since the type
      * of the column is needed to determine if it needs be unhexed.
@@ -280,18 +448,17 @@ public class SingleInfileObjectLoaderBuilder<E> {
      * @param <E> the type for the {@link SingleInfileObjectLoader}
      *
      * @throws StackOverflowError if there is an infinite loop in
-     * {@link com.opower.persistence.jpile.loader.SingleInfileObjectLoader#getEmbeds()}
+     * {@link com.opower.persistence.jpile.loader.SingleInfileObjectLoader#getEmbeddedLoaders()}
      */
     private static <E> void populateColumns(SingleInfileObjectLoader<E> objectLoader, ImmutableList.Builder<String> columns,
             ImmutableList.Builder<String> setClauses) {
 
-        for (Map.Entry<String, Method> entry : objectLoader.getMappings().entrySet()) {
+        for (Map.Entry<String, PropertyAccessor> entry : objectLoader.getProperties().entrySet()) {
             String column = entry.getKey();
 
-            Method method = entry.getValue();
-            Class<?> type = method.getReturnType();
+            Class<?> type = entry.getValue().getType();
 
-            if (type.isArray() && type.getComponentType() == byte.class) {
+            if (!objectLoader.isRawBinary() && type.isArray() && type.getComponentType() == byte.class) {
                 setClauses.add(String.format("%1$s=unhex(@hex%1$s)", column));
                 column = "@hex" + column;
             }
@@ -299,7 +466,7 @@ public class SingleInfileObjectLoaderBuilder<E> {
             columns.add(column);
         }
 
-        for (SingleInfileObjectLoader<Object> embeddedLoader : objectLoader.getEmbeds().values()) {
+        for (SingleInfileObjectLoader<Object> embeddedLoader : objectLoader.getEmbeddedLoaders().values()) {
             populateColumns(embeddedLoader, columns, setClauses);
         }
     }
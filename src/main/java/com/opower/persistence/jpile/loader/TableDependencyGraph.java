@@ -0,0 +1,130 @@
+package com.opower.persistence.jpile.loader;
+
+import com.google.common.collect.ImmutableList;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newLinkedHashMap;
+import static com.google.common.collect.Sets.newHashSet;
+import static com.google.common.collect.Sets.newLinkedHashSet;
+
+/**
+ * The dependencies between tables through foreign keys, to flush the rows of the tables referred to before the rows
+ * referring to them. Tables are flushed in waves: every table of a wave only depends on tables of earlier waves, so the
+ * tables of one wave can be flushed at the same time.
+ * <p/>
+ * A table referring to itself does not depend on itself, as its rows are buffered after the rows they refer to. Tables
+ * that depend on each other in a cycle cannot all be flushed after the tables they refer to; the cycle is broken at the
+ * table added first and a warning is logged.
+ *
+ * @author agent
+ */
+final class TableDependencyGraph {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TableDependencyGraph.class);
+
+    // The tables in the order they were added, with the tables each of them depends on
+    private final Map<String, Set<String>> dependencies = newLinkedHashMap();
+    // Computed on first use
+    private List<List<String>> waves;
+
+    /**
+     * Adds a table, unless it has already been added.
+     */
+    void addTable(String table) {
+        if (!this.dependencies.containsKey(table)) {
+            Set<String> tableDependencies = newLinkedHashSet();
+            this.dependencies.put(table, tableDependencies);
+            this.waves = null;
+        }
+    }
+
+    /**
+     * Makes a table depend on the table it refers to, adding both tables if needed.
+     */
+    void addDependency(String table, String referencedTable) {
+        addTable(table);
+        addTable(referencedTable);
+        if (!table.equals(referencedTable) && this.dependencies.get(table).add(referencedTable)) {
+            this.waves = null;
+        }
+    }
+
+    /**
+     * @return the tables in the order to flush them, in waves of tables not depending on each other
+     */
+    List<List<String>> getWaves() {
+        if (this.waves == null) {
+            this.waves = computeWaves();
+        }
+        return this.waves;
+    }
+
+    /**
+     * @return the tables a table depends on, directly or through other tables, in waves in the order to flush them
+     */
+    List<List<String>> getDependencyWaves(String table) {
+        checkArgument(this.dependencies.containsKey(table), "Unknown table [%s]", table);
+        Set<String> allDependencies = newHashSet();
+        collectDependencies(table, allDependencies);
+        allDependencies.remove(table);
+
+        ImmutableList.Builder<List<String>> dependencyWaves = ImmutableList.builder();
+        for (List<String> wave : getWaves()) {
+            List<String> dependencyWave = newArrayList();
+            for (String waveTable : wave) {
+                if (allDependencies.contains(waveTable)) {
+                    dependencyWave.add(waveTable);
+                }
+            }
+            if (!dependencyWave.isEmpty()) {
+                dependencyWaves.add(ImmutableList.copyOf(dependencyWave));
+            }
+        }
+        return dependencyWaves.build();
+    }
+
+    private void collectDependencies(String table, Set<String> collected) {
+        for (String dependency : this.dependencies.get(table)) {
+            if (collected.add(dependency)) {
+                collectDependencies(dependency, collected);
+            }
+        }
+    }
+
+    private List<List<String>> computeWaves() {
+        Set<String> remaining = newLinkedHashSet(this.dependencies.keySet());
+        ImmutableList.Builder<List<String>> computedWaves = ImmutableList.builder();
+        while (!remaining.isEmpty()) {
+            List<String> wave = newArrayList();
+            for (String table : remaining) {
+                if (!dependsOnAny(table, remaining)) {
+                    wave.add(table);
+                }
+            }
+            if (wave.isEmpty()) {
+                String first = remaining.iterator().next();
+                LOGGER.warn("Cannot order tables {} by their foreign keys as some depend on each other, flushing [{}] first.",
+                            remaining, first);
+                wave.add(first);
+            }
+            remaining.removeAll(wave);
+            computedWaves.add(ImmutableList.copyOf(wave));
+        }
+        return computedWaves.build();
+    }
+
+    private boolean dependsOnAny(String table, Set<String> tables) {
+        for (String dependency : this.dependencies.get(table)) {
+            if (tables.contains(dependency)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
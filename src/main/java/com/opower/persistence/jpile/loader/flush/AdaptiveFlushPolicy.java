@@ -0,0 +1,104 @@
+package com.opower.persistence.jpile.loader.flush;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flushes when the buffer reaches an effective size that is tuned from the measured latency and throughput of past
+ * flushes. The effective size starts at {@code minBytes} and is doubled or halved after every flush of a nearly full
+ * buffer, moving in whichever direction made the throughput in bytes per second go up, and always shrinking while
+ * flushes take longer than the target latency. It settles within a factor of two of the size with the best throughput
+ * whose flushes stay within the target latency.
+ * <p/>
+ * The effective size never exceeds the infile buffer of the loader, which still flushes when it is full. Other limits,
+ * such as a maximum age, can be added with a {@link ThresholdFlushPolicy}. Every loader tunes its own size.
+ *
+ * @author agent
+ */
+public class AdaptiveFlushPolicy implements FlushPolicy {
+    private final FlushPolicy limits;
+    private final int minBytes;
+    private final int maxBytes;
+    private final long targetLatencyNanos;
+
+    // Read on every row, written after flushes
+    private volatile int effectiveBytes;
+
+    // Guarded by this
+    private boolean growing = true;
+    private double lastThroughput;
+
+    /**
+     * @param minBytes      the smallest effective size
+     * @param maxBytes      the largest effective size
+     * @param targetLatency the longest a flush should take
+     * @param unit          the unit of {@code targetLatency}
+     */
+    public AdaptiveFlushPolicy(int minBytes, int maxBytes, long targetLatency, TimeUnit unit) {
+        this(ThresholdFlushPolicy.builder().build(), minBytes, maxBytes, targetLatency, unit);
+    }
+
+    /**
+     * @param limits        the policy of the limits to flush at regardless of the effective size
+     * @param minBytes      the smallest effective size
+     * @param maxBytes      the largest effective size
+     * @param targetLatency the longest a flush should take
+     * @param unit          the unit of {@code targetLatency}
+     */
+    public AdaptiveFlushPolicy(FlushPolicy limits, int minBytes, int maxBytes, long targetLatency, TimeUnit unit) {
+        Preconditions.checkNotNull(limits, "limits cannot be null");
+        Preconditions.checkArgument(minBytes > 0, "minBytes should be positive");
+        Preconditions.checkArgument(maxBytes >= minBytes, "maxBytes should not be less than minBytes");
+        Preconditions.checkArgument(targetLatency > 0, "targetLatency should be positive");
+
+        this.limits = limits;
+        this.minBytes = minBytes;
+        this.maxBytes = maxBytes;
+        this.targetLatencyNanos = unit.toNanos(targetLatency);
+        this.effectiveBytes = minBytes;
+    }
+
+    /**
+     * @return the number of bytes at which the buffer is currently flushed
+     */
+    public int getEffectiveBytes() {
+        return this.effectiveBytes;
+    }
+
+    @Override
+    public boolean shouldFlush(int bufferedRows, int bufferedBytes, long bufferAgeNanos) {
+        return bufferedRows > 0
+               && (bufferedBytes >= this.effectiveBytes || this.limits.shouldFlush(bufferedRows, bufferedBytes,
+                                                                                   bufferAgeNanos));
+    }
+
+    @Override
+    public synchronized void flushed(int rows, int bytes, long elapsedNanos) {
+        this.limits.flushed(rows, bytes, elapsedNanos);
+        // Buffers flushed well before reaching the effective size, at the end of a batch or by the other limits, say
+        // little about how the size performs
+        if (bytes < this.effectiveBytes / 2) {
+            return;
+        }
+
+        double throughput = (double) bytes / Math.max(1, elapsedNanos);
+        if (elapsedNanos > this.targetLatencyNanos) {
+            this.growing = false;
+        }
+        else if (throughput < this.lastThroughput) {
+            // The last step made things worse, so turn around
+            this.growing = !this.growing;
+        }
+        this.lastThroughput = throughput;
+
+        long resized = this.growing ? 2L * this.effectiveBytes : this.effectiveBytes / 2;
+        this.effectiveBytes = (int) Math.max(this.minBytes, Math.min(this.maxBytes, resized));
+    }
+
+    @Override
+    public FlushPolicy forLoader() {
+        return new AdaptiveFlushPolicy(this.limits.forLoader(), this.minBytes, this.maxBytes, this.targetLatencyNanos,
+                                       TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,42 @@
+package com.opower.persistence.jpile.loader.flush;
+
+/**
+ * Decides when a loader flushes its buffer before the buffer is full. A loader always flushes when its infile buffer
+ * cannot take the next row; a policy can make it flush earlier, for example when the oldest buffered row has waited too
+ * long or when enough rows have been buffered.
+ * <p/>
+ * The policy is asked after every row added to the loader and whenever
+ * {@link com.opower.persistence.jpile.loader.InfileObjectLoader#flushIfDue()} is called. Each loader gets its own policy
+ * from {@link #forLoader()}, so implementations may keep state per loader, such as measurements of past flushes.
+ * {@link #flushed(int, int, long)} may be called from the threads of a flush executor.
+ *
+ * @author agent
+ * @see ThresholdFlushPolicy
+ * @see AdaptiveFlushPolicy
+ */
+public interface FlushPolicy {
+
+    /**
+     * @param bufferedRows   the number of rows in the buffer
+     * @param bufferedBytes  the number of bytes in the buffer
+     * @param bufferAgeNanos the time since the oldest row in the buffer was added, in nanoseconds
+     * @return whether the buffer should be flushed now
+     */
+    boolean shouldFlush(int bufferedRows, int bufferedBytes, long bufferAgeNanos);
+
+    /**
+     * Reports a completed flush.
+     *
+     * @param rows         the number of rows flushed
+     * @param bytes        the number of bytes flushed
+     * @param elapsedNanos the time the flush took, in nanoseconds
+     */
+    void flushed(int rows, int bytes, long elapsedNanos);
+
+    /**
+     * Returns the policy of one more loader. Policies without state return themselves.
+     *
+     * @return the policy for a new loader
+     */
+    FlushPolicy forLoader();
+}
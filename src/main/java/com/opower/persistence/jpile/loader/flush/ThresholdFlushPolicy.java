@@ -0,0 +1,101 @@
+package com.opower.persistence.jpile.loader.flush;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flushes when the buffer reaches any of a maximum age, a maximum number of rows or a maximum number of bytes. Limits
+ * that are not set never trigger a flush. A maximum age bounds how long a slow trickle of entities stays in the buffer,
+ * as long as rows keep being added or {@link com.opower.persistence.jpile.loader.InfileObjectLoader#flushIfDue()} is
+ * called now and then.
+ * <p/>
+ * Instances of this class are immutable.
+ *
+ * @author agent
+ */
+public final class ThresholdFlushPolicy implements FlushPolicy {
+    private final long maxAgeNanos;
+    private final int maxRows;
+    private final int maxBytes;
+
+    private ThresholdFlushPolicy(long maxAgeNanos, int maxRows, int maxBytes) {
+        this.maxAgeNanos = maxAgeNanos;
+        this.maxRows = maxRows;
+        this.maxBytes = maxBytes;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * @return the maximum age of the oldest buffered row in nanoseconds, {@link Long#MAX_VALUE} if there is none
+     */
+    public long getMaxAgeNanos() {
+        return this.maxAgeNanos;
+    }
+
+    /**
+     * @return the maximum number of buffered rows, {@link Integer#MAX_VALUE} if there is none
+     */
+    public int getMaxRows() {
+        return this.maxRows;
+    }
+
+    /**
+     * @return the maximum number of buffered bytes, {@link Integer#MAX_VALUE} if there is none
+     */
+    public int getMaxBytes() {
+        return this.maxBytes;
+    }
+
+    @Override
+    public boolean shouldFlush(int bufferedRows, int bufferedBytes, long bufferAgeNanos) {
+        return bufferedRows > 0
+               && (bufferAgeNanos >= this.maxAgeNanos || bufferedRows >= this.maxRows || bufferedBytes >= this.maxBytes);
+    }
+
+    @Override
+    public void flushed(int rows, int bytes, long elapsedNanos) {
+    }
+
+    @Override
+    public FlushPolicy forLoader() {
+        return this;
+    }
+
+    /**
+     * Builder for {@link ThresholdFlushPolicy}. No limit is set by default.
+     */
+    public static final class Builder {
+        private long maxAgeNanos = Long.MAX_VALUE;
+        private int maxRows = Integer.MAX_VALUE;
+        private int maxBytes = Integer.MAX_VALUE;
+
+        private Builder() {
+        }
+
+        public Builder withMaxAge(long maxAge, TimeUnit unit) {
+            Preconditions.checkArgument(maxAge >= 0, "maxAge should not be negative");
+            this.maxAgeNanos = unit.toNanos(maxAge);
+            return this;
+        }
+
+        public Builder withMaxRows(int maxRows) {
+            Preconditions.checkArgument(maxRows > 0, "maxRows should be positive");
+            this.maxRows = maxRows;
+            return this;
+        }
+
+        public Builder withMaxBytes(int maxBytes) {
+            Preconditions.checkArgument(maxBytes > 0, "maxBytes should be positive");
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        public ThresholdFlushPolicy build() {
+            return new ThresholdFlushPolicy(this.maxAgeNanos, this.maxRows, this.maxBytes);
+        }
+    }
+}
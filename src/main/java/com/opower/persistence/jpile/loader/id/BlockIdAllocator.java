@@ -0,0 +1,52 @@
+package com.opower.persistence.jpile.loader.id;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Allocates ids from blocks of consecutive ids reserved atomically in a shared place, such as a sequence table. Every
+ * allocator reserving from the same place gets disjoint blocks, so any number of loaders, in any number of processes,
+ * can load into the same table at once. Ids of a block that is not used up are lost, so tables may have gaps.
+ * <p/>
+ * Instances of this class are thread safe. A new block is only reserved once every {@code blockSize} ids.
+ *
+ * @author agent
+ */
+public abstract class BlockIdAllocator implements IdAllocator {
+    private final int blockSize;
+
+    // The next id to allocate and the first id after the current block, guarded by this
+    private long nextId;
+    private long blockEnd;
+
+    /**
+     * @param blockSize the number of ids to reserve at once
+     */
+    protected BlockIdAllocator(int blockSize) {
+        Preconditions.checkArgument(blockSize > 0, "blockSize should be positive");
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @return the number of ids reserved at once
+     */
+    public int getBlockSize() {
+        return this.blockSize;
+    }
+
+    @Override
+    public synchronized long nextId() {
+        if (this.nextId == this.blockEnd) {
+            this.nextId = reserveBlock(this.blockSize);
+            this.blockEnd = this.nextId + this.blockSize;
+        }
+        return this.nextId++;
+    }
+
+    /**
+     * Atomically reserves a block of consecutive ids that no other allocator will get.
+     *
+     * @param size the number of ids to reserve
+     * @return the first id of the block
+     */
+    protected abstract long reserveBlock(int size);
+}
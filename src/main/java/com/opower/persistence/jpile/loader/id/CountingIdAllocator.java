@@ -0,0 +1,52 @@
+package com.opower.persistence.jpile.loader.id;
+
+import com.opower.persistence.jpile.jdbc.FindMaxIdStatementCallback;
+import com.opower.persistence.jpile.jdbc.StatementExecutor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Allocates ids by counting up from a starting id, usually the highest id of the table when the loader is built. Ids are
+ * unique within one allocator, so this is safe for any number of threads and loaders sharing it, for example through a
+ * {@link SharedIdAllocatorFactory}, but not for several processes loading into the same table. Use a
+ * {@link BlockIdAllocator} for that.
+ *
+ * @author agent
+ */
+public class CountingIdAllocator implements IdAllocator {
+    private final AtomicLong lastId;
+
+    /**
+     * @param lastId the id after which to start counting
+     */
+    public CountingIdAllocator(long lastId) {
+        this.lastId = new AtomicLong(lastId);
+    }
+
+    /**
+     * Returns a factory creating allocators that count up from the max id of their table.
+     *
+     * @return the factory
+     */
+    public static IdAllocatorFactory startingAtMaxId() {
+        return new IdAllocatorFactory() {
+            @Override
+            public IdAllocator newIdAllocator(StatementExecutor statementExecutor, String tableName, String idColumnName) {
+                return new CountingIdAllocator(statementExecutor.execute(
+                        new FindMaxIdStatementCallback(idColumnName, tableName)));
+            }
+        };
+    }
+
+    @Override
+    public long nextId() {
+        return this.lastId.incrementAndGet();
+    }
+
+    /**
+     * @return the last id allocated, or the starting id if none has been allocated yet
+     */
+    public long getLastId() {
+        return this.lastId.get();
+    }
+}
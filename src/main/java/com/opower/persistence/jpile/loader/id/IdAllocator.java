@@ -0,0 +1,18 @@
+package com.opower.persistence.jpile.loader.id;
+
+/**
+ * Allocates the ids a loader assigns to entities with an auto generated {@link javax.persistence.Id &#064;Id}. An
+ * allocator serves one table and never returns the same id twice.
+ * <p/>
+ * Implementations must be thread safe, so that several threads can load into the same table at once.
+ *
+ * @author agent
+ * @see IdAllocatorFactory
+ */
+public interface IdAllocator {
+
+    /**
+     * @return the next unused id
+     */
+    long nextId();
+}
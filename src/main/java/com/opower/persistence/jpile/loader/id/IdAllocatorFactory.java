@@ -0,0 +1,22 @@
+package com.opower.persistence.jpile.loader.id;
+
+import com.opower.persistence.jpile.jdbc.StatementExecutor;
+
+/**
+ * Creates the {@link IdAllocator} of a table when its loader is built.
+ *
+ * @author agent
+ * @see com.opower.persistence.jpile.loader.SingleInfileObjectLoaderBuilder#withIdAllocatorFactory(IdAllocatorFactory)
+ */
+public interface IdAllocatorFactory {
+
+    /**
+     * Creates the allocator for the ids of a table.
+     *
+     * @param statementExecutor the executor of the loader of the table
+     * @param tableName         the name of the table
+     * @param idColumnName      the name of the id column of the table
+     * @return the allocator
+     */
+    IdAllocator newIdAllocator(StatementExecutor statementExecutor, String tableName, String idColumnName);
+}
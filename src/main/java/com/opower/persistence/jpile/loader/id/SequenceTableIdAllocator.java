@@ -0,0 +1,73 @@
+package com.opower.persistence.jpile.loader.id;
+
+import com.google.common.base.Preconditions;
+import com.opower.persistence.jpile.jdbc.InitIdSequenceStatementCallback;
+import com.opower.persistence.jpile.jdbc.ReserveIdBlockStatementCallback;
+import com.opower.persistence.jpile.jdbc.StatementExecutor;
+
+/**
+ * A {@link BlockIdAllocator} reserving blocks from a hi/lo style sequence table, with one row per table:
+ * <pre>
+ * create table id_sequence (
+ *     sequence_name varchar(255) not null primary key,
+ *     last_id bigint not null
+ * )
+ * </pre>
+ * The row of a table is added when the first allocator for it is created, starting at the max id of the table. All ids
+ * of the table must be allocated through the sequence from then on.
+ * <p/>
+ * Blocks are reserved through the statement executor of the loader, so the connection should be in auto-commit mode or
+ * other sessions will wait for its transaction to end before they can reserve a block.
+ *
+ * @author agent
+ */
+public class SequenceTableIdAllocator extends BlockIdAllocator {
+    public static final int DEFAULT_BLOCK_SIZE = 1000;
+
+    private final StatementExecutor statementExecutor;
+    private final String sequenceTableName;
+    private final String tableName;
+
+    /**
+     * Creates the allocator and adds the sequence of the table if it does not exist yet.
+     *
+     * @param statementExecutor the executor used to reserve blocks
+     * @param sequenceTableName the name of the sequence table
+     * @param tableName         the name of the table to allocate ids for
+     * @param idColumnName      the name of the id column of the table
+     * @param blockSize         the number of ids to reserve at once
+     */
+    public SequenceTableIdAllocator(StatementExecutor statementExecutor, String sequenceTableName, String tableName,
+                                    String idColumnName, int blockSize) {
+        super(blockSize);
+        this.statementExecutor = Preconditions.checkNotNull(statementExecutor, "statementExecutor cannot be null");
+        this.sequenceTableName = Preconditions.checkNotNull(sequenceTableName, "sequenceTableName cannot be null");
+        this.tableName = Preconditions.checkNotNull(tableName, "tableName cannot be null");
+        this.statementExecutor.execute(new InitIdSequenceStatementCallback(sequenceTableName, idColumnName, tableName));
+    }
+
+    /**
+     * Returns a factory creating allocators that share a sequence table.
+     *
+     * @param sequenceTableName the name of the sequence table
+     * @param blockSize         the number of ids to reserve at once
+     * @return the factory
+     */
+    public static IdAllocatorFactory factory(final String sequenceTableName, final int blockSize) {
+        Preconditions.checkNotNull(sequenceTableName, "sequenceTableName cannot be null");
+        Preconditions.checkArgument(blockSize > 0, "blockSize should be positive");
+        return new IdAllocatorFactory() {
+            @Override
+            public IdAllocator newIdAllocator(StatementExecutor statementExecutor, String tableName, String idColumnName) {
+                return new SequenceTableIdAllocator(statementExecutor, sequenceTableName, tableName, idColumnName,
+                                                    blockSize);
+            }
+        };
+    }
+
+    @Override
+    protected long reserveBlock(int size) {
+        return this.statementExecutor.execute(new ReserveIdBlockStatementCallback(this.sequenceTableName, this.tableName,
+                                                                                  size));
+    }
+}
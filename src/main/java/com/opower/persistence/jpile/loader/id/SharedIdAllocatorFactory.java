@@ -0,0 +1,40 @@
+package com.opower.persistence.jpile.loader.id;
+
+import com.google.common.base.Preconditions;
+import com.opower.persistence.jpile.jdbc.StatementExecutor;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Creates one allocator per table with another factory and hands the same allocator to every loader of the table. Loaders
+ * built with this factory can therefore load into the same table at once, even with a {@link CountingIdAllocator}.
+ * <p/>
+ * Instances of this class are safe for use by multiple threads.
+ *
+ * @author agent
+ */
+public class SharedIdAllocatorFactory implements IdAllocatorFactory {
+    private final IdAllocatorFactory idAllocatorFactory;
+
+    // Guarded by this
+    private final Map<String, IdAllocator> idAllocators = new HashMap<>();
+
+    /**
+     * @param idAllocatorFactory the factory creating the allocator of each table
+     */
+    public SharedIdAllocatorFactory(IdAllocatorFactory idAllocatorFactory) {
+        this.idAllocatorFactory = Preconditions.checkNotNull(idAllocatorFactory, "idAllocatorFactory cannot be null");
+    }
+
+    @Override
+    public synchronized IdAllocator newIdAllocator(StatementExecutor statementExecutor, String tableName,
+                                                   String idColumnName) {
+        IdAllocator idAllocator = this.idAllocators.get(tableName);
+        if (idAllocator == null) {
+            idAllocator = this.idAllocatorFactory.newIdAllocator(statementExecutor, tableName, idColumnName);
+            this.idAllocators.put(tableName, idAllocator);
+        }
+        return idAllocator;
+    }
+}
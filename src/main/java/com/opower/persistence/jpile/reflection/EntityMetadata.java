@@ -0,0 +1,134 @@
+package com.opower.persistence.jpile.reflection;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+
+import javax.persistence.ManyToOne;
+import javax.persistence.OneToMany;
+import javax.persistence.OneToOne;
+import javax.persistence.PrimaryKeyJoinColumn;
+import javax.persistence.SecondaryTable;
+import java.lang.reflect.AnnotatedElement;
+import java.util.List;
+import java.util.Set;
+
+import static com.google.common.collect.Sets.newLinkedHashSet;
+
+/**
+ * The persistence metadata of an entity class: its table, id and secondary tables, and the relations to the entities to
+ * persist before and after it. The metadata of a class is parsed from its annotations once per process, on first use,
+ * and shared by all loaders, so short-lived loaders do not scan the annotations again.
+ * <p/>
+ * Instances of this class are immutable, and {@link #of(Class)} is safe for use by multiple threads. The metadata is
+ * kept with the class, so it does not keep the class loader of the entity from being unloaded.
+ *
+ * @author agent
+ */
+public final class EntityMetadata {
+    // Not cached, as the metadata of each class is only parsed once. A process-wide cache would keep the classes of
+    // entities, and so their class loaders, reachable.
+    private static final PersistenceAnnotationInspector ANNOTATION_INSPECTOR = new PersistenceAnnotationInspector();
+
+    private static final Predicate<AnnotatedElement> ONE_TO_ONE_CHILD = new Predicate<AnnotatedElement>() {
+        @Override
+        public boolean apply(AnnotatedElement element) {
+            // Must have OneToOne but not PrimaryKeyJoinColumn annotations
+            return ANNOTATION_INSPECTOR.hasAnnotation(element, OneToOne.class)
+                    && !ANNOTATION_INSPECTOR.hasAnnotation(element, PrimaryKeyJoinColumn.class);
+        }
+    };
+
+    private static final ClassValue<EntityMetadata> REGISTRY = new ClassValue<EntityMetadata>() {
+        @Override
+        protected EntityMetadata computeValue(Class<?> type) {
+            return new EntityMetadata(type);
+        }
+    };
+
+    private final Class<?> entityClass;
+    private final String tableName;
+    private final PropertyAccessor idProperty;
+    private final List<SecondaryTable> secondaryTables;
+    private final List<PropertyAccessor> childDependents;
+    private final List<PropertyAccessor> parentDependents;
+
+    private EntityMetadata(Class<?> entityClass) {
+        this.entityClass = entityClass;
+        this.tableName = ANNOTATION_INSPECTOR.hasTableAnnotation(entityClass)
+                ? ANNOTATION_INSPECTOR.tableName(entityClass) : null;
+        this.idProperty = ANNOTATION_INSPECTOR.idProperty(entityClass);
+        this.secondaryTables = ImmutableList.copyOf(ANNOTATION_INSPECTOR.findSecondaryTables(entityClass));
+
+        Set<PropertyAccessor> children
+                = newLinkedHashSet(ANNOTATION_INSPECTOR.propertiesAnnotatedWith(entityClass, ManyToOne.class));
+        children.addAll(ANNOTATION_INSPECTOR.propertiesAnnotatedWith(entityClass, ONE_TO_ONE_CHILD));
+        this.childDependents = ImmutableList.copyOf(children);
+
+        Set<PropertyAccessor> dependents
+                = newLinkedHashSet(ANNOTATION_INSPECTOR.propertiesAnnotatedWith(entityClass, OneToMany.class));
+        dependents.addAll(ANNOTATION_INSPECTOR.propertiesAnnotatedWith(entityClass, OneToOne.class,
+                                                                      PrimaryKeyJoinColumn.class));
+        this.parentDependents = ImmutableList.copyOf(dependents);
+    }
+
+    /**
+     * Returns the metadata of a class, parsing it on first use.
+     *
+     * @param entityClass the class
+     * @return the metadata of the class
+     */
+    public static EntityMetadata of(Class<?> entityClass) {
+        return REGISTRY.get(entityClass);
+    }
+
+    /**
+     * @return the entity class
+     */
+    public Class<?> getEntityClass() {
+        return this.entityClass;
+    }
+
+    /**
+     * @return whether the class has a {@link javax.persistence.Table &#064;Table} annotation
+     */
+    public boolean hasTable() {
+        return this.tableName != null;
+    }
+
+    /**
+     * @return the name of the table of the class, null if it has no {@link javax.persistence.Table &#064;Table}
+     */
+    public String getTableName() {
+        return this.tableName;
+    }
+
+    /**
+     * @return the id property, null if there is none
+     */
+    public PropertyAccessor getIdProperty() {
+        return this.idProperty;
+    }
+
+    /**
+     * @return the secondary tables of the class, empty if there are none
+     */
+    public List<SecondaryTable> getSecondaryTables() {
+        return this.secondaryTables;
+    }
+
+    /**
+     * @return the {@link ManyToOne} and {@link OneToOne} properties holding the entities this entity refers to, which
+     *         are persisted before it
+     */
+    public List<PropertyAccessor> getChildDependents() {
+        return this.childDependents;
+    }
+
+    /**
+     * @return the {@link OneToMany} and primary key joined {@link OneToOne} properties holding the entities referring to
+     *         this entity, which are persisted after it
+     */
+    public List<PropertyAccessor> getParentDependents() {
+        return this.parentDependents;
+    }
+}
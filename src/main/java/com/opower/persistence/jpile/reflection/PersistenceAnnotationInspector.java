@@ -1,17 +1,21 @@
 package com.opower.persistence.jpile.reflection;
 
 import java.lang.annotation.Annotation;
+import java.lang.reflect.AnnotatedElement;
 import java.lang.reflect.Field;
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.List;
+import javax.persistence.Access;
+import javax.persistence.AccessType;
+import javax.persistence.Column;
+import javax.persistence.EmbeddedId;
 import javax.persistence.Id;
 import javax.persistence.SecondaryTable;
 import javax.persistence.SecondaryTables;
 import javax.persistence.Table;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
-import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import org.springframework.core.annotation.AnnotationUtils;
@@ -68,6 +72,48 @@ public class PersistenceAnnotationInspector {
         return findAnnotation(method, annotationType) != null;
     }
 
+    /**
+     * Finds the annotation on a property. Annotations on getters are found like {@link #findAnnotation(Method, Class)}
+     * does, annotations on fields are looked up on the field only.
+     *
+     * @param property       the property to look
+     * @param annotationType the annotation class
+     * @param <A>            the annotation type
+     * @return the annotation on the property or null if it doesn't exist
+     */
+    public <A extends Annotation> A findAnnotation(PropertyAccessor property, Class<A> annotationType) {
+        if (property.getGetter() != null) {
+            return findAnnotation(property.getGetter(), annotationType);
+        }
+        return property.getField().getAnnotation(annotationType);
+    }
+
+    /**
+     * Checks to see if an annotation exists on a property.
+     *
+     * @param property       the property
+     * @param annotationType the annotation to look for
+     * @return true if it exists
+     */
+    public boolean hasAnnotation(PropertyAccessor property, Class<? extends Annotation> annotationType) {
+        return findAnnotation(property, annotationType) != null;
+    }
+
+    /**
+     * Checks to see if an annotation exists on the field or getter of a property. Annotations on getters are found like
+     * {@link #findAnnotation(Method, Class)} does.
+     *
+     * @param element        the field or getter
+     * @param annotationType the annotation to look for
+     * @return true if it exists
+     */
+    public boolean hasAnnotation(AnnotatedElement element, Class<? extends Annotation> annotationType) {
+        if (element instanceof Method) {
+            return hasAnnotation((Method) element, annotationType);
+        }
+        return element.isAnnotationPresent(annotationType);
+    }
+
     /**
      * Checks to see if an annotation exists on a class.
      *
@@ -153,6 +199,59 @@ public class PersistenceAnnotationInspector {
         return methods.size() > 0 ? methods.get(0).getMethod() : null;
     }
 
+    /**
+     * Looks for {@link javax.persistence.Id &#064;Id} on all properties and returns the accessor of the first one.
+     *
+     * @param aClass the class to look for
+     * @return the id property, or null if there is none
+     */
+    public PropertyAccessor idProperty(Class<?> aClass) {
+        List<AnnotatedProperty<Id>> properties = annotatedPropertiesWith(aClass, Id.class);
+        return properties.size() > 0 ? properties.get(0).getProperty() : null;
+    }
+
+    /**
+     * Checks whether the persistent properties of a class are annotated and accessed on its fields rather than on its
+     * getters. This is the case if the class is annotated with {@code @Access(AccessType.FIELD)}. Without an
+     * {@link Access &#064;Access} annotation, the placement of {@link Id &#064;Id} or {@link EmbeddedId &#064;EmbeddedId}
+     * decides, as in JPA; classes without an id, such as embeddables, use field access if only their fields have
+     * {@link Column &#064;Column} annotations.
+     *
+     * @param aClass the class to check
+     * @return true if the class uses field access
+     */
+    public boolean hasFieldAccess(Class<?> aClass) {
+        Access access = findAnnotation(aClass, Access.class);
+        if (access != null) {
+            return access.value() == AccessType.FIELD;
+        }
+        if (!annotatedFieldsWith(aClass, Id.class).isEmpty() || !annotatedFieldsWith(aClass, EmbeddedId.class).isEmpty()) {
+            return true;
+        }
+        if (!annotatedMethodsWith(aClass, Id.class).isEmpty() || !annotatedMethodsWith(aClass, EmbeddedId.class).isEmpty()) {
+            return false;
+        }
+        return !annotatedFieldsWith(aClass, Column.class).isEmpty() && annotatedMethodsWith(aClass, Column.class).isEmpty();
+    }
+
+    /**
+     * Creates the accessor of a property annotated on its getter. The property is written with the setter of the getter,
+     * or with its field if there is no setter.
+     *
+     * @param getter the getter
+     * @return the accessor
+     */
+    public PropertyAccessor propertyFromGetter(Method getter) {
+        Preconditions.checkNotNull(getter, "Cannot create property from null getter");
+        Preconditions.checkArgument(isReadMethod(getter), "[%s] cannot be used as a getter", getter);
+        if (!getter.getName().startsWith(GETTER_PREFIX)
+            && !(isBooleanClass(getter.getReturnType()) && getter.getName().startsWith(IS_PREFIX))) {
+            // Not a JavaBean getter, so there is nothing to write through
+            return PropertyAccessor.forGetter(getter, null, null);
+        }
+        return PropertyAccessor.forGetter(getter, setterFromGetter(getter), fieldFromGetter(getter));
+    }
+
     /**
      * Check if a class is a boolean type.
      *
@@ -278,6 +377,123 @@ public class PersistenceAnnotationInspector {
         return methods;
     }
 
+    /**
+     * Looks for all persistent properties with an annotation and returns the annotation with the property accessor.
+     * Depending on {@link #hasFieldAccess(Class)}, the annotations are looked up on the fields or on the methods of the
+     * class and its parents.
+     *
+     * @param aClass     the class
+     * @param annotation the annotation class
+     * @param <A>        the annotation type
+     * @return list of annotations and properties together
+     */
+    public <A extends Annotation> List<AnnotatedProperty<A>> annotatedPropertiesWith(Class<?> aClass,
+                                                                                    Class<A> annotation) {
+        List<AnnotatedProperty<A>> properties = newArrayList();
+        if (hasFieldAccess(aClass)) {
+            for (Field field : annotatedFieldsWith(aClass, annotation)) {
+                properties.add(new AnnotatedProperty<>(PropertyAccessor.forField(field), field.getAnnotation(annotation)));
+            }
+        }
+        else {
+            for (AnnotatedMethod<A> annotatedMethod : annotatedMethodsWith(aClass, annotation)) {
+                if (!isReadMethod(annotatedMethod.getMethod())) {
+                    continue;
+                }
+                properties.add(new AnnotatedProperty<>(propertyFromGetter(annotatedMethod.getMethod()),
+                                                       annotatedMethod.getAnnotation()));
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Returns all persistent properties that are annotated with multiple annotations.
+     *
+     * @param aClass      the class to search
+     * @param annotations all annotations
+     * @return the list of properties
+     */
+    @SafeVarargs
+    public final List<PropertyAccessor> propertiesAnnotatedWith(Class<?> aClass,
+                                                                final Class<? extends Annotation>... annotations) {
+        return propertiesAnnotatedWith(aClass, new Predicate<AnnotatedElement>() {
+
+            public boolean apply(AnnotatedElement element) {
+                for (Class<? extends Annotation> annotation : annotations) {
+                    if (element.getAnnotation(annotation) == null) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Returns all persistent properties filtered by a predicate. Depending on {@link #hasFieldAccess(Class)}, these are
+     * all the fields or all the methods of the class and its parents. The predicate is applied to the field or getter, so
+     * accessors are only created for the properties it accepts.
+     *
+     * @param aClass    the class to search
+     * @param predicate using this predicate to filter the fields or getters
+     * @return the list of properties
+     */
+    public List<PropertyAccessor> propertiesAnnotatedWith(Class<?> aClass, Predicate<AnnotatedElement> predicate) {
+        List<PropertyAccessor> properties = newArrayList();
+        if (hasFieldAccess(aClass)) {
+            for (Field field : allDeclaredFields(aClass)) {
+                if (predicate.apply(field)) {
+                    properties.add(PropertyAccessor.forField(field));
+                }
+            }
+        }
+        else {
+            for (Method method : ReflectionUtils.getAllDeclaredMethods(aClass)) {
+                if (isReadMethod(method) && method.getAnnotations().length > 0 && predicate.apply(method)) {
+                    properties.add(propertyFromGetter(method));
+                }
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * Checks whether a method can read a property, ie. it has no parameters and returns a value.
+     *
+     * @param method the method to check
+     * @return true if the method can be used as a getter
+     */
+    private static boolean isReadMethod(Method method) {
+        return method.getParameterTypes().length == 0 && !void.class.equals(method.getReturnType());
+    }
+
+    private static List<Field> annotatedFieldsWith(Class<?> aClass, Class<? extends Annotation> annotation) {
+        List<Field> fields = newArrayList();
+        for (Field field : allDeclaredFields(aClass)) {
+            if (field.isAnnotationPresent(annotation)) {
+                fields.add(field);
+            }
+        }
+        return fields;
+    }
+
+    private static List<Field> allDeclaredFields(Class<?> aClass) {
+        final List<Field> fields = newArrayList();
+        ReflectionUtils.doWithFields(aClass, new ReflectionUtils.FieldCallback() {
+            @Override
+            public void doWith(Field field) {
+                fields.add(field);
+            }
+        }, new ReflectionUtils.FieldFilter() {
+            @Override
+            public boolean matches(Field field) {
+                return !Modifier.isStatic(field.getModifiers());
+            }
+        });
+        return fields;
+    }
+
     /**
      * Returns all methods that are annotated with multiple annotations.
      *
@@ -312,7 +528,8 @@ public class PersistenceAnnotationInspector {
     }
 
     /**
-     * A helper method for getting an id from a persist object with annotated @Id.
+     * A helper method for getting an id from a persist object with annotated @Id. The id is read through the accessor
+     * resolved by {@link #idProperty(Class)}, so it is cached along with this instance.
      * <p/>
      * The reason is static and takes an instance of self for caching reasons. @Cacheable does not work when calling
      * <code>this.someCachedMethod()</code> so I am passing the object instead which caches everything.
@@ -324,14 +541,9 @@ public class PersistenceAnnotationInspector {
     public static Object getIdValue(PersistenceAnnotationInspector utils, Object o) {
         Preconditions.checkNotNull(o, "Cannot get id on a null object");
         if (utils.hasTableAnnotation(o.getClass())) {
-            Method getter = utils.idGetter(o.getClass());
-            if (getter != null) {
-                try {
-                    return getter.invoke(o);
-                }
-                catch (InvocationTargetException | IllegalAccessException e) {
-                    throw Throwables.propagate(e);
-                }
+            PropertyAccessor idProperty = utils.idProperty(o.getClass());
+            if (idProperty != null) {
+                return idProperty.get(o);
             }
         }
 
@@ -339,9 +551,9 @@ public class PersistenceAnnotationInspector {
     }
 
     /**
-     * Sets the value by find a getter with @Id and the setter that goes with that field. If a setter doesn't exist
-     * then it falls back looking for the field.
-     *
+     * Sets the value of the property with @Id, through its setter or field. Accessors are resolved by
+     * {@link #idProperty(Class)}, so they are cached along with this instance.
+     * <p/>
      * The reason is static and takes an instance of self for caching reasons. @Cacheable does not work when calling
      * <code>this.someCachedMethod()</code> so I am passing the object instead which caches everything.
      *
@@ -351,22 +563,10 @@ public class PersistenceAnnotationInspector {
      */
     public static void setIdValue(PersistenceAnnotationInspector utils, Object entity, Object id) {
         Preconditions.checkNotNull(entity, "Cannot update id on a null object");
-        Method getter = utils.idGetter(entity.getClass());
-        Method setter = utils.setterFromGetter(getter);
-        Field field = utils.fieldFromGetter(getter);
-
-        try {
-            if (setter != null) {
-                ReflectionUtils.makeAccessible(setter);
-                setter.invoke(entity, id);
-            }
-            else if (field != null) {
-                ReflectionUtils.makeAccessible(field);
-                field.set(entity, id);
-            }
-        }
-        catch (InvocationTargetException | IllegalAccessException e) {
-            throw Throwables.propagate(e);
+        PropertyAccessor idProperty = utils.idProperty(entity.getClass());
+        Preconditions.checkNotNull(idProperty, "@Id not found for class [%s]", entity.getClass());
+        if (idProperty.isWritable()) {
+            idProperty.set(entity, id);
         }
     }
 
@@ -392,4 +592,27 @@ public class PersistenceAnnotationInspector {
             return this.annotation;
         }
     }
+
+    /**
+     * For pairing annotations and properties.
+     *
+     * @param <E> the annotation type
+     */
+    public static class AnnotatedProperty<E extends Annotation> {
+        private final PropertyAccessor property;
+        private final E annotation;
+
+        public AnnotatedProperty(PropertyAccessor property, E annotation) {
+            this.property = property;
+            this.annotation = annotation;
+        }
+
+        public PropertyAccessor getProperty() {
+            return this.property;
+        }
+
+        public E getAnnotation() {
+            return this.annotation;
+        }
+    }
 }
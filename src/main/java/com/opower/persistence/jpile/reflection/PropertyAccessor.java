@@ -0,0 +1,205 @@
+package com.opower.persistence.jpile.reflection;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+import java.beans.Introspector;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.AccessibleObject;
+import java.lang.reflect.AnnotatedElement;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+
+/**
+ * Reads and writes a persistent property of an entity, either through its getter and setter or directly through its
+ * field when the entity uses field access. Values are read and written with {@link MethodHandle}s resolved once when the
+ * accessor is created.
+ * <p/>
+ * Instances of this class are immutable and thread safe. Two accessors are equal if they access the property through the
+ * same getter or field.
+ *
+ * @author agent
+ */
+public final class PropertyAccessor {
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+    private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private final String name;
+    private final Method getter;
+    private final Field field;
+    private final MethodHandle getterHandle;
+    private final MethodHandle setterHandle;
+
+    private PropertyAccessor(String name, Method getter, Field field, MethodHandle getterHandle,
+                             MethodHandle setterHandle) {
+        this.name = name;
+        this.getter = getter;
+        this.field = field;
+        this.getterHandle = getterHandle;
+        this.setterHandle = setterHandle;
+    }
+
+    /**
+     * Creates an accessor for a property read through its getter.
+     *
+     * @param getter the getter of the property
+     * @param setter the setter of the property, or null to write the field
+     * @param field  the field of the property, or null if there is none
+     * @return the accessor, which can only write the property if there is a setter or a field
+     */
+    public static PropertyAccessor forGetter(Method getter, Method setter, Field field) {
+        Preconditions.checkNotNull(getter, "getter cannot be null");
+        String name = field != null ? field.getName() : propertyName(getter);
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            MethodHandle setterHandle = null;
+            if (setter != null) {
+                setterHandle = lookup.unreflect(accessible(setter));
+            }
+            else if (field != null && !Modifier.isFinal(field.getModifiers())) {
+                setterHandle = lookup.unreflectSetter(accessible(field));
+            }
+            return new PropertyAccessor(name, getter, null, lookup.unreflect(accessible(getter)).asType(GETTER_TYPE),
+                                        setterHandle != null ? setterHandle.asType(SETTER_TYPE) : null);
+        }
+        catch (IllegalAccessException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    /**
+     * Creates an accessor for a property read and written directly through its field.
+     *
+     * @param field the field of the property
+     * @return the accessor, which can only write the property if the field is not final
+     */
+    public static PropertyAccessor forField(Field field) {
+        Preconditions.checkNotNull(field, "field cannot be null");
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            accessible(field);
+            MethodHandle setterHandle = Modifier.isFinal(field.getModifiers()) ? null : lookup.unreflectSetter(field);
+            return new PropertyAccessor(field.getName(), null, field, lookup.unreflectGetter(field).asType(GETTER_TYPE),
+                                        setterHandle != null ? setterHandle.asType(SETTER_TYPE) : null);
+        }
+        catch (IllegalAccessException e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private static <T extends AccessibleObject> T accessible(T accessibleObject) {
+        accessibleObject.setAccessible(true);
+        return accessibleObject;
+    }
+
+    private static String propertyName(Method getter) {
+        String getterName = getter.getName();
+        if (getterName.startsWith("get") && getterName.length() > "get".length()) {
+            return Introspector.decapitalize(getterName.substring("get".length()));
+        }
+        if (getterName.startsWith("is") && getterName.length() > "is".length()) {
+            return Introspector.decapitalize(getterName.substring("is".length()));
+        }
+        return getterName;
+    }
+
+    /**
+     * @return the name of the property
+     */
+    public String getName() {
+        return this.name;
+    }
+
+    /**
+     * @return the getter of the property, null if the property is accessed through its field
+     */
+    public Method getGetter() {
+        return this.getter;
+    }
+
+    /**
+     * @return the field of the property if it is accessed through its field, otherwise null
+     */
+    public Field getField() {
+        return this.field;
+    }
+
+    /**
+     * @return the getter or field holding the persistence annotations of the property
+     */
+    public AnnotatedElement getAnnotatedElement() {
+        return this.getter != null ? this.getter : this.field;
+    }
+
+    /**
+     * @return the declared type of the property
+     */
+    public Class<?> getType() {
+        return this.getter != null ? this.getter.getReturnType() : this.field.getType();
+    }
+
+    /**
+     * @return the declared generic type of the property
+     */
+    public Type getGenericType() {
+        return this.getter != null ? this.getter.getGenericReturnType() : this.field.getGenericType();
+    }
+
+    /**
+     * @return true if the property can be written
+     */
+    public boolean isWritable() {
+        return this.setterHandle != null;
+    }
+
+    /**
+     * Reads the property.
+     *
+     * @param target the entity to read the property of
+     * @return the value of the property
+     */
+    public Object get(Object target) {
+        try {
+            return (Object) this.getterHandle.invokeExact(target);
+        }
+        catch (Throwable t) {
+            throw Throwables.propagate(t);
+        }
+    }
+
+    /**
+     * Writes the property.
+     *
+     * @param target the entity to write the property of
+     * @param value  the new value
+     * @throws IllegalStateException if the property cannot be written
+     */
+    public void set(Object target, Object value) {
+        Preconditions.checkState(this.setterHandle != null, "Property [%s] cannot be written", this);
+        try {
+            this.setterHandle.invokeExact(target, value);
+        }
+        catch (Throwable t) {
+            throw Throwables.propagate(t);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof PropertyAccessor && getAnnotatedElement().equals(((PropertyAccessor) o).getAnnotatedElement());
+    }
+
+    @Override
+    public int hashCode() {
+        return getAnnotatedElement().hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return getAnnotatedElement().toString();
+    }
+}
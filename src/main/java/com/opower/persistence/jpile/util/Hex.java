@@ -55,6 +55,24 @@ public final class Hex {
         return out;
     }
 
+    /**
+     * Converts an array of bytes into the ASCII bytes of the hexadecimal values of each byte in order, writing them into
+     * the given array. Twice as many bytes as the length of the passed array are written.
+     *
+     * @param data a byte[] to convert to Hex characters
+     * @param out the array to write the ASCII encoded hexadecimal characters to
+     * @param offset the index in {@code out} to start writing at
+     * @return the index in {@code out} after the last character written
+     */
+    public static int encodeHex(byte[] data, byte[] out, int offset) {
+        int j = offset;
+        for (byte b : data) {
+            out[j++] = (byte) DIGITS[(0xF0 & b) >>> 4];
+            out[j++] = (byte) DIGITS[0x0F & b];
+        }
+        return j;
+    }
+
     /**
      * Converts an array of bytes into a String representing the hexadecimal values of each byte in order. The returned
      * String will be double the length of the passed array, as it takes two characters to represent any given byte.
@@ -0,0 +1,72 @@
+package com.opower.persistence.jpile.infile;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link InfileChunkPool}
+ *
+ * @author agent
+ */
+public class InfileChunkPoolTest {
+
+    @Test
+    public void testAcquireAllocatesChunks() {
+        InfileChunkPool pool = new InfileChunkPool(16, 2);
+
+        ByteBuffer chunk = pool.acquire();
+
+        assertEquals(16, chunk.capacity());
+        assertEquals(0, chunk.position());
+        assertFalse(chunk.isDirect());
+        assertEquals(0, pool.getPooledChunkCount());
+    }
+
+    @Test
+    public void testReleasedChunksAreReused() {
+        InfileChunkPool pool = new InfileChunkPool(16, 2);
+        ByteBuffer chunk = pool.acquire();
+        chunk.put((byte) 1);
+
+        pool.release(chunk);
+        assertEquals(1, pool.getPooledChunkCount());
+
+        ByteBuffer reused = pool.acquire();
+        assertSame(chunk, reused);
+        assertEquals(0, reused.position());
+        assertEquals(0, pool.getPooledChunkCount());
+    }
+
+    @Test
+    public void testPoolKeepsAtMostMaxPooledChunks() {
+        InfileChunkPool pool = new InfileChunkPool(16, 2);
+        ByteBuffer first = pool.acquire();
+        ByteBuffer second = pool.acquire();
+        ByteBuffer third = pool.acquire();
+
+        pool.release(first);
+        pool.release(second);
+        pool.release(third);
+
+        assertEquals(2, pool.getPooledChunkCount());
+    }
+
+    @Test
+    public void testDirectChunks() {
+        InfileChunkPool pool = new InfileChunkPool(16, 2, true);
+
+        assertTrue(pool.isDirect());
+        assertTrue(pool.acquire().isDirect());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testReleaseForeignChunk() {
+        new InfileChunkPool(16, 2).release(ByteBuffer.allocate(8));
+    }
+}
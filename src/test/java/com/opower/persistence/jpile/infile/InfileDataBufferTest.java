@@ -2,6 +2,7 @@ package com.opower.persistence.jpile.infile;
 
 import com.google.common.base.Charsets;
 import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.CharStreams;
 import org.joda.time.DateTime;
 import org.junit.Before;
@@ -15,10 +16,21 @@ import javax.persistence.Table;
 import javax.persistence.Temporal;
 import javax.persistence.TemporalType;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.BufferOverflowException;
 import java.nio.charset.Charset;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
 import java.util.Date;
+import java.util.Random;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
@@ -87,6 +99,39 @@ public class InfileDataBufferTest {
         addRowAndAssertContents(expected);
     }
 
+    /**
+     * Verify that the {@link InfileDataBuffer#append(String)} method encodes multi-byte characters, including surrogate
+     * pairs, as UTF-8 and escapes special characters next to them.
+     */
+    @Test
+    public void testAppendStringWithMultiByteCharacters() {
+        String input = "caf\u00e9\t\u2603\\\ud834\udd1e";
+        String expected = "caf\u00e9\\\t\u2603\\\\\ud834\udd1e";
+
+        this.infileDataBuffer.append(input);
+        addRowAndAssertContents(expected);
+    }
+
+    /**
+     * Verify that the {@link InfileDataBuffer#append(String)} method escapes special characters when a charset other than
+     * UTF-8 is used.
+     */
+    @Test
+    public void testAppendStringNeedingEscapingWithCustomCharset() {
+        this.infileDataBuffer = InfileDataBuffer.builder().withCharset(Charsets.ISO_8859_1).build();
+        String input = "C:\\caf\u00e9\n";
+        String expected = "C:\\\\caf\u00e9\\\n";
+
+        this.infileDataBuffer.append(input);
+        addRowAndAssertContents(expected, Charsets.ISO_8859_1);
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void testAppendStringLargerThanRowBuffer() {
+        this.infileDataBuffer = InfileDataBuffer.builder().withRowBufferSize(4).build();
+        this.infileDataBuffer.append("caf\u00e9");
+    }
+
     @Test
     public void testAppendByte() {
         this.infileDataBuffer.append((byte) 65);
@@ -113,6 +158,27 @@ public class InfileDataBufferTest {
         addRowAndAssertContents("C:\\\\");
     }
 
+    /**
+     * Verify that {@link InfileDataBuffer#append(byte[])} escapes special bytes at the start, in the middle and at the end of
+     * the array, and leaves non-ASCII bytes untouched.
+     */
+    @Test
+    public void testAppendBytesWithMultipleEscapeCharacters() {
+        byte[] bytes = {0, 72, 9, 10, (byte) 0xFF, 105, 26};
+        this.infileDataBuffer.append(bytes);
+        this.infileDataBuffer.addRowToInfile();
+
+        byte[] expected = {92, 0, 72, 92, 9, 92, 10, (byte) 0xFF, 105, 92, 26};
+        assertArrayEquals(expected, readInfile());
+    }
+
+    @Test
+    public void testAppendHex() {
+        byte[] bytes = {0, 9, 92, (byte) 0xAB, (byte) 0xFF};
+        this.infileDataBuffer.append("md5").appendHex(bytes).appendHex(new byte[0]).appendHex(null);
+        addRowAndAssertContents("md5\t00095cabff\t\t\\N");
+    }
+
     /**
      * Attempt to insert a row of empty data in between two rows of good data. We should not
      * have a row in the infile buffer for the empty row in the middle.
@@ -169,6 +235,93 @@ public class InfileDataBufferTest {
         addRowAndAssertContents("\\N");
     }
 
+    @Test
+    public void testAppendLong() {
+        this.infileDataBuffer.append(1234567890123L).append(-42L).append(0L).append(Long.MIN_VALUE);
+        addRowAndAssertContents("1234567890123\t-42\t0\t" + Long.MIN_VALUE);
+    }
+
+    @Test
+    public void testAppendIntAndShort() {
+        this.infileDataBuffer.append(Integer.MAX_VALUE).append((short) -7);
+        addRowAndAssertContents(Integer.MAX_VALUE + "\t-7");
+    }
+
+    /**
+     * Verify that doubles and floats are formatted exactly like {@link Double#toString(double)} and
+     * {@link Float#toString(float)}.
+     */
+    @Test
+    public void testAppendDoubleAndFloat() {
+        double[] doubles = {0.0, -0.0, 3.0, -12.0, 9999999.0, 1.0E7, 0.1, -2.5E-5, Double.NaN, Double.NEGATIVE_INFINITY};
+        StringBuilder expected = new StringBuilder();
+        for (double d : doubles) {
+            this.infileDataBuffer.append(d);
+            expected.append(d).append('\t');
+        }
+        this.infileDataBuffer.append(16725.617f).append(42f);
+        expected.append(16725.617f).append('\t').append(42f);
+
+        addRowAndAssertContents(expected.toString());
+    }
+
+    @Test
+    public void testAppendChar() {
+        this.infileDataBuffer.append('a').append('\\').append('\u00e9');
+        addRowAndAssertContents("a\t\\\\\t\u00e9");
+    }
+
+    /**
+     * Verify that the numeric append methods go through the encoder for charsets that are not ASCII compatible.
+     */
+    @Test
+    public void testAppendNumbersWithNonAsciiCharset() {
+        this.infileDataBuffer = InfileDataBuffer.builder().withCharset(Charsets.UTF_16BE).build();
+        this.infileDataBuffer.append(-42L).append(2.5);
+        addRowAndAssertContents("-42\t2.5", Charsets.UTF_16BE);
+    }
+
+    @Test
+    public void testAppendDateWithTemporalType() {
+        this.infileDataBuffer.append(TEST_DATE, TemporalType.DATE)
+                             .append(TEST_DATE, TemporalType.TIME)
+                             .append(TEST_DATE, TemporalType.TIMESTAMP)
+                             .append((Date) null, TemporalType.DATE);
+        addRowAndAssertContents(DATE_STRING + "\t" + TIME_STRING + "\t" + TIMESTAMP_STRING + "\t\\N");
+    }
+
+    @Test
+    public void testAppendDateBeforeYear1000() {
+        this.infileDataBuffer.append(DateTime.parse("0987-03-04T05:06:07").toDate(), TemporalType.TIMESTAMP);
+        addRowAndAssertContents("0987-03-04 05:06:07");
+    }
+
+    @Test
+    public void testAppendLocalDateAndTime() {
+        this.infileDataBuffer.append(LocalDate.of(2000, 1, 10))
+                             .append(LocalTime.of(8, 0, 1, 999999999))
+                             .append(LocalDateTime.of(2000, 1, 10, 8, 0, 1))
+                             .append((LocalDate) null);
+        addRowAndAssertContents(DATE_STRING + "\t" + TIME_STRING + "\t" + TIMESTAMP_STRING + "\t\\N");
+    }
+
+    /**
+     * Verify that instants and offset date times are appended in the default time zone, just like {@link Date} values.
+     */
+    @Test
+    public void testAppendInstantAndOffsetDateTime() {
+        Instant instant = Instant.ofEpochMilli(TEST_DATE.getTime());
+        this.infileDataBuffer.append(instant).append(instant.atOffset(ZoneOffset.ofHours(-11)));
+        addRowAndAssertContents(TIMESTAMP_STRING + "\t" + TIMESTAMP_STRING);
+    }
+
+    @Test
+    public void testAppendDateWithNonAsciiCharset() {
+        this.infileDataBuffer = InfileDataBuffer.builder().withCharset(Charsets.UTF_16BE).build();
+        this.infileDataBuffer.append(TEST_DATE, TemporalType.TIMESTAMP);
+        addRowAndAssertContents(TIMESTAMP_STRING, Charsets.UTF_16BE);
+    }
+
     @Test
     public void testFloatWithPrecisionAndScale1() {
         this.infileDataBuffer.append(84009.469f, 12, 3);
@@ -187,6 +340,60 @@ public class InfileDataBufferTest {
         addRowAndAssertContents("16725.617");
     }
 
+    @Test
+    public void testFloatWithPrecisionAndScaleDropsTrailingZeros() {
+        this.infileDataBuffer.append(42f, 12, 3).append(0.5f, 12, 3).append(-0.25f, 12, 3).append(0f, 12, 3);
+        addRowAndAssertContents("42\t0.5\t-0.25\t0");
+    }
+
+    /**
+     * Verify that values exactly halfway between two representable decimals are rounded half-even, while values that only
+     * look like ties in decimal are rounded based on their exact binary value.
+     */
+    @Test
+    public void testDoubleWithPrecisionAndScaleRoundsHalfEven() {
+        this.infileDataBuffer.append(0.125, 10, 2).append(0.375, 10, 2).append(-2.5, 10, 1).append(1.005, 10, 2);
+        addRowAndAssertContents("0.12\t0.38\t-2.5\t1");
+    }
+
+    @Test
+    public void testBigDecimalWithPrecisionAndScale() {
+        this.infileDataBuffer.append(new BigDecimal("1234.5650"), 10, 2)
+                             .append(new BigDecimal("-0.001"), 10, 2)
+                             .append(new BigDecimal("12345678901234567890.5"), 30, 1);
+        addRowAndAssertContents("1234.56\t0\t12345678901234567890.5");
+    }
+
+    @Test
+    public void testNullDecimalsWithPrecisionAndScale() {
+        this.infileDataBuffer.append((Float) null, 12, 3).append((Double) null, 12, 3).append((BigDecimal) null, 12, 3);
+        addRowAndAssertContents("\\N\t\\N\t\\N");
+    }
+
+    /**
+     * Verify the fixed point formatting of doubles against {@link BigDecimal} for values of many magnitudes and scales.
+     */
+    @Test
+    public void testDoubleWithPrecisionAndScaleMatchesBigDecimal() {
+        this.infileDataBuffer = InfileDataBuffer.builder().withRowBufferSize(64 * 1024).build();
+        Random random = new Random(42);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            double value = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(20) - 4);
+            if (i % 3 == 0) {
+                // Land close to decimal ties
+                value = Math.round(value * 1000) / 1000.0 + 0.0005;
+            }
+            int scale = 1 + random.nextInt(14);
+            this.infileDataBuffer.append(value, 38, scale);
+
+            BigDecimal reference = new BigDecimal(value).setScale(scale, RoundingMode.HALF_EVEN);
+            expected.append(i > 0 ? "\t" : "")
+                    .append(reference.signum() == 0 ? "0" : reference.stripTrailingZeros().toPlainString());
+        }
+        addRowAndAssertContents(expected.toString());
+    }
+
     @Test
     public void testCreateWithDefaultParams() {
         InfileDataBuffer buffer = InfileDataBuffer.builder().build();
@@ -263,6 +470,123 @@ public class InfileDataBufferTest {
                 .build();
     }
 
+    @Test
+    public void testCreateWithDirectInfileBuffer() {
+        InfileDataBuffer buffer = InfileDataBuffer.builder().useDirectInfileBuffer(true).build();
+
+        assertTrue(buffer.isDirectInfileBuffer());
+        assertFalse(InfileDataBuffer.builder().build().isDirectInfileBuffer());
+    }
+
+    @Test
+    public void testDirectInfileBufferContents() {
+        this.infileDataBuffer = InfileDataBuffer.builder()
+                .withInfileBufferSize(1024)
+                .withRowBufferSize(256)
+                .useDirectInfileBuffer(true)
+                .build();
+
+        this.infileDataBuffer.newRow().append("first").append(1L);
+        this.infileDataBuffer.addRowToInfile();
+        this.infileDataBuffer.newRow().append("sec\tond").append(2L);
+        addRowAndAssertContents("first\t1\nsec\\\tond\t2");
+
+        this.infileDataBuffer.clear();
+        this.infileDataBuffer.newRow().append("third");
+        addRowAndAssertContents("third");
+    }
+
+    @Test
+    public void testInputStreamReadsRemainingBytes() throws IOException {
+        this.infileDataBuffer.append("abc");
+        this.infileDataBuffer.addRowToInfile();
+        InputStream inputStream = this.infileDataBuffer.asInputStream();
+
+        assertEquals(3, inputStream.available());
+        assertEquals('a', inputStream.read());
+        inputStream.mark(0);
+        assertEquals(1, inputStream.skip(1));
+        byte[] bytes = new byte[4];
+        assertEquals(1, inputStream.read(bytes, 0, bytes.length));
+        assertEquals('c', bytes[0]);
+        assertEquals(-1, inputStream.read());
+        assertEquals(-1, inputStream.read(bytes, 0, bytes.length));
+
+        inputStream.reset();
+        assertEquals('b', inputStream.read());
+    }
+
+    @Test
+    public void testChunkedInfileBufferSpansChunks() {
+        InfileChunkPool pool = new InfileChunkPool(4, 8);
+        this.infileDataBuffer = InfileDataBuffer.builder()
+                .withInfileBufferSize(30)
+                .withRowBufferSize(16)
+                .withChunkPool(pool)
+                .build();
+
+        this.infileDataBuffer.newRow().append("first row");
+        assertTrue(this.infileDataBuffer.addRowToInfile());
+        this.infileDataBuffer.newRow().append("second\\row").append(2L);
+        assertTrue(this.infileDataBuffer.addRowToInfile());
+        assertEquals(23, this.infileDataBuffer.getInfileSize());
+
+        this.infileDataBuffer.newRow().append("too long");
+        assertFalse(this.infileDataBuffer.addRowToInfile());
+        assertEquals("first row\nsecond\\\\row\t2", new String(readInfile(), Charsets.UTF_8));
+
+        this.infileDataBuffer.clear();
+        assertTrue(this.infileDataBuffer.isEmptyInfileBuffer());
+        assertEquals(6, pool.getPooledChunkCount());
+        assertTrue(this.infileDataBuffer.addRowToInfile());
+        assertEquals("too long", new String(readInfile(), Charsets.UTF_8));
+        assertEquals(4, pool.getPooledChunkCount());
+    }
+
+    @Test
+    public void testChunkPoolSharedBetweenBuffers() {
+        InfileChunkPool pool = new InfileChunkPool(8, 1);
+        InfileDataBuffer first = InfileDataBuffer.builder().withRowBufferSize(8).withChunkPool(pool).build();
+        InfileDataBuffer second = InfileDataBuffer.builder().withRowBufferSize(8).withChunkPool(pool).build();
+
+        first.newRow().append("first");
+        first.addRowToInfile();
+        first.clear();
+        assertEquals(1, pool.getPooledChunkCount());
+
+        second.newRow().append("second");
+        second.addRowToInfile();
+        assertEquals(0, pool.getPooledChunkCount());
+        assertTrue(first.isEmptyInfileBuffer());
+        assertFalse(second.isEmptyInfileBuffer());
+    }
+
+    @Test
+    public void testCreateWithChunkPoolAndDirectInfileBuffer() {
+        this.expectedException.expect(IllegalStateException.class);
+        this.expectedException.expectMessage("Direct chunks are configured on the chunk pool");
+
+        InfileDataBuffer.builder()
+                .withChunkPool(new InfileChunkPool(InfileChunkPool.DEFAULT_CHUNK_SIZE, 1))
+                .useDirectInfileBuffer(true)
+                .build();
+    }
+
+    @Test
+    public void testDirectInfileBufferLargerThanDirectMemoryLimit() {
+        long maxDirectMemory = InfileDataBuffer.maxDirectMemory();
+        assertTrue(maxDirectMemory > 0);
+        if (maxDirectMemory < Integer.MAX_VALUE) {
+            this.expectedException.expect(IllegalArgumentException.class);
+            this.expectedException.expectMessage("exceeds the direct memory limit");
+
+            InfileDataBuffer.builder()
+                    .withInfileBufferSize((int) maxDirectMemory + 1)
+                    .useDirectInfileBuffer(true)
+                    .build();
+        }
+    }
+
     @Test
     public void testIsEmptyInfileBuffer() {
         InfileDataBuffer buffer = InfileDataBuffer.builder().build();
@@ -291,10 +615,24 @@ public class InfileDataBufferTest {
         assertTrue(buffer.isEmptyInfileBuffer());
     }
 
+    private byte[] readInfile() {
+        try {
+            return ByteStreams.toByteArray(this.infileDataBuffer.asInputStream());
+        }
+        catch (IOException ex) {
+            throw Throwables.propagate(ex);
+        }
+    }
+
     private void addRowAndAssertContents(String expected) {
+        addRowAndAssertContents(expected, InfileDataBuffer.DEFAULT_CHARSET);
+    }
+
+    private void addRowAndAssertContents(String expected, Charset charset) {
         try {
             this.infileDataBuffer.addRowToInfile();
-            assertEquals(expected, CharStreams.toString(new InputStreamReader(this.infileDataBuffer.asInputStream())));
+            assertEquals(expected,
+                         CharStreams.toString(new InputStreamReader(this.infileDataBuffer.asInputStream(), charset)));
         }
         catch (IOException ex) {
             throw Throwables.propagate(ex);
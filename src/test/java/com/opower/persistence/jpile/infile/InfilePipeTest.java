@@ -0,0 +1,111 @@
+package com.opower.persistence.jpile.infile;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for {@link InfilePipe}
+ *
+ * @author agent
+ */
+public class InfilePipeTest {
+    private final InfileChunkPool pool = new InfileChunkPool(8, 16);
+
+    @Test
+    public void testReadsContentsUntilFinished() throws Exception {
+        final InfilePipe pipe = new InfilePipe(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<byte[]> read = executor.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    return ByteStreams.toByteArray(pipe);
+                }
+            });
+
+            for (int i = 0; i < 3; i++) {
+                assertTrue(pipe.send(newContents("row " + i), 1, TimeUnit.SECONDS));
+            }
+            assertTrue(pipe.finish(1, TimeUnit.SECONDS));
+
+            assertEquals("row 0\nrow 1\nrow 2\n", new String(read.get(1, TimeUnit.SECONDS), Charsets.UTF_8));
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSendWaitsForRoom() throws Exception {
+        InfilePipe pipe = new InfilePipe(1);
+        InfileContents contents = newContents("second");
+
+        assertTrue(pipe.send(newContents("first"), 0, TimeUnit.SECONDS));
+        assertFalse(pipe.send(contents, 10, TimeUnit.MILLISECONDS));
+        assertFalse(pipe.finish(10, TimeUnit.MILLISECONDS));
+        contents.release();
+    }
+
+    @Test
+    public void testCloseReleasesUnreadContents() throws Exception {
+        InfilePipe pipe = new InfilePipe(2);
+        pipe.send(newContents("first"), 0, TimeUnit.SECONDS);
+        pipe.send(newContents("second"), 0, TimeUnit.SECONDS);
+
+        pipe.close();
+
+        assertEquals(2, this.pool.getPooledChunkCount());
+        // Contents sent after closing are released right away, returning the chunk taken from the pool
+        assertTrue(pipe.send(newContents("third"), 0, TimeUnit.SECONDS));
+        assertEquals(2, this.pool.getPooledChunkCount());
+        assertEquals(-1, pipe.read());
+    }
+
+    /**
+     * Verify that contents offered while the pipe is being closed are released.
+     */
+    @Test
+    public void testCloseWhileSending() throws Exception {
+        final InfilePipe pipe = new InfilePipe(1);
+        pipe.send(newContents("first"), 0, TimeUnit.SECONDS);
+        final InfileContents second = newContents("second");
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    pipe.send(second, 10, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    second.release();
+                }
+            }
+        };
+        producer.start();
+        while (producer.getState() != Thread.State.TIMED_WAITING) {
+            Thread.sleep(1);
+        }
+
+        pipe.close();
+        producer.join();
+
+        assertEquals(2, this.pool.getPooledChunkCount());
+    }
+
+    private InfileContents newContents(String row) {
+        InfileDataBuffer buffer = InfileDataBuffer.builder().withRowBufferSize(8).withChunkPool(this.pool).build();
+        buffer.newRow().append(row);
+        buffer.addRowToInfile();
+        return buffer.detachInfile();
+    }
+}
@@ -0,0 +1,63 @@
+package com.opower.persistence.jpile.infile;
+
+import com.mysql.jdbc.Statement;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.sql.SQLException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests running a load with {@link InfileStatementCallback}.
+ *
+ * @author agent
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class InfileStatementCallbackTest {
+    private static final String SQL = "LOAD DATA LOCAL INFILE 'stream' INTO TABLE test";
+
+    @Mock
+    private Statement statement;
+
+    private final InputStream inputStream = new ByteArrayInputStream(new byte[0]);
+
+    @Test
+    public void testInputStreamRemovedAfterLoad() throws Exception {
+        assertTrue(new InfileStatementCallback(SQL, this.inputStream).doInStatement(this.statement).isEmpty());
+
+        verify(this.statement).setLocalInfileInputStream(this.inputStream);
+        verify(this.statement).execute(SQL);
+        verify(this.statement).setLocalInfileInputStream(null);
+    }
+
+    /**
+     * Verify that a failure to remove the input stream does not hide the failure of the load.
+     */
+    @Test
+    public void testLoadFailureNotHiddenByReset() throws Exception {
+        SQLException loadFailure = new SQLException("Load failed");
+        RuntimeException resetFailure = new IllegalStateException("Statement closed");
+        when(this.statement.execute(SQL)).thenThrow(loadFailure);
+        doThrow(resetFailure).when(this.statement).setLocalInfileInputStream(null);
+
+        try {
+            new InfileStatementCallback(SQL, this.inputStream).doInStatement(this.statement);
+            fail("Expected the load to fail");
+        }
+        catch (SQLException e) {
+            assertSame(loadFailure, e);
+            assertArrayEquals(new Throwable[]{resetFailure}, e.getSuppressed());
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.opower.persistence.jpile.infile.events;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.eventbus.EventBus;
+import com.google.common.eventbus.Subscribe;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+/**
+ * Tests dispatching events to typed listeners and to the event bus.
+ *
+ * @author agent
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class LoadEventDispatcherTest {
+    @Mock
+    EventBus eventBus;
+
+    @Mock
+    LoadListener listener;
+
+    private final Object source = new Object();
+    private LoadEventDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        this.dispatcher = new LoadEventDispatcher(this.eventBus);
+    }
+
+    /**
+     * Verify that nothing is posted to the event bus until something subscribes to it.
+     */
+    @Test
+    public void testNoSubscribers() {
+        assertFalse(this.dispatcher.hasListeners());
+        this.dispatcher.fireBeforeSave(this.source, "entity");
+        this.dispatcher.fireAfterFlush(this.source, String.class, "table", 1, 2);
+        verifyZeroInteractions(this.eventBus);
+
+        Object subscriber = new Object();
+        this.dispatcher.subscribe(subscriber);
+        assertTrue(this.dispatcher.hasListeners());
+        this.dispatcher.fireBeforeSave(this.source, "entity");
+
+        verify(this.eventBus).register(subscriber);
+        ArgumentCaptor<SaveEntityEvent> event = ArgumentCaptor.forClass(SaveEntityEvent.class);
+        verify(this.eventBus).post(event.capture());
+        assertSame(this.source, event.getValue().getSource());
+        assertEquals(EventFirePoint.BEFORE, event.getValue().getFirePoint());
+        assertEquals("entity", event.getValue().getEntity());
+    }
+
+    @Test
+    public void testSetEventBus() {
+        EventBus otherEventBus = new EventBus();
+        this.dispatcher.setEventBus(otherEventBus);
+        assertTrue("The new event bus may have subscribers", this.dispatcher.hasListeners());
+    }
+
+    @Test
+    public void testListeners() {
+        this.dispatcher.addListener(this.listener);
+        assertTrue(this.dispatcher.hasListeners());
+
+        List<Object> batch = ImmutableList.<Object>of("entity");
+        this.dispatcher.fireBeforeSave(this.source, "entity");
+        this.dispatcher.fireAfterSave(this.source, "entity");
+        this.dispatcher.fireBeforeFlush(this.source, String.class, "table", 10);
+        this.dispatcher.fireAfterFlush(this.source, String.class, "table", 10, 25);
+        this.dispatcher.fireAfterBatch(this.source, batch);
+
+        verify(this.listener).beforeSave("entity");
+        verify(this.listener).afterSave("entity");
+        verify(this.listener).beforeFlush(String.class, "table");
+        verify(this.listener).afterFlush(String.class, "table", 15);
+        verify(this.listener).afterBatch(batch);
+        verify(this.eventBus, never()).post(any());
+
+        this.dispatcher.removeListener(this.listener);
+        assertFalse(this.dispatcher.hasListeners());
+        this.dispatcher.fireAfterSave(this.source, "other");
+        verify(this.listener, never()).afterSave("other");
+    }
+
+    @Test
+    public void testBatchEvent() {
+        Object subscriber = new BatchSubscriber();
+        this.dispatcher.subscribe(subscriber);
+        assertTrue(this.dispatcher.hasBatchListeners());
+        List<Object> batch = ImmutableList.<Object>of("entity");
+        this.dispatcher.fireAfterBatch(this.source, batch);
+
+        ArgumentCaptor<BatchEvent> event = ArgumentCaptor.forClass(BatchEvent.class);
+        verify(this.eventBus).post(event.capture());
+        assertSame(batch, event.getValue().getEntities());
+        assertEquals(EventFirePoint.AFTER, event.getValue().getFirePoint());
+
+        this.dispatcher.unsubscribe(subscriber);
+        assertFalse(this.dispatcher.hasBatchListeners());
+    }
+
+    /**
+     * Verify that saved entities are only wanted by listeners implementing afterBatch and subscribers of batch events.
+     */
+    @Test
+    public void testNoBatchListeners() {
+        this.dispatcher.subscribe(new Object());
+        this.dispatcher.addListener(new LoadListenerAdapter() {
+            @Override
+            public void afterSave(Object entity) {
+            }
+        });
+        assertTrue(this.dispatcher.hasListeners());
+        assertFalse(this.dispatcher.hasBatchListeners());
+
+        this.dispatcher.fireAfterBatch(this.source, ImmutableList.<Object>of("entity"));
+        verify(this.eventBus, never()).post(any());
+
+        this.dispatcher.addListener(this.listener);
+        assertTrue(this.dispatcher.hasBatchListeners());
+        this.dispatcher.removeListener(this.listener);
+        assertFalse(this.dispatcher.hasBatchListeners());
+    }
+
+    /**
+     * Subscribes to batch events.
+     */
+    public static class BatchSubscriber {
+        @Subscribe
+        public void onBatch(BatchEvent event) {
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.opower.persistence.jpile.jdbc;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests reusing a statement across callbacks.
+ *
+ * @author agent
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class ConnectionBasedStatementExecutorTest {
+    private static final StatementCallback<Statement> GET_STATEMENT = new StatementCallback<Statement>() {
+        @Override
+        public Statement doInStatement(Statement statement) {
+            return statement;
+        }
+    };
+
+    @Mock
+    Connection connection;
+
+    private Statement firstStatement = mock(Statement.class);
+    private Statement secondStatement = mock(Statement.class);
+    private ConnectionBasedStatementExecutor executor;
+
+    @Before
+    public void setUp() throws Exception {
+        when(this.connection.createStatement()).thenReturn(this.firstStatement, this.secondStatement);
+        this.executor = new ConnectionBasedStatementExecutor(this.connection);
+    }
+
+    @Test
+    public void testStatementIsReused() throws Exception {
+        assertSame(this.firstStatement, this.executor.execute(GET_STATEMENT));
+        assertSame(this.firstStatement, this.executor.execute(GET_STATEMENT));
+
+        verify(this.connection, times(1)).createStatement();
+        verify(this.firstStatement, never()).close();
+
+        this.executor.shutdown();
+        verify(this.firstStatement).execute("SET FOREIGN_KEY_CHECKS = 1");
+        verify(this.firstStatement).close();
+    }
+
+    /**
+     * Verify that a callback running while another one holds the statement gets a new one, which is closed afterwards.
+     */
+    @Test
+    public void testNestedCallbackGetsOwnStatement() throws Exception {
+        Statement nested = this.executor.execute(new StatementCallback<Statement>() {
+            @Override
+            public Statement doInStatement(Statement statement) {
+                return executor.execute(GET_STATEMENT);
+            }
+        });
+
+        assertNotSame(this.firstStatement, nested);
+        verify(this.secondStatement, never()).close();
+        verify(this.firstStatement).close();
+        assertSame(this.secondStatement, this.executor.execute(GET_STATEMENT));
+    }
+
+    @Test
+    public void testStatementIsClosedOnFailure() throws Exception {
+        try {
+            this.executor.execute(new StatementCallback<Void>() {
+                @Override
+                public Void doInStatement(Statement statement) throws SQLException {
+                    throw new SQLException("Query failed");
+                }
+            });
+            fail("Expected the exception of the callback");
+        }
+        catch (RuntimeException e) {
+            verify(this.firstStatement).close();
+        }
+        assertSame(this.secondStatement, this.executor.execute(GET_STATEMENT));
+    }
+
+    /**
+     * Verify that foreign key checks are left alone if the executor is not to disable them.
+     */
+    @Test
+    public void testForeignKeysLeftEnabled() throws Exception {
+        Connection otherConnection = mock(Connection.class);
+        Statement statement = mock(Statement.class);
+        when(otherConnection.createStatement()).thenReturn(statement);
+
+        ConnectionBasedStatementExecutor foreignKeyCheckingExecutor =
+                new ConnectionBasedStatementExecutor(otherConnection, false);
+        assertSame(statement, foreignKeyCheckingExecutor.execute(GET_STATEMENT));
+        foreignKeyCheckingExecutor.shutdown();
+
+        verify(statement, never()).execute(anyString());
+        verify(statement).close();
+    }
+}
@@ -0,0 +1,175 @@
+package com.opower.persistence.jpile.jdbc;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests running callbacks on a pool of connections.
+ *
+ * @author agent
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class PooledStatementExecutorTest {
+    private static final int POOL_SIZE = 3;
+
+    @Mock
+    DataSource dataSource;
+
+    private Connection[] connections = new Connection[POOL_SIZE];
+    private Statement[] statements = new Statement[POOL_SIZE];
+    private PooledStatementExecutor executor;
+
+    @Before
+    public void setUp() throws Exception {
+        for (int i = 0; i < POOL_SIZE; i++) {
+            this.connections[i] = mock(Connection.class);
+            this.statements[i] = mock(Statement.class);
+            when(this.connections[i].createStatement()).thenReturn(this.statements[i]);
+        }
+        when(this.dataSource.getConnection()).thenReturn(this.connections[0], this.connections[1], this.connections[2]);
+        this.executor = new PooledStatementExecutor(this.dataSource, POOL_SIZE);
+    }
+
+    /**
+     * Verify that callbacks running at the same time get a connection each, and that no more connections are opened than
+     * the pool size.
+     */
+    @Test
+    public void testConcurrentCallbacks() throws Exception {
+        Set<Statement> usedStatements = runConcurrently(POOL_SIZE * 2);
+
+        assertEquals(POOL_SIZE, usedStatements.size());
+        assertEquals(POOL_SIZE, this.executor.getConnectionCount());
+        for (Statement statement : this.statements) {
+            verify(statement).execute("SET FOREIGN_KEY_CHECKS = 0");
+        }
+    }
+
+    @Test
+    public void testShutdown() throws Exception {
+        this.executor.execute(ToggleForeignKeysStatementCallback.DISABLE_FOREIGN_KEYS);
+        this.executor.shutdown();
+
+        verify(this.statements[0]).execute("SET FOREIGN_KEY_CHECKS = 1");
+        verify(this.connections[0]).close();
+        assertEquals(0, this.executor.getConnectionCount());
+    }
+
+    /**
+     * Verify that a connection is closed when foreign keys cannot be disabled on it.
+     */
+    @Test
+    public void testConnectionClosedWhenInitFails() throws Exception {
+        SQLException failure = new SQLException("Access denied");
+        when(this.statements[0].execute("SET FOREIGN_KEY_CHECKS = 0")).thenThrow(failure);
+        try {
+            this.executor.execute(ToggleForeignKeysStatementCallback.DISABLE_FOREIGN_KEYS);
+            fail("Expected the connection to fail");
+        }
+        catch (RuntimeException e) {
+            assertSame(failure, e.getCause());
+        }
+
+        verify(this.connections[0]).close();
+        assertEquals(0, this.executor.getConnectionCount());
+    }
+
+    /**
+     * Verify that all connections are closed even if foreign keys cannot be re-enabled on one of them.
+     */
+    @Test
+    public void testShutdownClosesAllConnectionsAfterFailure() throws Exception {
+        runConcurrently(POOL_SIZE);
+        SQLException failure = new SQLException("Connection reset");
+        when(this.statements[0].execute("SET FOREIGN_KEY_CHECKS = 1")).thenThrow(failure);
+        try {
+            this.executor.shutdown();
+            fail("Expected the shutdown to fail");
+        }
+        catch (RuntimeException e) {
+            assertSame(failure, e.getCause());
+        }
+
+        for (Connection connection : this.connections) {
+            verify(connection).close();
+        }
+        assertEquals(0, this.executor.getConnectionCount());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testExecuteAfterShutdown() throws Exception {
+        this.executor.shutdown();
+        this.executor.execute(ToggleForeignKeysStatementCallback.DISABLE_FOREIGN_KEYS);
+    }
+
+    /**
+     * Runs callbacks on separate threads, holding on to their connection until as many callbacks as the pool size are
+     * running at the same time.
+     *
+     * @return the statements the callbacks ran on
+     */
+    private Set<Statement> runConcurrently(int callbacks) throws Exception {
+        final CountDownLatch allRunning = new CountDownLatch(POOL_SIZE);
+        final Set<Statement> usedStatements = Collections.newSetFromMap(new IdentityHashMap<Statement, Boolean>());
+        final StatementCallback<Boolean> callback = new StatementCallback<Boolean>() {
+            @Override
+            public Boolean doInStatement(Statement statement) throws SQLException {
+                synchronized (usedStatements) {
+                    usedStatements.add(statement);
+                }
+                allRunning.countDown();
+                try {
+                    return allRunning.await(10, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    throw new SQLException(e);
+                }
+            }
+        };
+
+        ExecutorService threads = Executors.newFixedThreadPool(callbacks);
+        try {
+            Future<?>[] futures = new Future<?>[callbacks];
+            for (int i = 0; i < futures.length; i++) {
+                futures[i] = threads.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return executor.execute(callback);
+                    }
+                });
+            }
+            for (Future<?> future : futures) {
+                assertTrue((Boolean) future.get());
+            }
+        }
+        finally {
+            threads.shutdown();
+        }
+        return usedStatements;
+    }
+}
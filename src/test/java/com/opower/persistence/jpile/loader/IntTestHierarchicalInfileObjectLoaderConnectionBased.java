@@ -9,6 +9,7 @@ import com.google.common.eventbus.Subscribe;
 import com.opower.persistence.jpile.AbstractIntTestForJPile;
 import com.opower.persistence.jpile.infile.events.EventFirePoint;
 import com.opower.persistence.jpile.infile.events.FlushEvent;
+import com.opower.persistence.jpile.infile.events.LoadListener;
 import com.opower.persistence.jpile.infile.events.SaveEntityEvent;
 import com.opower.persistence.jpile.sample.Contact;
 import com.opower.persistence.jpile.sample.Customer;
@@ -24,17 +25,28 @@ import org.springframework.jdbc.core.RowMapper;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
+import static com.opower.persistence.jpile.util.JdbcTestUtil.openNewConnection;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -154,12 +166,154 @@ public class IntTestHierarchicalInfileObjectLoaderConnectionBased extends Abstra
         }
     }
 
+    /**
+     * Verify that buffered data stays within the memory budget and that every row still makes it to the database.
+     */
+    @Test
+    public void testMemoryBudget() {
+        long memoryBudget = 4096;
+        this.hierarchicalInfileObjectLoader.setMemoryBudget(memoryBudget);
+
+        for (int i = 0; i < 100; i++) {
+            this.hierarchicalInfileObjectLoader.persist(ObjectFactory.newCustomer());
+            assertTrue(this.hierarchicalInfileObjectLoader.getBufferedBytes() <= memoryBudget);
+        }
+
+        Map<String, Integer> bufferedBytesByTable = this.hierarchicalInfileObjectLoader.getBufferedBytesByTable();
+        assertTrue(bufferedBytesByTable.containsKey("customer"));
+        long totalBufferedBytes = 0;
+        for (int bufferedBytes : bufferedBytesByTable.values()) {
+            totalBufferedBytes += bufferedBytes;
+        }
+        assertEquals(this.hierarchicalInfileObjectLoader.getBufferedBytes(), totalBufferedBytes);
+
+        this.hierarchicalInfileObjectLoader.flush();
+        assertEquals(0, this.hierarchicalInfileObjectLoader.getBufferedBytes());
+        assertEquals(Integer.valueOf(100), this.jdbcTemplate.queryForObject("select count(*) from customer", Integer.class));
+    }
+
+    /**
+     * Verify that customers persisted by several workers all make it to the database with distinct ids.
+     */
+    @Test
+    public void testParallelPersist() throws Exception {
+        List<Customer> customers = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            customers.add(ObjectFactory.newCustomer());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            this.hierarchicalInfileObjectLoader.persist(customers, executor, 4);
+        }
+        finally {
+            executor.shutdown();
+        }
+        this.hierarchicalInfileObjectLoader.flush();
+
+        Set<Long> ids = new HashSet<>();
+        for (Customer customer : customers) {
+            ids.add(customer.getId());
+        }
+        assertEquals(customers.size(), ids.size());
+        assertEquals(Integer.valueOf(customers.size()),
+                     this.jdbcTemplate.queryForObject("select count(*) from customer", Integer.class));
+    }
+
+    /**
+     * Verify that customers persisted by several threads calling persist() at once all make it to the database with
+     * distinct ids.
+     */
+    @Test
+    public void testConcurrentPersist() throws Exception {
+        this.hierarchicalInfileObjectLoader.setConcurrentPersist(4);
+        final List<Customer> customers = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            customers.add(ObjectFactory.newCustomer());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (final Customer customer : customers) {
+                futures.add(executor.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        hierarchicalInfileObjectLoader.persist(customer);
+                    }
+                }));
+                if (futures.size() == 250) {
+                    // Flushing while other threads persist
+                    this.hierarchicalInfileObjectLoader.flush();
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+        this.hierarchicalInfileObjectLoader.flush();
+
+        Set<Long> ids = new HashSet<>();
+        for (Customer customer : customers) {
+            ids.add(customer.getId());
+        }
+        assertEquals(customers.size(), ids.size());
+        assertEquals(Integer.valueOf(customers.size()),
+                     this.jdbcTemplate.queryForObject("select count(*) from customer", Integer.class));
+        assertEquals(Integer.valueOf(customers.size() * 4),
+                     this.jdbcTemplate.queryForObject("select count(*) from product", Integer.class));
+    }
+
+    /**
+     * Verify that rows are loaded with foreign key checks enabled, as tables are flushed after the tables they refer to,
+     * also when the memory budget makes them flush early.
+     */
+    @Test
+    public void testForeignKeyChecks() throws Exception {
+        this.jdbcTemplate.update("alter table contact add constraint fk_contact_customer foreign key (customer_id) "
+                                 + "references customer (id)");
+        Connection foreignKeyCheckingConnection = openNewConnection();
+        HierarchicalInfileObjectLoader objectLoader = new HierarchicalInfileObjectLoader();
+        try {
+            objectLoader.setForeignKeyChecks(true);
+            objectLoader.setConnection(foreignKeyCheckingConnection);
+            objectLoader.setMemoryBudget(4096);
+            for (int i = 0; i < 100; i++) {
+                objectLoader.persist(ObjectFactory.newCustomer());
+            }
+            objectLoader.close();
+
+            assertEquals(Integer.valueOf(100), this.jdbcTemplate.queryForObject("select count(*) from contact", Integer.class));
+        }
+        finally {
+            foreignKeyCheckingConnection.close();
+            this.jdbcTemplate.update("alter table contact drop foreign key fk_contact_customer");
+        }
+    }
+
     @Test
     public void testBinaryDataToHex() throws NoSuchAlgorithmException {
         String string = "Data to be inserted";
         byte[] md5 = toMd5(string);
+        assertBinaryDataRoundTrip(string, md5);
+    }
+
+    /**
+     * Verify that binary data, including every byte that needs escaping, survives the raw binary transfer mode.
+     */
+    @Test
+    public void testRawBinaryData() {
+        this.hierarchicalInfileObjectLoader.setUseRawBinary(true);
+        byte[] md5 = {0, '\b', '\n', '\r', '\t', '\\', 26, 'N', (byte) 0x80, (byte) 0xFF, 1, 2, 3, 4, 5, 6};
+        assertBinaryDataRoundTrip("Raw data to be inserted", md5);
+    }
+
+    private void assertBinaryDataRoundTrip(String name, byte[] md5) {
         Data data = new Data();
-        data.setName(string);
+        data.setName(name);
         data.setMd5(md5);
 
         this.hierarchicalInfileObjectLoader.persist(data);
@@ -176,6 +330,7 @@ public class IntTestHierarchicalInfileObjectLoaderConnectionBased extends Abstra
             }
         });
 
+        assertEquals(name, actual.getName());
         assertTrue(Arrays.equals(md5, actual.getMd5()));
     }
 
@@ -200,6 +355,22 @@ public class IntTestHierarchicalInfileObjectLoaderConnectionBased extends Abstra
         assertNull(customer.getId());
     }
 
+    /**
+     * Verify that classes ignored after objects of the class have been persisted are ignored from then on.
+     */
+    @Test
+    public void testIgnoredClassesAfterPersist() {
+        Customer customer = ObjectFactory.newCustomer();
+        this.hierarchicalInfileObjectLoader.persist(customer);
+        assertNotNull(customer.getId());
+
+        this.hierarchicalInfileObjectLoader.setIgnoredClasses(ImmutableSet.<Class<?>>of(Customer.class));
+        Customer ignoredCustomer = ObjectFactory.newCustomer();
+        this.hierarchicalInfileObjectLoader.persist(ignoredCustomer);
+
+        assertNull(ignoredCustomer.getId());
+    }
+
     @Test
     @SuppressWarnings("deprecation")
     public void testEventCallback() {
@@ -356,6 +527,36 @@ public class IntTestHierarchicalInfileObjectLoaderConnectionBased extends Abstra
 
     }
 
+    /**
+     * Verify that typed listeners get the same events as subscribers, plus all saved entities of a batch at once.
+     */
+    @Test
+    public void testLoadListener() {
+        Customer customer = ObjectFactory.newCustomer();
+        LoadListener listener = mock(LoadListener.class);
+        this.hierarchicalInfileObjectLoader.addListener(listener);
+        this.hierarchicalInfileObjectLoader.persist(customer);
+        this.hierarchicalInfileObjectLoader.flush();
+
+        final int expectedNumberOfSavedEntities = 7;
+        verify(listener, times(expectedNumberOfSavedEntities)).beforeSave(any());
+        verify(listener, times(expectedNumberOfSavedEntities)).afterSave(any());
+        verify(listener).afterSave(customer);
+        final int expectedNumberOfFlushes = 5;
+        verify(listener, times(expectedNumberOfFlushes)).beforeFlush(any(Class.class), anyString());
+        verify(listener, times(expectedNumberOfFlushes)).afterFlush(any(Class.class), anyString(), anyLong());
+
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<List<Object>> batch = (ArgumentCaptor) ArgumentCaptor.forClass(List.class);
+        verify(listener).afterBatch(batch.capture());
+        assertEquals(expectedNumberOfSavedEntities, batch.getValue().size());
+        assertTrue(batch.getValue().contains(customer));
+
+        this.hierarchicalInfileObjectLoader.removeListener(listener);
+        this.hierarchicalInfileObjectLoader.persist(ObjectFactory.newCustomer());
+        verify(listener, times(expectedNumberOfSavedEntities)).beforeSave(any());
+    }
+
     /**
      * Tests that number of events isn't doubled
      * if {@link HierarchicalInfileObjectLoader#subscribe(Object)} listener few times.
@@ -4,29 +4,69 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.EventBus;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.CharStreams;
 import com.mysql.jdbc.Statement;
 import com.opower.persistence.jpile.infile.InfileDataBuffer;
 import com.opower.persistence.jpile.jdbc.ConnectionBasedStatementExecutor;
+import com.opower.persistence.jpile.jdbc.StatementExecutor;
+import com.opower.persistence.jpile.loader.flush.FlushPolicy;
+import com.opower.persistence.jpile.loader.id.CountingIdAllocator;
+import com.opower.persistence.jpile.loader.id.IdAllocator;
+import com.opower.persistence.jpile.loader.id.IdAllocatorFactory;
 import com.opower.persistence.jpile.reflection.PersistenceAnnotationInspector;
+import com.opower.persistence.jpile.sample.Contact;
 import com.opower.persistence.jpile.sample.Customer;
+import com.opower.persistence.jpile.sample.Data;
+import com.opower.persistence.jpile.sample.ObjectFactory;
+import com.opower.persistence.jpile.sample.Product;
+import com.opower.persistence.jpile.sample.Shipment;
+import com.opower.persistence.jpile.sample.Supplier;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
+import javax.persistence.Column;
 import javax.persistence.EnumType;
 import javax.persistence.Enumerated;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.lang.reflect.Method;
 import java.sql.Connection;
 import java.sql.ResultSet;
-
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isA;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -74,6 +114,13 @@ public class SingleInfileObjectLoaderBuilderTest {
         assertEquals(ImmutableList.of(), objectLoader.getWarnings());
         assertTrue(objectLoader.isAutoGenerateId());
         assertEquals(objectLoader.getAutoGeneratedId(), AUTO_GENERATED_ID.longValue());
+        Map<String, TemporalType> temporalTypes = new LinkedHashMap<>();
+        for (InfileColumn column : objectLoader.getColumns()) {
+            if (column.getTemporalType() != null) {
+                temporalTypes.put(column.getName(), column.getTemporalType());
+            }
+        }
+        assertEquals(ImmutableMap.of("last_seen_on", TemporalType.TIMESTAMP), temporalTypes);
     }
 
     @Test
@@ -93,11 +140,9 @@ public class SingleInfileObjectLoaderBuilderTest {
         objectLoader.flush();
 
         /*
-         * 1. Disable foreign keys
-         * 2. Find maxId
-         * 3. Flush
+         * One statement is reused to disable foreign keys, find maxId and flush
          */
-        verify(connection, times(3)).createStatement();
+        verify(connection, times(1)).createStatement();
 
         /*
          * Find maxId use executeQuery instead of execute
@@ -113,10 +158,9 @@ public class SingleInfileObjectLoaderBuilderTest {
         objectLoader.flush();
 
         /*
-         * 1. Disable foreign keys
-         * 2. Find maxId
+         * One statement is reused to disable foreign keys and find maxId
          */
-        verify(connection, times(2)).createStatement();
+        verify(connection, times(1)).createStatement();
 
         /*
          * Find maxId use executeQuery instead of execute
@@ -124,6 +168,363 @@ public class SingleInfileObjectLoaderBuilderTest {
         verify(statement, times(1)).execute(anyString());
     }
 
+    /**
+     * Verify that {@code byte[]} columns are hex encoded and unhexed by the server by default.
+     */
+    @Test
+    public void testBinaryColumnsAreHexEncodedByDefault() throws Exception {
+        SingleInfileObjectLoader<Data> dataLoader = newDataLoaderBuilder().build();
+
+        assertEquals("LOAD DATA LOCAL INFILE 'stream' INTO TABLE binary_data (id,@hexmd5,name) SET md5=unhex(@hexmd5)",
+                     dataLoader.getLoadInfileSql());
+
+        dataLoader.add(newData(new byte[]{9, (byte) 0xFF}));
+        assertEquals("124\t09ff\tname",
+                     CharStreams.toString(new InputStreamReader(dataLoader.getInfileDataBuffer().asInputStream())));
+    }
+
+    /**
+     * Verify that {@code byte[]} columns are sent as escaped raw bytes in raw binary mode.
+     */
+    @Test
+    public void testBinaryColumnsInRawBinaryMode() throws Exception {
+        SingleInfileObjectLoader<Data> dataLoader = newDataLoaderBuilder().useRawBinary(true).build();
+
+        assertEquals("LOAD DATA LOCAL INFILE 'stream' INTO TABLE binary_data CHARACTER SET binary (id,md5,name) ",
+                     dataLoader.getLoadInfileSql());
+
+        dataLoader.add(newData(new byte[]{9, (byte) 0xFF}));
+        assertArrayEquals(new byte[]{'1', '2', '4', '\t', '\\', 9, (byte) 0xFF, '\t', 'n', 'a', 'm', 'e'},
+                          ByteStreams.toByteArray(dataLoader.getInfileDataBuffer().asInputStream()));
+    }
+
+    /**
+     * Verify that full buffers are sent on the flush executor and that every row is sent once, in order.
+     */
+    @Test
+    public void testAsyncFlush() throws Exception {
+        List<String> sentContents = captureSentContents();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            SingleInfileObjectLoader<Data> dataLoader = newDataLoaderBuilder()
+                    .withBuffer(InfileDataBuffer.builder().withInfileBufferSize(32).withRowBufferSize(32).build())
+                    .withAsyncFlush(executor, 2)
+                    .build();
+
+            for (int i = 0; i < 5; i++) {
+                dataLoader.add(newData(new byte[]{(byte) i}));
+            }
+            dataLoader.flush();
+
+            assertEquals(ImmutableList.of("124\t00\tname\n125\t01\tname\n",
+                                          "126\t02\tname\n127\t03\tname\n",
+                                          "128\t04\tname\n"), sentContents);
+            assertTrue(dataLoader.getInfileDataBuffer().isEmptyInfileBuffer());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Verify that full buffers are streamed into a single statement until the loader is flushed.
+     */
+    @Test
+    public void testStreamingLoad() throws Exception {
+        List<String> sentContents = captureSentContents();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            SingleInfileObjectLoader<Data> dataLoader = newDataLoaderBuilder()
+                    .withBuffer(InfileDataBuffer.builder().withInfileBufferSize(32).withRowBufferSize(32).build())
+                    .withStreamingLoad(executor, 1)
+                    .build();
+
+            for (int i = 0; i < 5; i++) {
+                dataLoader.add(newData(new byte[]{(byte) i}));
+            }
+            dataLoader.flush();
+            dataLoader.add(newData(new byte[]{(byte) 5}));
+            dataLoader.flush();
+
+            assertEquals(ImmutableList.of("124\t00\tname\n125\t01\tname\n126\t02\tname\n127\t03\tname\n128\t04\tname\n",
+                                          "129\t05\tname\n"), sentContents);
+            verify(statement, times(2)).execute(dataLoader.getLoadInfileSql());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Verify that an exception thrown while sending asynchronously is rethrown to the caller on flush.
+     */
+    @Test
+    public void testAsyncFlushFailure() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            SingleInfileObjectLoader<Data> dataLoader = newDataLoaderBuilder().withAsyncFlush(executor, 1).build();
+            SQLException failure = new SQLException("Load failed");
+            when(statement.execute(dataLoader.getLoadInfileSql())).thenThrow(failure);
+
+            dataLoader.add(newData(new byte[]{1}));
+            try {
+                dataLoader.flush();
+                fail("Expected the sender's exception to be rethrown");
+            }
+            catch (RuntimeException e) {
+                assertSame(failure, e.getCause());
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Verify that rows are sent on the calling thread when the flush executor rejects the flush, so none are lost.
+     */
+    @Test
+    public void testAsyncFlushRejected() throws Exception {
+        List<String> sentContents = captureSentContents();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        executor.shutdown();
+        SingleInfileObjectLoader<Data> dataLoader = newDataLoaderBuilder()
+                .withBuffer(InfileDataBuffer.builder().withInfileBufferSize(32).withRowBufferSize(32).build())
+                .withAsyncFlush(executor, 1)
+                .build();
+
+        for (int i = 0; i < 3; i++) {
+            dataLoader.add(newData(new byte[]{(byte) i}));
+        }
+        dataLoader.flush();
+
+        assertEquals(ImmutableList.of("124\t00\tname\n125\t01\tname\n", "126\t02\tname\n"), sentContents);
+        assertTrue(dataLoader.getInfileDataBuffer().isEmptyInfileBuffer());
+    }
+
+    /**
+     * Verify that the flush policy flushes the buffer before it is full and is told about every flush.
+     */
+    @Test
+    public void testFlushPolicy() throws Exception {
+        List<String> sentContents = captureSentContents();
+        FlushPolicy flushPolicy = mock(FlushPolicy.class);
+        when(flushPolicy.forLoader()).thenReturn(flushPolicy);
+        when(flushPolicy.shouldFlush(eq(2), anyInt(), anyLong())).thenReturn(true);
+
+        SingleInfileObjectLoader<Data> dataLoader = newDataLoaderBuilder().withFlushPolicy(flushPolicy).build();
+        for (int i = 0; i < 3; i++) {
+            dataLoader.add(newData(new byte[]{(byte) i}));
+        }
+        assertEquals(ImmutableList.of("124\t00\tname\n125\t01\tname"), sentContents);
+        verify(flushPolicy).flushed(eq(2), eq(23), anyLong());
+
+        assertFalse(dataLoader.flushIfDue());
+        when(flushPolicy.shouldFlush(eq(1), anyInt(), anyLong())).thenReturn(true);
+        assertTrue(dataLoader.flushIfDue());
+        assertEquals(ImmutableList.of("124\t00\tname\n125\t01\tname", "126\t02\tname"), sentContents);
+        assertTrue(dataLoader.getInfileDataBuffer().isEmptyInfileBuffer());
+    }
+
+    /**
+     * Verify that the columns of a loader are resolved from the declared types and annotations of their getters.
+     */
+    @Test
+    public void testBuildingColumns() throws Exception {
+        SingleInfileObjectLoader<Product> productLoader = newLoaderBuilder(Product.class).build();
+
+        Map<String, InfileColumn.Type> types = new LinkedHashMap<>();
+        for (InfileColumn column : productLoader.getColumns()) {
+            types.put(column.getName(), column.getType());
+        }
+        assertEquals(ImmutableMap.builder()
+                             .put("customer_id", InfileColumn.Type.ENTITY)
+                             .put("description", InfileColumn.Type.STRING)
+                             .put("id", InfileColumn.Type.LONG)
+                             .put("packaging", InfileColumn.Type.ENUM)
+                             .put("price", InfileColumn.Type.BIG_DECIMAL)
+                             .put("purchased_on", InfileColumn.Type.DATE)
+                             .put("supplier_id", InfileColumn.Type.ENTITY)
+                             .put("title", InfileColumn.Type.STRING)
+                             .build(),
+                     types);
+
+        InfileColumn customerColumn = productLoader.getColumns().get(0);
+        assertEquals(Customer.class.getMethod("getId"), customerColumn.getReferencedId().getGetter());
+        InfileColumn purchasedOnColumn = productLoader.getColumns().get(5);
+        assertEquals(TemporalType.TIMESTAMP, purchasedOnColumn.getTemporalType());
+        InfileColumn packagingColumn = productLoader.getColumns().get(3);
+        assertFalse(packagingColumn.isEnumName());
+    }
+
+    /**
+     * Verify that generated row writers write the same rows as the reflective conversion, including embedded columns and
+     * references to other entities.
+     */
+    @Test
+    public void testGeneratedRowWriter() throws Exception {
+        Customer customer = ObjectFactory.newCustomer();
+        customer.setId(1L);
+        Supplier supplier = ObjectFactory.newSupplier();
+        supplier.setId(2L);
+        Product product = ObjectFactory.newProduct(customer, supplier);
+        product.setId(3L);
+        Contact contact = ObjectFactory.newContact();
+        contact.getContactPK().setCustomer(customer);
+        contact.setType(null);
+
+        assertGeneratedRowMatchesReflectiveRow(Customer.class, customer);
+        assertGeneratedRowMatchesReflectiveRow(Product.class, product);
+        assertGeneratedRowMatchesReflectiveRow(Contact.class, contact);
+    }
+
+    /**
+     * Verify that loaders with the same columns share the class of their row writers, but not their row writers.
+     */
+    @Test
+    public void testGeneratedRowWriterClassIsShared() throws Exception {
+        GeneratedRowWriter writer = newLoaderBuilder(Data.class).build().getRowWriter();
+        GeneratedRowWriter sameColumnsWriter = newLoaderBuilder(Data.class).build().getRowWriter();
+        GeneratedRowWriter rawBinaryWriter = newLoaderBuilder(Data.class).useRawBinary(true).build().getRowWriter();
+
+        assertNotSame(writer, sameColumnsWriter);
+        assertSame(writer.getClass(), sameColumnsWriter.getClass());
+        assertNotSame(writer.getClass(), rawBinaryWriter.getClass());
+    }
+
+    /**
+     * Verify that ids are taken from the allocator of the factory instead of counting up from the max id.
+     */
+    @Test
+    public void testIdAllocatorFactory() throws Exception {
+        final CountingIdAllocator allocator = new CountingIdAllocator(1000L);
+        SingleInfileObjectLoader<Customer> customerLoader = newLoaderBuilder(Customer.class)
+                .withIdAllocatorFactory(new IdAllocatorFactory() {
+                    @Override
+                    public IdAllocator newIdAllocator(StatementExecutor statementExecutor, String tableName,
+                                                      String idColumnName) {
+                        assertEquals("customer", tableName);
+                        assertEquals("id", idColumnName);
+                        return allocator;
+                    }
+                })
+                .build();
+        // Only the loader built in setUp looks for the max id
+        verify(statement, times(1)).executeQuery(anyString());
+
+        Customer customer = new Customer();
+        customerLoader.add(customer);
+        assertEquals(Long.valueOf(1001L), customer.getId());
+        assertEquals(1001L, allocator.getLastId());
+    }
+
+    /**
+     * Verify that entities annotated on their fields are read and get their ids through the fields.
+     */
+    @Test
+    public void testFieldAccess() throws Exception {
+        SingleInfileObjectLoader<Shipment> shipmentLoader = newLoaderBuilder(Shipment.class).build();
+        assertEquals("LOAD DATA LOCAL INFILE 'stream' INTO TABLE shipment "
+                     + "(carrier,customer_id,id,shipped_on,tracking_number) ",
+                     shipmentLoader.getLoadInfileSql());
+        assertTrue(shipmentLoader.isAutoGenerateId());
+        assertNull(shipmentLoader.getRowWriter());
+        assertEquals(TemporalType.TIMESTAMP, shipmentLoader.getColumns().get(3).getTemporalType());
+        assertTrue(shipmentLoader.getColumns().get(0).isEnumName());
+
+        Customer customer = ObjectFactory.newCustomer();
+        customer.setId(7L);
+        Shipment shipment = new Shipment();
+        shipment.setTrackingNumber("1Z999");
+        shipment.setCarrier(Shipment.Carrier.COURIER);
+        shipment.setCustomer(customer);
+        shipmentLoader.add(shipment);
+
+        assertEquals(AUTO_GENERATED_ID + 1,
+                     PersistenceAnnotationInspector.getIdValue(new PersistenceAnnotationInspector(), shipment));
+        assertEquals("COURIER\t7\t124\t\\N\t1Z999",
+                     CharStreams.toString(new InputStreamReader(shipmentLoader.getInfileDataBuffer().asInputStream())));
+    }
+
+    /**
+     * Verify that dates of columns declared with a supertype of Date are appended with their temporal type.
+     */
+    @Test
+    public void testTemporalDynamicColumn() throws Exception {
+        SingleInfileObjectLoader<Event> eventLoader = newLoaderBuilder(Event.class).build();
+        assertEquals(InfileColumn.Type.DYNAMIC, eventLoader.getColumns().get(0).getType());
+        assertEquals(TemporalType.DATE, eventLoader.getColumns().get(0).getTemporalType());
+
+        Calendar calendar = Calendar.getInstance();
+        calendar.clear();
+        calendar.set(2014, Calendar.MARCH, 5, 13, 30);
+        Event event = new Event();
+        event.setId(3L);
+        event.setHappenedOn(calendar.getTime());
+        eventLoader.add(event);
+
+        assertEquals("2014-03-05\t3",
+                     CharStreams.toString(new InputStreamReader(eventLoader.getInfileDataBuffer().asInputStream())));
+        assertGeneratedRowMatchesReflectiveRow(Event.class, event);
+    }
+
+    private <T> void assertGeneratedRowMatchesReflectiveRow(Class<T> aClass, T entity) throws Exception {
+        SingleInfileObjectLoader<T> generatedLoader = newLoaderBuilder(aClass).build();
+        SingleInfileObjectLoader<T> reflectiveLoader = newLoaderBuilder(aClass).useGeneratedRowWriter(false).build();
+        assertNotNull(generatedLoader.getRowWriter());
+        assertNull(reflectiveLoader.getRowWriter());
+        for (SingleInfileObjectLoader<Object> embeddedLoader : generatedLoader.getEmbeds().values()) {
+            assertNotNull(embeddedLoader.getRowWriter());
+        }
+
+        generatedLoader.add(entity);
+        reflectiveLoader.add(entity);
+        assertEquals(CharStreams.toString(new InputStreamReader(reflectiveLoader.getInfileDataBuffer().asInputStream())),
+                     CharStreams.toString(new InputStreamReader(generatedLoader.getInfileDataBuffer().asInputStream())));
+    }
+
+    private <T> SingleInfileObjectLoaderBuilder<T> newLoaderBuilder(Class<T> aClass) {
+        return new SingleInfileObjectLoaderBuilder<T>(aClass)
+                .withEventBus(new EventBus())
+                .withDefaultTableName()
+                .withStatementExecutor(new ConnectionBasedStatementExecutor(connection))
+                .usingAnnotationInspector(new PersistenceAnnotationInspector())
+                .withBuffer(InfileDataBuffer.builder().build());
+    }
+
+    /**
+     * Records the contents of every infile sent to the statement, in the order they are sent.
+     */
+    private List<String> captureSentContents() {
+        final List<String> sentContents = Collections.synchronizedList(new ArrayList<String>());
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                InputStream inputStream = (InputStream) invocation.getArguments()[0];
+                sentContents.add(CharStreams.toString(new InputStreamReader(inputStream)));
+                return null;
+            }
+        }).when(statement).setLocalInfileInputStream(isA(InputStream.class));
+        return sentContents;
+    }
+
+    private SingleInfileObjectLoaderBuilder<Data> newDataLoaderBuilder() {
+        return new SingleInfileObjectLoaderBuilder<Data>(Data.class)
+                .withDefaultTableName()
+                .withStatementExecutor(new ConnectionBasedStatementExecutor(connection))
+                .usingAnnotationInspector(new PersistenceAnnotationInspector())
+                .withBuffer(InfileDataBuffer.builder().build());
+    }
+
+    private static Data newData(byte[] md5) {
+        Data data = new Data();
+        data.setName("name");
+        data.setMd5(md5);
+        return data;
+    }
+
     /**
      * An enum used for testing.
      */
@@ -209,4 +610,32 @@ public class SingleInfileObjectLoaderBuilderTest {
         assertEquals("Enum value to append", enumObject.name(),
                 objectLoader.getEnumValueToAppend(TestClass.class.getMethod("getEnum"), enumObject));
     }
+
+    /**
+     * An entity with a date column declared as {@link Object}.
+     */
+    @Table(name = "event")
+    public static class Event {
+        private Long id;
+        private Object happenedOn;
+
+        @Id
+        public Long getId() {
+            return this.id;
+        }
+
+        public void setId(Long id) {
+            this.id = id;
+        }
+
+        @Temporal(TemporalType.DATE)
+        @Column(name = "happened_on")
+        public Object getHappenedOn() {
+            return this.happenedOn;
+        }
+
+        public void setHappenedOn(Object happenedOn) {
+            this.happenedOn = happenedOn;
+        }
+    }
 }
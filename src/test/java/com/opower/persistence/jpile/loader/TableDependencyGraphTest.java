@@ -0,0 +1,78 @@
+package com.opower.persistence.jpile.loader;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests ordering tables by their foreign keys.
+ *
+ * @author agent
+ */
+public class TableDependencyGraphTest {
+    private TableDependencyGraph graph;
+
+    @Before
+    public void setUp() {
+        this.graph = new TableDependencyGraph();
+    }
+
+    /**
+     * Verify that tables are flushed after the tables they refer to, and that independent tables share a wave.
+     */
+    @Test
+    public void testWaves() {
+        this.graph.addDependency("product", "customer");
+        this.graph.addDependency("product", "supplier");
+        this.graph.addDependency("contact", "customer");
+        this.graph.addDependency("contact_phone", "contact");
+        this.graph.addTable("binary_data");
+
+        assertEquals(ImmutableList.of(ImmutableList.of("customer", "supplier", "binary_data"),
+                                      ImmutableList.of("product", "contact"),
+                                      ImmutableList.of("contact_phone")),
+                     this.graph.getWaves());
+        assertEquals(ImmutableList.of(ImmutableList.of("customer"), ImmutableList.of("contact")),
+                     this.graph.getDependencyWaves("contact_phone"));
+        assertEquals(ImmutableList.<List<String>>of(), this.graph.getDependencyWaves("customer"));
+    }
+
+    @Test
+    public void testSelfReference() {
+        this.graph.addDependency("contact", "contact");
+        this.graph.addDependency("contact", "customer");
+
+        assertEquals(ImmutableList.of(ImmutableList.of("customer"), ImmutableList.of("contact")), this.graph.getWaves());
+    }
+
+    /**
+     * Verify that a cycle is broken at the table added first.
+     */
+    @Test
+    public void testCycle() {
+        this.graph.addDependency("customer", "product");
+        this.graph.addDependency("product", "customer");
+        this.graph.addDependency("supplier", "product");
+
+        assertEquals(ImmutableList.of(ImmutableList.of("customer"), ImmutableList.of("product"),
+                                      ImmutableList.of("supplier")),
+                     this.graph.getWaves());
+    }
+
+    /**
+     * Verify that the waves are computed again after adding a dependency.
+     */
+    @Test
+    public void testAddDependencyAfterWaves() {
+        this.graph.addTable("product");
+        this.graph.addTable("customer");
+        assertEquals(ImmutableList.of(ImmutableList.of("product", "customer")), this.graph.getWaves());
+
+        this.graph.addDependency("product", "customer");
+        assertEquals(ImmutableList.of(ImmutableList.of("customer"), ImmutableList.of("product")), this.graph.getWaves());
+    }
+}
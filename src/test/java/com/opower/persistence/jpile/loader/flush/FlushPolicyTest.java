@@ -0,0 +1,93 @@
+package com.opower.persistence.jpile.loader.flush;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the flush policies deciding when to flush before the buffer is full.
+ *
+ * @author agent
+ */
+public class FlushPolicyTest {
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testThresholds() {
+        FlushPolicy policy = ThresholdFlushPolicy.builder()
+                .withMaxAge(1, TimeUnit.SECONDS)
+                .withMaxRows(10)
+                .withMaxBytes(100)
+                .build();
+
+        assertFalse(policy.shouldFlush(9, 99, SECOND - 1));
+        assertTrue(policy.shouldFlush(1, 1, SECOND));
+        assertTrue(policy.shouldFlush(10, 1, 0));
+        assertTrue(policy.shouldFlush(1, 100, 0));
+        assertFalse("An empty buffer is never flushed", policy.shouldFlush(0, 0, SECOND));
+        assertSame(policy, policy.forLoader());
+    }
+
+    @Test
+    public void testNoThresholds() {
+        assertFalse(ThresholdFlushPolicy.builder().build().shouldFlush(Integer.MAX_VALUE - 1, Integer.MAX_VALUE - 1,
+                                                                       Long.MAX_VALUE - 1));
+    }
+
+    /**
+     * Verify that the effective size grows while throughput improves, turns around when it drops and shrinks when flushes
+     * take too long.
+     */
+    @Test
+    public void testAdaptiveSize() {
+        AdaptiveFlushPolicy policy = new AdaptiveFlushPolicy(1000, 8000, 1, TimeUnit.SECONDS);
+        assertEquals(1000, policy.getEffectiveBytes());
+        assertFalse(policy.shouldFlush(1, 999, 0));
+        assertTrue(policy.shouldFlush(1, 1000, 0));
+
+        policy.flushed(10, 1000, SECOND / 10);
+        assertEquals(2000, policy.getEffectiveBytes());
+        policy.flushed(10, 2000, SECOND / 10);
+        assertEquals(4000, policy.getEffectiveBytes());
+        // Throughput dropped, so go back
+        policy.flushed(10, 4000, SECOND / 2);
+        assertEquals(2000, policy.getEffectiveBytes());
+
+        // Small flushes are not measured
+        policy.flushed(1, 999, SECOND);
+        assertEquals(2000, policy.getEffectiveBytes());
+
+        // Too slow
+        policy.flushed(10, 2000, 2 * SECOND);
+        assertEquals(1000, policy.getEffectiveBytes());
+        policy.flushed(10, 1000, 2 * SECOND);
+        assertEquals("Never below the minimum", 1000, policy.getEffectiveBytes());
+    }
+
+    @Test
+    public void testAdaptiveMaximum() {
+        AdaptiveFlushPolicy policy = new AdaptiveFlushPolicy(1000, 3000, 1, TimeUnit.SECONDS);
+        for (int bytes = 1000; bytes <= 3000; bytes += 1000) {
+            policy.flushed(10, bytes, SECOND / 10);
+        }
+        assertEquals(3000, policy.getEffectiveBytes());
+    }
+
+    @Test
+    public void testAdaptiveLimits() {
+        FlushPolicy limits = ThresholdFlushPolicy.builder().withMaxRows(5).build();
+        AdaptiveFlushPolicy policy = new AdaptiveFlushPolicy(limits, 1000, 8000, 1, TimeUnit.SECONDS);
+        assertTrue(policy.shouldFlush(5, 10, 0));
+
+        FlushPolicy loaderPolicy = policy.forLoader();
+        assertNotSame(policy, loaderPolicy);
+        loaderPolicy.flushed(10, 1000, SECOND / 10);
+        assertEquals("Every loader tunes its own size", 1000, policy.getEffectiveBytes());
+    }
+}
@@ -0,0 +1,131 @@
+package com.opower.persistence.jpile.loader.id;
+
+import com.google.common.base.Throwables;
+import com.opower.persistence.jpile.jdbc.StatementCallback;
+import com.opower.persistence.jpile.jdbc.StatementExecutor;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Tests allocating ids from blocks reserved in a sequence table.
+ *
+ * @author agent
+ */
+@RunWith(MockitoJUnitRunner.class)
+public class SequenceTableIdAllocatorTest {
+    @Mock
+    StatementExecutor statementExecutor;
+
+    @Mock
+    Statement statement;
+
+    @Mock
+    ResultSet resultSet;
+
+    @Before
+    public void setUp() throws Exception {
+        when(this.statementExecutor.execute(any(StatementCallback.class))).thenAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                try {
+                    return ((StatementCallback<?>) invocation.getArguments()[0]).doInStatement(statement);
+                }
+                catch (SQLException e) {
+                    throw Throwables.propagate(e);
+                }
+            }
+        });
+        when(this.statement.executeUpdate(anyString())).thenReturn(1);
+        when(this.statement.executeQuery(anyString())).thenReturn(this.resultSet);
+        when(this.resultSet.first()).thenReturn(true);
+    }
+
+    @Test
+    public void testReservingBlocks() throws Exception {
+        when(this.resultSet.getLong(1)).thenReturn(13L, 16L);
+        IdAllocator allocator = SequenceTableIdAllocator.factory("id_sequence", 3)
+                .newIdAllocator(this.statementExecutor, "customer", "id");
+
+        verify(this.statement).executeUpdate("insert ignore into id_sequence (sequence_name, last_id) "
+                                             + "select 'customer', coalesce(max(id), 0) from customer");
+        List<Long> ids = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            ids.add(allocator.nextId());
+        }
+        assertEquals("[11, 12, 13, 14, 15, 16]", ids.toString());
+        verify(this.statement, times(2)).executeUpdate(
+                "update id_sequence set last_id = last_insert_id(last_id + 3) where sequence_name = 'customer'");
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testMissingSequence() throws Exception {
+        IdAllocator allocator = new SequenceTableIdAllocator(this.statementExecutor, "id_sequence", "customer", "id", 3);
+        when(this.statement.executeUpdate(anyString())).thenReturn(0);
+        allocator.nextId();
+    }
+
+    /**
+     * Verify that threads sharing an allocator never get the same id.
+     */
+    @Test
+    public void testConcurrentAllocation() throws Exception {
+        final AtomicLong sequence = new AtomicLong();
+        final IdAllocator allocator = new BlockIdAllocator(7) {
+            @Override
+            protected long reserveBlock(int size) {
+                return sequence.addAndGet(size) - size + 1;
+            }
+        };
+        final Set<Long> ids = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        int threads = 8;
+        final int idsPerThread = 1000;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int j = 0; j < idsPerThread; j++) {
+                            ids.add(allocator.nextId());
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+        assertEquals(threads * idsPerThread, ids.size());
+    }
+}
@@ -0,0 +1,64 @@
+package com.opower.persistence.jpile.reflection;
+
+import com.opower.persistence.jpile.sample.Address;
+import com.opower.persistence.jpile.sample.Contact;
+import com.opower.persistence.jpile.sample.Customer;
+import com.opower.persistence.jpile.sample.Product;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests parsing and sharing the metadata of entity classes.
+ *
+ * @author agent
+ */
+public class EntityMetadataTest {
+
+    @Test
+    public void testMetadataIsShared() {
+        assertSame(EntityMetadata.of(Customer.class), EntityMetadata.of(Customer.class));
+    }
+
+    @Test
+    public void testTableAndId() {
+        EntityMetadata customer = EntityMetadata.of(Customer.class);
+        assertSame(Customer.class, customer.getEntityClass());
+        assertTrue(customer.hasTable());
+        assertEquals("customer", customer.getTableName());
+        assertEquals("id", customer.getIdProperty().getName());
+        assertTrue(customer.getSecondaryTables().isEmpty());
+
+        EntityMetadata address = EntityMetadata.of(Address.class);
+        assertFalse(address.hasTable());
+        assertNull(address.getTableName());
+        assertNull(address.getIdProperty());
+    }
+
+    @Test
+    public void testSecondaryTables() {
+        EntityMetadata contact = EntityMetadata.of(Contact.class);
+        assertEquals(1, contact.getSecondaryTables().size());
+        assertEquals("contact_phone", contact.getSecondaryTables().get(0).name());
+    }
+
+    /**
+     * Verify that many-to-one children are persisted before an entity and one-to-many dependents after it.
+     */
+    @Test
+    public void testDependents() {
+        EntityMetadata product = EntityMetadata.of(Product.class);
+        assertEquals(2, product.getChildDependents().size());
+        assertTrue(product.getParentDependents().isEmpty());
+
+        List<PropertyAccessor> customerDependents = EntityMetadata.of(Customer.class).getParentDependents();
+        assertEquals(2, customerDependents.size());
+        assertTrue(EntityMetadata.of(Customer.class).getChildDependents().isEmpty());
+    }
+}
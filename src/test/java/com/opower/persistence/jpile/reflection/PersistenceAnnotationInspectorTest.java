@@ -1,22 +1,27 @@
 package com.opower.persistence.jpile.reflection;
 
 import com.google.common.collect.ImmutableList;
+import com.opower.persistence.jpile.sample.Address;
 import com.opower.persistence.jpile.sample.Contact;
 import com.opower.persistence.jpile.sample.Customer;
 import com.opower.persistence.jpile.sample.Product;
+import com.opower.persistence.jpile.sample.Shipment;
 import org.junit.Test;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.ManyToOne;
 import javax.persistence.OneToOne;
 import javax.persistence.PrimaryKeyJoinColumn;
 import javax.persistence.SecondaryTables;
 import javax.persistence.Table;
 import javax.persistence.Temporal;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -51,6 +56,40 @@ public class PersistenceAnnotationInspectorTest {
         assertEquals("getId", annotationInspector.idGetter(Customer.class).getName());
     }
 
+    @Test
+    public void testIdProperty() throws Exception {
+        PropertyAccessor customerId = annotationInspector.idProperty(Customer.class);
+        assertEquals(Customer.class.getMethod("getId"), customerId.getGetter());
+        assertTrue(customerId.isWritable());
+
+        PropertyAccessor shipmentId = annotationInspector.idProperty(Shipment.class);
+        assertEquals(Shipment.class.getDeclaredField("id"), shipmentId.getField());
+        assertNull(shipmentId.getGetter());
+
+        Shipment shipment = new Shipment();
+        PersistenceAnnotationInspector.setIdValue(annotationInspector, shipment, 5L);
+        assertEquals(5L, PersistenceAnnotationInspector.getIdValue(annotationInspector, shipment));
+    }
+
+    @Test
+    public void testHasFieldAccess() throws Exception {
+        assertFalse(annotationInspector.hasFieldAccess(Customer.class));
+        assertFalse(annotationInspector.hasFieldAccess(Address.class));
+        assertTrue(annotationInspector.hasFieldAccess(Shipment.class));
+    }
+
+    @Test
+    public void testAnnotatedPropertiesWith() throws Exception {
+        List<String> names = new ArrayList<>();
+        for (PersistenceAnnotationInspector.AnnotatedProperty<Column> property
+                : annotationInspector.annotatedPropertiesWith(Shipment.class, Column.class)) {
+            names.add(property.getAnnotation().name());
+        }
+        assertEquals(ImmutableList.of("id", "tracking_number", "carrier", "shipped_on"), names);
+        assertEquals(ImmutableList.of(PropertyAccessor.forField(Shipment.class.getDeclaredField("customer"))),
+                     annotationInspector.propertiesAnnotatedWith(Shipment.class, ManyToOne.class));
+    }
+
     @Test
     public void testSetterFromGetter() throws Exception {
         assertEquals(
@@ -0,0 +1,75 @@
+package com.opower.persistence.jpile.sample;
+
+import javax.persistence.Access;
+import javax.persistence.AccessType;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import java.util.Date;
+
+/**
+ * A sample pojo object for testing field access. Its mapping is annotated on private fields and it has no getters.
+ *
+ * @author agent
+ */
+@Entity
+@Table(name = "shipment")
+@Access(AccessType.FIELD)
+public class Shipment {
+    /**
+     * The carrier of a shipment
+     */
+    public enum Carrier {
+        POST,
+        COURIER
+    }
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.AUTO)
+    @Column(name = "id")
+    private Long id;
+
+    @Column(name = "tracking_number")
+    private String trackingNumber;
+
+    @Enumerated(EnumType.STRING)
+    @Column(name = "carrier")
+    private Carrier carrier;
+
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(name = "shipped_on")
+    private Date shippedOn;
+
+    @ManyToOne
+    @JoinColumn(name = "customer_id")
+    private Customer customer;
+
+    public void setId(Long id) {
+        this.id = id;
+    }
+
+    public void setTrackingNumber(String trackingNumber) {
+        this.trackingNumber = trackingNumber;
+    }
+
+    public void setCarrier(Carrier carrier) {
+        this.carrier = carrier;
+    }
+
+    public void setShippedOn(Date shippedOn) {
+        this.shippedOn = shippedOn;
+    }
+
+    public void setCustomer(Customer customer) {
+        this.customer = customer;
+    }
+}